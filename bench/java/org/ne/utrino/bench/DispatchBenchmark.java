@@ -0,0 +1,129 @@
+package org.ne.utrino.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.ne.utrino.runtime.Guard;
+import org.ne.utrino.runtime.IInvocation;
+import org.ne.utrino.runtime.MethodSpace;
+import org.ne.utrino.runtime.Signature;
+import org.ne.utrino.util.Factory;
+import org.ne.utrino.value.ITagValue;
+import org.ne.utrino.value.IValue;
+import org.ne.utrino.value.RInteger;
+import org.ne.utrino.value.RKey;
+import org.ne.utrino.value.RMethod;
+import org.ne.utrino.value.RObject;
+import org.ne.utrino.value.RString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures method lookup in a frozen method space as the number of methods
+ * and their arity grows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DispatchBenchmark {
+
+  /**
+   * A fixed invocation with the arguments already in tag order.
+   */
+  private static class FixedInvocation implements IInvocation {
+
+    private final ITagValue[] tags;
+    private final IValue[] values;
+
+    public FixedInvocation(ITagValue[] tags, IValue[] values) {
+      this.tags = tags;
+      this.values = values;
+    }
+
+    @Override
+    public int getEntryCount() {
+      return tags.length;
+    }
+
+    @Override
+    public ITagValue getTag(int index) {
+      return tags[index];
+    }
+
+    @Override
+    public IValue getValue(int index) {
+      return values[index];
+    }
+
+  }
+
+  @Param({"10", "100", "1000", "5000"})
+  public int methodCount;
+
+  @Param({"0", "2", "4"})
+  public int arity;
+
+  private MethodSpace space;
+  private IInvocation hit;
+  private IInvocation miss;
+
+  @Setup
+  public void setUp() {
+    space = new MethodSpace();
+    space.addInheritance(RInteger.getProtocol(), RObject.getProtocol());
+    space.addInheritance(RString.getProtocol(), RObject.getProtocol());
+    for (int i = 0; i < methodCount; i++) {
+      Signature.Builder builder = Signature.newBuilder();
+      builder.addParameter(Guard.is(RInteger.getProtocol())).addTag(RKey.THIS);
+      builder.addParameter(Guard.identity(RString.of("m" + i))).addTag(RKey.NAME);
+      for (int j = 0; j < arity; j++) {
+        // Alternate between specific and general guards so the matches have
+        // to be scored against each other.
+        Guard guard = ((i + j) % 2 == 0)
+            ? Guard.is(RInteger.getProtocol())
+            : Guard.is(RObject.getProtocol());
+        builder.addParameter(guard).addTag(RInteger.of(j));
+      }
+      space.addMethod(new RMethod(builder.build(), null));
+    }
+    space.ensureFrozen();
+    hit = newInvocation("m" + (methodCount / 2));
+    miss = newInvocation("nonexistent");
+  }
+
+  /**
+   * Creates an invocation of the method with the given name passing integers
+   * for all arguments.
+   */
+  private IInvocation newInvocation(String name) {
+    List<ITagValue> tags = Factory.newArrayList();
+    List<IValue> values = Factory.newArrayList();
+    tags.add(RKey.THIS);
+    values.add(RInteger.of(0));
+    tags.add(RKey.NAME);
+    values.add(RString.of(name));
+    for (int j = 0; j < arity; j++) {
+      tags.add(RInteger.of(j));
+      values.add(RInteger.of(j));
+    }
+    return new FixedInvocation(tags.toArray(new ITagValue[tags.size()]),
+        values.toArray(new IValue[values.size()]));
+  }
+
+  @Benchmark
+  public RMethod lookupHit() {
+    return space.lookupMethod(hit);
+  }
+
+  @Benchmark
+  public RMethod lookupMiss() {
+    return space.lookupMethod(miss);
+  }
+
+}
@@ -0,0 +1,115 @@
+package org.ne.utrino.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.ne.utrino.ast.IExpression;
+import org.ne.utrino.interpreter.CodeBlock;
+import org.ne.utrino.interpreter.Interpreter;
+import org.ne.utrino.runtime.Compiler;
+import org.ne.utrino.runtime.NativeMethods;
+import org.ne.utrino.syntax.Parser;
+import org.ne.utrino.syntax.Tokenizer;
+import org.ne.utrino.util.Assert;
+import org.ne.utrino.value.IValue;
+import org.ne.utrino.value.Phase;
+import org.ne.utrino.value.RContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the interpreter on programs built through the parser.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InterpreterBenchmark {
+
+  /**
+   * The parser is recursive so nested programs can't be made arbitrarily deep.
+   */
+  private static final int kMaxNesting = 100;
+
+  @Param({"10", "100", "1000"})
+  public int size;
+
+  @Param({"SWITCH", "DECODED"})
+  public Interpreter.Engine engine;
+
+  /**
+   * Activations before a block is compiled to jvm bytecode, 0 to only
+   * interpret.
+   */
+  @Param({"0", "1000"})
+  public int jitThreshold;
+
+  private CodeBlock arithmetic;
+  private CodeBlock nestedArithmetic;
+  private CodeBlock lambdas;
+  private CodeBlock locals;
+
+  @Setup
+  public void setUp() {
+    // 1 + 2 - 3 + 4 - ...
+    StringBuilder buf = new StringBuilder("0");
+    for (int i = 1; i <= size; i++)
+      buf.append(i % 2 == 0 ? " - " : " + ").append(i);
+    arithmetic = compile(buf.toString());
+    // 1 + (2 + (3 + ...))
+    int nesting = Math.min(size, kMaxNesting);
+    buf = new StringBuilder("0");
+    for (int i = 1; i <= nesting; i++)
+      buf.insert(0, i + " + (").append(")");
+    nestedArithmetic = compile(buf.toString());
+    // (fn ($a, $b) => $a + $b)((fn ($a, $b) => ...)(...), 1)
+    buf = new StringBuilder("0");
+    for (int i = 1; i <= nesting; i++)
+      buf.insert(0, "(fn ($a, $b) => $a + $b)(").append(", " + i + ")");
+    lambdas = compile(buf.toString());
+    // def $x0 := 0 in def $x1 := $x0 + 1 in ...
+    buf = new StringBuilder();
+    for (int i = 0; i < nesting; i++)
+      buf.append("def $x" + (i + 1) + " := $x" + i + " + 1 in ");
+    buf.insert(0, "def $x0 := 0 in ").append("$x" + nesting);
+    locals = compile(buf.toString());
+  }
+
+  /**
+   * Parses and compiles the given expression in a context with the native
+   * methods, without optimizing. The programs are all literals so the
+   * optimizer would fold most of them away.
+   */
+  private static CodeBlock compile(String source) {
+    IExpression expr = new Parser(Tokenizer.tokenize(source)).parseExpression();
+    RContext context = new RContext();
+    NativeMethods.addToContext(context);
+    Assert.that(context.trySetPhase(Phase.SHALLOW_IMMUTABLE));
+    return Compiler.linkAndCompile(null, expr, context, false);
+  }
+
+  @Benchmark
+  public IValue arithmetic() {
+    return Interpreter.interpret(arithmetic, engine, jitThreshold);
+  }
+
+  @Benchmark
+  public IValue nestedArithmetic() {
+    return Interpreter.interpret(nestedArithmetic, engine, jitThreshold);
+  }
+
+  @Benchmark
+  public IValue lambdas() {
+    return Interpreter.interpret(lambdas, engine, jitThreshold);
+  }
+
+  @Benchmark
+  public IValue locals() {
+    return Interpreter.interpret(locals, engine, jitThreshold);
+  }
+
+}
@@ -0,0 +1,90 @@
+package org.ne.utrino.bench;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.ne.utrino.plankton.ByteBufferBinaryInputStream;
+import org.ne.utrino.plankton.Plankton;
+import org.ne.utrino.plankton.RawBinaryInputStream;
+import org.ne.utrino.plankton.RawBinaryOutputStream;
+import org.ne.utrino.util.Factory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures encoding and decoding deep plankton object graphs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PlanktonBenchmark {
+
+  /**
+   * How many levels of nesting the graph has.
+   */
+  @Param({"4", "8", "12"})
+  public int depth;
+
+  private Object graph;
+  private byte[] encoded;
+  private ByteBuffer direct;
+
+  @Setup
+  public void setUp() {
+    graph = buildGraph(depth);
+    RawBinaryOutputStream out = new RawBinaryOutputStream();
+    Plankton.encode(graph, out);
+    encoded = out.toByteArray();
+    direct = ByteBuffer.allocateDirect(encoded.length);
+    direct.put(encoded).flip();
+  }
+
+  /**
+   * Builds a tree of maps and lists with two children per level, and strings,
+   * integers and blobs of text at the leaves.
+   */
+  private static Object buildGraph(int depth) {
+    if (depth == 0) {
+      List<Object> leaf = Factory.newArrayList();
+      leaf.add("leaf value with some text in it");
+      leaf.add(depth * 1027);
+      leaf.add(true);
+      leaf.add(null);
+      return leaf;
+    }
+    Map<Object, Object> node = Factory.newHashMap();
+    node.put("depth", depth);
+    node.put("left", buildGraph(depth - 1));
+    List<Object> right = Factory.newArrayList();
+    right.add(buildGraph(depth - 1));
+    right.add("right");
+    node.put("right", right);
+    return node;
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    RawBinaryOutputStream out = new RawBinaryOutputStream();
+    Plankton.encode(graph, out);
+    return out.toByteArray();
+  }
+
+  @Benchmark
+  public Object decode() {
+    return Plankton.decode(new RawBinaryInputStream(encoded));
+  }
+
+  @Benchmark
+  public Object decodeDirectBuffer() {
+    return Plankton.decode(new ByteBufferBinaryInputStream(direct));
+  }
+
+}
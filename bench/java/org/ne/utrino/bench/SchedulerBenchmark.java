@@ -0,0 +1,110 @@
+package org.ne.utrino.bench;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.ne.utrino.runtime.ITask;
+import org.ne.utrino.runtime.IScheduler;
+import org.ne.utrino.runtime.PooledScheduler;
+import org.ne.utrino.runtime.Process;
+import org.ne.utrino.runtime.Runtime;
+import org.ne.utrino.runtime.ThreadPerProcessScheduler;
+import org.ne.utrino.util.Exceptions;
+import org.ne.utrino.value.IValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Compares the schedulers on messages passed around a ring of processes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SchedulerBenchmark {
+
+  /**
+   * A task that passes itself on to the next process in the ring until it
+   * runs out of hops.
+   */
+  private static class Hop implements ITask<IValue> {
+
+    private final Process[] ring;
+    private final int index;
+    private final int hopsLeft;
+    private final CountDownLatch done;
+
+    public Hop(Process[] ring, int index, int hopsLeft, CountDownLatch done) {
+      this.ring = ring;
+      this.index = index;
+      this.hopsLeft = hopsLeft;
+      this.done = done;
+    }
+
+    @Override
+    public IValue execute(Process process) {
+      if (hopsLeft == 0) {
+        done.countDown();
+      } else {
+        int next = (index + 1) % ring.length;
+        ring[next].schedule(new Hop(ring, next, hopsLeft - 1, done));
+      }
+      return null;
+    }
+
+  }
+
+  @Param({"pooled", "threadPerProcess"})
+  public String scheduler;
+
+  @Param({"100", "10000"})
+  public int processCount;
+
+  @Param({"1000"})
+  public int messageCount;
+
+  private Runtime runtime;
+  private Process[] ring;
+
+  @Setup
+  public void setUp() {
+    IScheduler impl = "pooled".equals(scheduler)
+        ? new PooledScheduler(java.lang.Runtime.getRuntime().availableProcessors())
+        : new ThreadPerProcessScheduler();
+    runtime = new Runtime(impl, Runtime.kDefaultTaskQuantum, Runtime.kDefaultTimeQuantumNanos);
+    runtime.start();
+    ring = new Process[processCount];
+    for (int i = 0; i < processCount; i++)
+      ring[i] = runtime.newProcess();
+  }
+
+  @TearDown
+  public void tearDown() {
+    runtime.stop();
+  }
+
+  /**
+   * Sends a batch of messages around the ring, each hopping across a hundred
+   * processes, and waits for them all to arrive.
+   */
+  @Benchmark
+  public void ring() {
+    CountDownLatch done = new CountDownLatch(messageCount);
+    for (int i = 0; i < messageCount; i++) {
+      int start = i % processCount;
+      ring[start].schedule(new Hop(ring, start, 100, done));
+    }
+    try {
+      done.await();
+    } catch (InterruptedException ie) {
+      throw Exceptions.propagate(ie);
+    }
+  }
+
+}
@@ -0,0 +1,59 @@
+package org.ne.utrino.bench;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.ne.utrino.syntax.ReaderCharStream;
+import org.ne.utrino.syntax.Token;
+import org.ne.utrino.syntax.Tokenizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures tokenizing large sources.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TokenizerBenchmark {
+
+  /**
+   * The number of declarations in the generated source.
+   */
+  @Param({"1000", "10000", "100000"})
+  public int declarations;
+
+  private String source;
+
+  @Setup
+  public void setUp() {
+    StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < declarations; i++) {
+      buf.append("def $decl").append(i).append(" := fn ($a, x: $b) => ")
+         .append("def $t := $a + ").append(i).append(" in ($t - $b).foo[\"str\", 3];\n");
+    }
+    source = buf.toString();
+  }
+
+  @Benchmark
+  public List<Token> tokenize() {
+    return Tokenizer.tokenize(source);
+  }
+
+  @Benchmark
+  public Token stream() {
+    Tokenizer tokenizer = new Tokenizer(new ReaderCharStream(new StringReader(source)));
+    Token last = null;
+    while (tokenizer.hasNext())
+      last = tokenizer.next();
+    return last;
+  }
+
+}
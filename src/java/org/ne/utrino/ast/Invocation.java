@@ -1,16 +1,24 @@
 package org.ne.utrino.ast;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 import org.ne.utrino.interpreter.Assembler;
+import org.ne.utrino.interpreter.Intrinsic;
+import org.ne.utrino.plankton.IPlanktonDatable;
+import org.ne.utrino.plankton.IPlanktonFactory;
+import org.ne.utrino.plankton.ISeed;
+import org.ne.utrino.runtime.CodeCache;
 import org.ne.utrino.util.Factory;
 import org.ne.utrino.util.Pair;
 import org.ne.utrino.value.ITagValue;
+import org.ne.utrino.value.IValue;
 import org.ne.utrino.value.RInteger;
 import org.ne.utrino.value.RInternalData;
 import org.ne.utrino.value.RKey;
 import org.ne.utrino.value.RString;
+
 /**
  * A multi-method invocation.
  */
@@ -58,7 +66,26 @@ public class Invocation implements IExpression {
     for (IExpression arg : values)
       arg.emit(assm);
     RInvocationDescriptor desc = new RInvocationDescriptor(order, tags);
-    assm.invoke(desc);
+    Intrinsic intrinsic = getIntrinsic();
+    if (intrinsic == null) {
+      assm.invoke(desc);
+    } else {
+      assm.invokeIntrinsic(intrinsic, desc);
+    }
+  }
+
+  /**
+   * If this is a binary operator invocation for which there is an intrinsic
+   * returns it, otherwise null.
+   */
+  private Intrinsic getIntrinsic() {
+    if (tags.length != 3 || tags[0] != RKey.THIS || tags[1] != RKey.NAME
+        || !RInteger.of(0).equals(tags[2]) || !(values[1] instanceof Literal))
+      return null;
+    IValue name = ((Literal) values[1]).getValue();
+    if (!(name instanceof RString))
+      return null;
+    return Intrinsic.forOperator(((RString) name).getValue());
   }
 
   /**
@@ -68,7 +95,7 @@ public class Invocation implements IExpression {
     return this.values;
   }
 
-  public static class RInvocationDescriptor extends RInternalData {
+  public static class RInvocationDescriptor extends RInternalData implements IPlanktonDatable {
 
     private final int[] order;
     private final ITagValue[] tags;
@@ -99,6 +126,16 @@ public class Invocation implements IExpression {
       return this.tags;
     }
 
+    @Override
+    public ISeed toPlanktonData(IPlanktonFactory factory) {
+      List<Integer> orderList = Factory.newArrayList();
+      for (int index : order)
+        orderList.add(index);
+      return factory.newSeed().setHeader(CodeCache.kInvocationDescriptor).setPayload(factory.newMap()
+          .set("order", orderList)
+          .set("tags", Factory.newArrayList(Arrays.asList(tags))));
+    }
+
   }
 
   /**
@@ -124,7 +161,7 @@ public class Invocation implements IExpression {
      * Sets the method name argument.
      */
     public Builder setName(String name) {
-      entries.add(Pair.<ITagValue, IExpression>of(RKey.NAME, new Literal(RString.of(name))));
+      entries.add(Pair.<ITagValue, IExpression>of(RKey.NAME, new Literal(RString.intern(name))));
       return this;
     }
 
@@ -22,7 +22,7 @@ public class Lambda implements IExpression {
 
   private final MethodHeader header;
   private final IExpression body;
-  private final Map<ISymbol, ISymbol> captures = Factory.newHashMap();
+  private final Map<ISymbol, CapturedSymbol> captures = Factory.newLinkedHashMap();
 
   public Lambda(MethodHeader header, IExpression body) {
     this.header = header;
@@ -37,12 +37,21 @@ public class Lambda implements IExpression {
   @Override
   public void emit(Assembler assm) {
     Signature sig = header.toSignature();
-    CodeBlock code = Compiler.compile(sig, body, assm.getContext());
+    CodeBlock code = Compiler.compile(sig, body, assm.getContext(),
+        assm.isOptimizing());
     MethodSpace methodSpace = new MethodSpace();
     methodSpace.addMethod(new RMethod(sig, code));
     RLambda lambda = new RLambda(methodSpace);
     Assert.that(lambda.trySetPhase(Phase.SHALLOW_IMMUTABLE));
-    assm.push(lambda);
+    if (captures.isEmpty()) {
+      assm.push(lambda);
+      return;
+    }
+    // Captures are numbered in the order they were first read so pushing
+    // them in insertion order lays them out by index.
+    for (CapturedSymbol captured : captures.values())
+      captured.getOuter().read(assm);
+    assm.newLambda(lambda, captures.size());
   }
 
   /**
@@ -66,7 +75,7 @@ public class Lambda implements IExpression {
         return param.getSymbol();
     }
     ISymbol outer = scope.readName(name);
-    ISymbol captured = captures.get(outer);
+    CapturedSymbol captured = captures.get(outer);
     if (captured == null) {
       captured = new CapturedSymbol(outer, captures.size());
       captures.put(outer, captured);
@@ -14,6 +14,13 @@ public class Literal implements IExpression {
     this.value = Assert.notNull(value);
   }
 
+  /**
+   * Returns the value of this literal.
+   */
+  public IValue getValue() {
+    return this.value;
+  }
+
   @Override
   public <T> void accept(IVisitor<T> visitor, T data) {
     visitor.visitLiteral(this, data);
@@ -74,7 +74,7 @@ public class MethodHeader {
   public Signature toSignature() {
     Signature.Builder builder = Signature.newBuilder();
     builder.addParameter(Guard.any()).addTag(RKey.THIS);
-    builder.addParameter(Guard.identity(RString.of(this.name))).addTag(RKey.NAME);
+    builder.addParameter(Guard.identity(RString.intern(this.name))).addTag(RKey.NAME);
     for (Parameter param : params) {
       ParameterBuilder paramBuilder = builder.addParameter(Guard.any());
       for (ITagValue tag : param.getTags())
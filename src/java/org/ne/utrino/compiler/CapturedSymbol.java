@@ -1,11 +1,10 @@
 package org.ne.utrino.compiler;
 
 import org.ne.utrino.interpreter.Assembler;
-import org.ne.utrino.value.RNull;
 
 /**
  * A synthetic symbol representing some other symbol that was captured by a
- * lambda.s
+ * lambda.
  */
 public class CapturedSymbol implements ISymbol {
 
@@ -17,9 +16,24 @@ public class CapturedSymbol implements ISymbol {
     this.index = index;
   }
 
+  /**
+   * Returns the symbol this one was captured from.
+   */
+  public ISymbol getOuter() {
+    return this.outer;
+  }
+
+  /**
+   * Returns the index of this symbol's value among the values captured by
+   * the lambda.
+   */
+  public int getIndex() {
+    return this.index;
+  }
+
   @Override
   public void read(Assembler assm) {
-    assm.push(RNull.get());
+    assm.readCaptured(index);
   }
 
 }
@@ -1,26 +1,44 @@
 package org.ne.utrino.interpreter;
 
-import java.util.Stack;
-
 import org.ne.utrino.ast.Invocation.RInvocationDescriptor;
-import org.ne.utrino.util.Factory;
 import org.ne.utrino.value.IValue;
 
 /**
- * A single activation.
+ * A single activation. The values of an activation live on the value stack of
+ * the interpreter that owns it, starting at the frame pointer, with the
+ * arguments immediately below. Activations are owned and reused by their
+ * interpreter so a reference to one is only valid while it is live.
  */
 public class Activation {
 
-  private final Activation below;
-  private final RInvocationDescriptor descriptor;
-  private final CodeBlock block;
-  private int pc = 0;
-  private final Stack<IValue> stack = Factory.newStack();
+  private final Interpreter owner;
+  private Activation below;
+  private RInvocationDescriptor descriptor;
+  private CodeBlock block;
+  private int argumentCount;
+  private int fp;
+  private int pc;
+  private boolean isEntry;
+
+  Activation(Interpreter owner) {
+    this.owner = owner;
+  }
 
-  public Activation(Activation below, RInvocationDescriptor descriptor, CodeBlock block) {
+  /**
+   * Sets this activation up to execute the given block, called through the
+   * given descriptor from the given activation. The values of this activation
+   * start at the given frame pointer. An entry activation is one that was
+   * called from compiled code rather than the interpreter.
+   */
+  void reset(Activation below, RInvocationDescriptor descriptor, CodeBlock block, int fp,
+      boolean isEntry) {
     this.below = below;
     this.descriptor = descriptor;
     this.block = block;
+    this.argumentCount = (descriptor == null) ? 0 : descriptor.getArgumentCount();
+    this.fp = fp;
+    this.pc = 0;
+    this.isEntry = isEntry;
   }
 
   /**
@@ -45,10 +63,25 @@ public class Activation {
   }
 
   /**
-   * Returns this activation's stack.
+   * Returns the index on the value stack of this activation's first value.
+   */
+  public int getFramePointer() {
+    return this.fp;
+  }
+
+  /**
+   * Returns the index on the value stack of this activation's first argument.
    */
-  public Stack<IValue> getStack() {
-    return this.stack;
+  public int getArgumentBase() {
+    return this.fp - this.argumentCount;
+  }
+
+  /**
+   * Returns true if returning from this activation should leave the
+   * interpreter and return to the compiled code that called it.
+   */
+  boolean isEntry() {
+    return this.isEntry;
   }
 
   /**
@@ -58,19 +91,25 @@ public class Activation {
     return this.below;
   }
 
+  /**
+   * Returns the descriptor of the invocation that created this activation.
+   */
+  public RInvocationDescriptor getDescriptor() {
+    return this.descriptor;
+  }
+
   /**
    * Returns the number of arguments passed to this invocation.
    */
   public int getArgumentCount() {
-    return this.descriptor.getArgumentCount();
+    return this.argumentCount;
   }
 
   /**
    * Returns the index'th argument to this call.
    */
   public IValue getArgument(int index) {
-    Stack<IValue> outer = below.getStack();
-    return outer.get(outer.size() - this.descriptor.getArgumentCount() + index);
+    return owner.stack[fp - argumentCount + index];
   }
 
 }
@@ -11,6 +11,8 @@ import org.ne.utrino.util.Factory;
 import org.ne.utrino.value.ITagValue;
 import org.ne.utrino.value.IValue;
 import org.ne.utrino.value.RContext;
+import org.ne.utrino.value.RKey;
+import org.ne.utrino.value.RLambda;
 
 /**
  * Assembler for building syntax trees into bytecode.
@@ -19,15 +21,24 @@ public class Assembler {
 
   private final Signature signature;
   private final RContext context;
+  private final boolean isOptimizing;
   private final List<Integer> instrs = Factory.newArrayList();
   private final Map<IValue, Integer> constantMap = Factory.newHashMap();
   private final List<IValue> constants = Factory.newArrayList();
   private int stackHeight = 0;
+  private int maxStackHeight = 0;
+  private int inlineCacheCount = 0;
+  private int lastInvokeOffset = -1;
   private final Map<ISymbol, Integer> locals = Factory.newHashMap();
 
   public Assembler(Signature signature, RContext context) {
+    this(signature, context, Optimizer.kEnabledByDefault);
+  }
+
+  public Assembler(Signature signature, RContext context, boolean isOptimizing) {
     this.signature = signature;
     this.context = context;
+    this.isOptimizing = isOptimizing;
   }
 
   /**
@@ -37,6 +48,13 @@ public class Assembler {
     return this.context;
   }
 
+  /**
+   * Is the code generated through this assembler optimized?
+   */
+  public boolean isOptimizing() {
+    return this.isOptimizing;
+  }
+
   /**
    * Returns the current stack height.
    */
@@ -50,7 +68,7 @@ public class Assembler {
   public void push(IValue value) {
     int index = registerConstant(value);
     write(Opcode.PUSH, index);
-    stackHeight++;
+    adjustStackHeight(1);
   }
 
   /**
@@ -83,8 +101,20 @@ public class Assembler {
    */
   public void invoke(RInvocationDescriptor desc) {
     int index = registerConstant(desc);
-    write(Opcode.INVOKE, index);
-    stackHeight -= (desc.getArgumentCount() - 1);
+    lastInvokeOffset = instrs.size();
+    write(Opcode.INVOKE, index, inlineCacheCount++);
+    adjustStackHeight(1 - desc.getArgumentCount());
+  }
+
+  /**
+   * Writes an invocation instruction that performs the given intrinsic when
+   * the receiver and argument are integers and otherwise invokes the method
+   * like a plain invocation would.
+   */
+  public void invokeIntrinsic(Intrinsic intrinsic, RInvocationDescriptor desc) {
+    int index = registerConstant(desc);
+    write(intrinsic.getOpcode(), index, inlineCacheCount++);
+    adjustStackHeight(1 - desc.getArgumentCount());
   }
 
   /**
@@ -101,6 +131,7 @@ public class Assembler {
   public void nathive(IValue handler) {
     int index = registerConstant(handler);
     write(Opcode.NATIVE, index);
+    adjustStackHeight(1);
   }
 
   /**
@@ -109,7 +140,7 @@ public class Assembler {
    */
   public void popBelow() {
     write(Opcode.POP_BELOW);
-    stackHeight--;
+    adjustStackHeight(-1);
   }
 
   /**
@@ -117,7 +148,7 @@ public class Assembler {
    */
   public void readLocal(int index) {
     write(Opcode.LOCAL, index);
-    stackHeight++;
+    adjustStackHeight(1);
   }
 
   /**
@@ -126,7 +157,34 @@ public class Assembler {
   public void readArgument(ITagValue tag) {
     int index = signature.getIndexForTag(tag);
     write(Opcode.ARGUMENT, index);
-    stackHeight++;
+    adjustStackHeight(1);
+  }
+
+  /**
+   * Reads the value with the given index captured by the lambda whose
+   * method this code belongs to.
+   */
+  public void readCaptured(int index) {
+    write(Opcode.CAPTURED, signature.getIndexForTag(RKey.THIS), index);
+    adjustStackHeight(1);
+  }
+
+  /**
+   * Writes an instruction that pops the given number of values and pushes a
+   * copy of the given lambda that has captured them.
+   */
+  public void newLambda(RLambda prototype, int captureCount) {
+    int index = registerConstant(prototype);
+    write(Opcode.NEW_LAMBDA, index, captureCount);
+    adjustStackHeight(1 - captureCount);
+  }
+
+  /**
+   * Records that the stack height changes by the given amount.
+   */
+  private void adjustStackHeight(int delta) {
+    stackHeight += delta;
+    maxStackHeight = Math.max(maxStackHeight, stackHeight);
   }
 
   /**
@@ -139,13 +197,31 @@ public class Assembler {
   }
 
   /**
-   * Writes the postscript that ends this code.
+   * Writes the postscript that ends this code. If the last thing the code
+   * does is an invocation whose result is returned, possibly after dropping
+   * locals, the invocation becomes a tail invocation.
    */
   public void close() {
     Assert.equals(1, stackHeight);
+    if (isInTailPosition(lastInvokeOffset))
+      instrs.set(lastInvokeOffset, Opcode.TAIL_INVOKE.getValue());
     write(Opcode.IMPLICIT_RETURN);
   }
 
+  /**
+   * Returns true if the instruction at the given offset is followed only by
+   * instructions that pop values below the top of the stack.
+   */
+  private boolean isInTailPosition(int offset) {
+    if (offset < 0)
+      return false;
+    for (int i = offset + Opcode.INVOKE.getLength(); i < instrs.size(); i++) {
+      if (instrs.get(i) != Opcode.kPopIntermediate)
+        return false;
+    }
+    return true;
+  }
+
   /**
    * Registers a value as a constant that can be accessed from opcodes.
    */
@@ -160,14 +236,17 @@ public class Assembler {
   }
 
   /**
-   * Returns a code block containing the code generated through this assembler.
+   * Returns a code block containing the code generated through this assembler,
+   * optimized if this assembler is optimizing.
    */
   public CodeBlock toCodeBlock() {
     int[] code = new int[instrs.size()];
     for (int i = 0; i < instrs.size(); i++)
       code[i] = instrs.get(i);
     IValue[] constants = this.constants.toArray(new IValue[this.constants.size()]);
-    return new CodeBlock(context, code, constants);
+    if (isOptimizing)
+      return Optimizer.optimize(context, code, constants, inlineCacheCount, maxStackHeight);
+    return new CodeBlock(context, code, constants, inlineCacheCount, maxStackHeight);
   }
 
 }
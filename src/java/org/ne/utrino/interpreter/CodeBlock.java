@@ -1,21 +1,47 @@
 package org.ne.utrino.interpreter;
 
+import java.util.Arrays;
+import java.util.List;
+
+import org.ne.utrino.plankton.EncodingError;
+import org.ne.utrino.plankton.IPlanktonDatable;
+import org.ne.utrino.plankton.IPlanktonFactory;
+import org.ne.utrino.plankton.ISeed;
+import org.ne.utrino.runtime.CodeCache;
+import org.ne.utrino.util.Factory;
 import org.ne.utrino.value.IValue;
 import org.ne.utrino.value.RContext;
 
 /**
  * Executable code block.
  */
-public class CodeBlock {
+public class CodeBlock implements IPlanktonDatable {
 
   private final RContext context;
   private final int[] code;
   private final IValue[] constants;
+  private final InlineCache[] inlineCaches;
+  private final int maxStackHeight;
+  private volatile Handler[] handlers;
+  private volatile CompiledBlock compiled;
+  private volatile boolean isNotCompilable = false;
+
+  /**
+   * The number of times this code has been activated. Threads running the
+   * same code race on it without synchronization; that's benign since all it
+   * decides is roughly when to compile, and a lost update only delays that.
+   */
+  private int activationCount = 0;
 
-  public CodeBlock(RContext context, int[] code, IValue[] constants) {
+  public CodeBlock(RContext context, int[] code, IValue[] constants,
+      int inlineCacheCount, int maxStackHeight) {
     this.context = context;
     this.code = code;
     this.constants = constants;
+    this.maxStackHeight = maxStackHeight;
+    this.inlineCaches = new InlineCache[inlineCacheCount];
+    for (int i = 0; i < inlineCacheCount; i++)
+      this.inlineCaches[i] = new InlineCache();
   }
 
   /**
@@ -32,6 +58,64 @@ public class CodeBlock {
     return this.constants;
   }
 
+  /**
+   * Returns the max number of values this code has on the stack at any point,
+   * not counting arguments.
+   */
+  public int getMaxStackHeight() {
+    return this.maxStackHeight;
+  }
+
+  /**
+   * Returns the inline caches for the invocation sites in this code.
+   */
+  public InlineCache[] getInlineCaches() {
+    return this.inlineCaches;
+  }
+
+  /**
+   * Returns the decoded form of this code, decoding it the first time it is
+   * asked for. Decoding is deterministic so if two threads race to do it
+   * either result will do.
+   */
+  Handler[] getHandlers() {
+    Handler[] result = this.handlers;
+    if (result == null) {
+      result = Handler.decode(this);
+      this.handlers = result;
+    }
+    return result;
+  }
+
+  /**
+   * Counts an activation of this code and returns its compiled form, null if
+   * it should be interpreted. The code is compiled once it has been activated
+   * the given number of times, never if the threshold is nonpositive. Like
+   * decoding, several threads may race to compile it. Nothing is compiled
+   * while profiling.
+   */
+  CompiledBlock countActivation(int threshold) {
+    CompiledBlock result = this.compiled;
+    if (result != null || isNotCompilable || Profiler.kEnabled)
+      return result;
+    if (threshold > 0 && ++activationCount >= threshold) {
+      result = JvmCompiler.compile(this);
+      if (result == null) {
+        isNotCompilable = true;
+      } else {
+        this.compiled = result;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns true if this code has been compiled.
+   */
+  public boolean isCompiled() {
+    return this.compiled != null;
+  }
+
   /**
    * Returns the context in which this code runs.
    */
@@ -39,4 +123,26 @@ public class CodeBlock {
     return this.context;
   }
 
+  /**
+   * Returns a plankton representation of this code. The context isn't
+   * included, it is supplied again when the code is restored. Code that
+   * refers to values that can't be stored, like natives, can't be stored
+   * either.
+   */
+  @Override
+  public ISeed toPlanktonData(IPlanktonFactory factory) {
+    List<Integer> codeList = Factory.newArrayList();
+    for (int value : code)
+      codeList.add(value);
+    for (IValue constant : constants) {
+      if (!(constant instanceof IPlanktonDatable))
+        throw new EncodingError(String.valueOf(constant));
+    }
+    return factory.newSeed().setHeader(CodeCache.kCodeBlock).setPayload(factory.newMap()
+        .set("code", codeList)
+        .set("constants", Factory.newArrayList(Arrays.asList(constants)))
+        .set("inlineCacheCount", inlineCaches.length)
+        .set("maxStackHeight", maxStackHeight));
+  }
+
 }
@@ -0,0 +1,19 @@
+package org.ne.utrino.interpreter;
+
+import org.ne.utrino.value.IValue;
+
+/**
+ * A code block that has been compiled to jvm bytecode by the
+ * {@link JvmCompiler}. The concrete classes are generated at runtime.
+ */
+abstract class CompiledBlock {
+
+  /**
+   * Executes the block in the given interpreter's current activation, which
+   * must be one executing the block this was compiled from. When this returns
+   * the result is the only value in the activation, just as if it had been
+   * interpreted up to its final return.
+   */
+  public abstract void run(Interpreter inter, IValue[] constants, InlineCache[] caches);
+
+}
@@ -0,0 +1,384 @@
+package org.ne.utrino.interpreter;
+
+import java.util.List;
+
+import org.ne.utrino.ast.Invocation.RInvocationDescriptor;
+import org.ne.utrino.runtime.RControlMethod;
+import org.ne.utrino.runtime.RNativeMethod;
+import org.ne.utrino.util.Factory;
+import org.ne.utrino.value.IValue;
+import org.ne.utrino.value.RInteger;
+import org.ne.utrino.value.RLambda;
+
+/**
+ * A single pre-decoded instruction. Decoding turns the bytecode of a block
+ * into an array of handlers, one per instruction, with the operands already
+ * resolved so executing an instruction is a single virtual call.
+ */
+abstract class Handler {
+
+  /**
+   * Returned by handlers that have changed the current activation, in which
+   * case the interpreter has to reload its handlers and position.
+   */
+  public static final int kReload = -1;
+
+  /**
+   * Returned when the bottom activation has returned, leaving the result on
+   * top of the stack.
+   */
+  public static final int kDone = -2;
+
+  /**
+   * Executes this instruction, which is at the given index, in the given
+   * interpreter. Returns the index of the next instruction to execute or one
+   * of the special values above.
+   */
+  public abstract int execute(Interpreter inter, int index);
+
+  /**
+   * Returns the opcode of the instruction this handler executes.
+   */
+  public abstract Opcode getOpcode();
+
+  private static class Push extends Handler {
+
+    private final IValue value;
+
+    public Push(IValue value) {
+      this.value = value;
+    }
+
+    @Override
+    public Opcode getOpcode() {
+      return Opcode.PUSH;
+    }
+
+    @Override
+    public int execute(Interpreter inter, int index) {
+      inter.stack[inter.sp++] = value;
+      return index + 1;
+    }
+
+  }
+
+  private static class Invoke extends Handler {
+
+    private final RInvocationDescriptor desc;
+    private final InlineCache cache;
+
+    public Invoke(RInvocationDescriptor desc, InlineCache cache) {
+      this.desc = desc;
+      this.cache = cache;
+    }
+
+    @Override
+    public Opcode getOpcode() {
+      return Opcode.INVOKE;
+    }
+
+    @Override
+    public int execute(Interpreter inter, int index) {
+      inter.invoke(desc, cache, index + 1);
+      return kReload;
+    }
+
+  }
+
+  private static class TailInvoke extends Handler {
+
+    private final RInvocationDescriptor desc;
+    private final InlineCache cache;
+
+    public TailInvoke(RInvocationDescriptor desc, InlineCache cache) {
+      this.desc = desc;
+      this.cache = cache;
+    }
+
+    @Override
+    public Opcode getOpcode() {
+      return Opcode.TAIL_INVOKE;
+    }
+
+    @Override
+    public int execute(Interpreter inter, int index) {
+      inter.tailInvoke(desc, cache);
+      return kReload;
+    }
+
+  }
+
+  /**
+   * Performs an integer intrinsic, falling back to a call if it doesn't
+   * apply.
+   */
+  private static class IntegerIntrinsic extends Handler {
+
+    private final Intrinsic intrinsic;
+    private final RInvocationDescriptor desc;
+    private final InlineCache cache;
+
+    public IntegerIntrinsic(Intrinsic intrinsic, RInvocationDescriptor desc, InlineCache cache) {
+      this.intrinsic = intrinsic;
+      this.desc = desc;
+      this.cache = cache;
+    }
+
+    @Override
+    public Opcode getOpcode() {
+      return intrinsic.getOpcode();
+    }
+
+    @Override
+    public int execute(Interpreter inter, int index) {
+      IValue[] stack = inter.stack;
+      int sp = inter.sp;
+      IValue self = stack[sp - 3];
+      IValue arg = stack[sp - 1];
+      if (self instanceof RInteger && arg instanceof RInteger
+          && inter.isIntrinsicValid(intrinsic, desc, cache)) {
+        stack[sp - 3] = intrinsic.apply(((RInteger) self).getValue(),
+            ((RInteger) arg).getValue());
+        inter.sp = sp - 2;
+        return index + 1;
+      } else {
+        inter.invoke(desc, cache, index + 1);
+        return kReload;
+      }
+    }
+
+  }
+
+  private static class ImplicitReturn extends Handler {
+
+    @Override
+    public Opcode getOpcode() {
+      return Opcode.IMPLICIT_RETURN;
+    }
+
+    @Override
+    public int execute(Interpreter inter, int index) {
+      return inter.returnFromActivation() ? kDone : kReload;
+    }
+
+  }
+
+  private static class Native extends Handler {
+
+    private final RNativeMethod method;
+
+    public Native(RNativeMethod method) {
+      this.method = method;
+    }
+
+    @Override
+    public Opcode getOpcode() {
+      return Opcode.NATIVE;
+    }
+
+    @Override
+    public int execute(Interpreter inter, int index) {
+      if (Profiler.kEnabled)
+        Profiler.countNative(method);
+      IValue value = method.invoke(inter.getCurrentActivation(), null);
+      inter.stack[inter.sp++] = value;
+      return inter.returnFromActivation() ? kDone : kReload;
+    }
+
+  }
+
+  private static class Control extends Handler {
+
+    private final RControlMethod method;
+
+    public Control(RControlMethod method) {
+      this.method = method;
+    }
+
+    @Override
+    public Opcode getOpcode() {
+      return Opcode.CONTROL;
+    }
+
+    @Override
+    public int execute(Interpreter inter, int index) {
+      if (Profiler.kEnabled)
+        Profiler.countNative(method);
+      Activation frame = inter.getCurrentActivation();
+      frame.setPc(index + 1);
+      method.invoke(frame, inter);
+      return kReload;
+    }
+
+  }
+
+  private static class PopBelow extends Handler {
+
+    @Override
+    public Opcode getOpcode() {
+      return Opcode.POP_BELOW;
+    }
+
+    @Override
+    public int execute(Interpreter inter, int index) {
+      IValue[] stack = inter.stack;
+      int sp = inter.sp;
+      stack[sp - 2] = stack[sp - 1];
+      inter.sp = sp - 1;
+      return index + 1;
+    }
+
+  }
+
+  private static class Local extends Handler {
+
+    private final int offset;
+
+    public Local(int offset) {
+      this.offset = offset;
+    }
+
+    @Override
+    public Opcode getOpcode() {
+      return Opcode.LOCAL;
+    }
+
+    @Override
+    public int execute(Interpreter inter, int index) {
+      inter.stack[inter.sp++] = inter.stack[inter.fp + offset];
+      return index + 1;
+    }
+
+  }
+
+  private static class Argument extends Handler {
+
+    private final int argIndex;
+
+    public Argument(int argIndex) {
+      this.argIndex = argIndex;
+    }
+
+    @Override
+    public Opcode getOpcode() {
+      return Opcode.ARGUMENT;
+    }
+
+    @Override
+    public int execute(Interpreter inter, int index) {
+      inter.stack[inter.sp++] = inter.getCurrentActivation().getArgument(argIndex);
+      return index + 1;
+    }
+
+  }
+
+  private static class Captured extends Handler {
+
+    private final int argIndex;
+    private final int captureIndex;
+
+    public Captured(int argIndex, int captureIndex) {
+      this.argIndex = argIndex;
+      this.captureIndex = captureIndex;
+    }
+
+    @Override
+    public Opcode getOpcode() {
+      return Opcode.CAPTURED;
+    }
+
+    @Override
+    public int execute(Interpreter inter, int index) {
+      RLambda lambda = (RLambda) inter.getCurrentActivation().getArgument(argIndex);
+      inter.stack[inter.sp++] = lambda.getCapture(captureIndex);
+      return index + 1;
+    }
+
+  }
+
+  private static class NewLambda extends Handler {
+
+    private final RLambda prototype;
+    private final int count;
+
+    public NewLambda(RLambda prototype, int count) {
+      this.prototype = prototype;
+      this.count = count;
+    }
+
+    @Override
+    public Opcode getOpcode() {
+      return Opcode.NEW_LAMBDA;
+    }
+
+    @Override
+    public int execute(Interpreter inter, int index) {
+      IValue lambda = inter.newLambda(prototype, count, inter.sp);
+      inter.stack[inter.sp++] = lambda;
+      return index + 1;
+    }
+
+  }
+
+  /**
+   * Decodes the given block into an array of handlers, one per instruction.
+   */
+  public static Handler[] decode(CodeBlock block) {
+    int[] code = block.getCode();
+    IValue[] constants = block.getConstants();
+    InlineCache[] caches = block.getInlineCaches();
+    List<Handler> result = Factory.newArrayList();
+    int pc = 0;
+    while (pc < code.length) {
+      Opcode opcode = Opcode.of(code[pc]);
+      Handler handler;
+      switch (opcode) {
+        case PUSH:
+          handler = new Push(constants[code[pc + 1]]);
+          break;
+        case INVOKE:
+          handler = new Invoke((RInvocationDescriptor) constants[code[pc + 1]],
+              caches[code[pc + 2]]);
+          break;
+        case TAIL_INVOKE:
+          handler = new TailInvoke((RInvocationDescriptor) constants[code[pc + 1]],
+              caches[code[pc + 2]]);
+          break;
+        case INT_ADD: case INT_SUB: case INT_EQ:
+          handler = new IntegerIntrinsic(Intrinsic.forOpcode(opcode),
+              (RInvocationDescriptor) constants[code[pc + 1]], caches[code[pc + 2]]);
+          break;
+        case IMPLICIT_RETURN:
+          handler = new ImplicitReturn();
+          break;
+        case NATIVE:
+          handler = new Native((RNativeMethod) constants[code[pc + 1]]);
+          break;
+        case CONTROL:
+          handler = new Control((RControlMethod) constants[code[pc + 1]]);
+          break;
+        case POP_BELOW:
+          handler = new PopBelow();
+          break;
+        case LOCAL:
+          handler = new Local(code[pc + 1]);
+          break;
+        case ARGUMENT:
+          handler = new Argument(code[pc + 1]);
+          break;
+        case CAPTURED:
+          handler = new Captured(code[pc + 1], code[pc + 2]);
+          break;
+        case NEW_LAMBDA:
+          handler = new NewLambda((RLambda) constants[code[pc + 1]], code[pc + 2]);
+          break;
+        default:
+          throw new RuntimeException("Unknown opcode " + opcode);
+      }
+      result.add(handler);
+      pc += opcode.getLength();
+    }
+    return result.toArray(new Handler[result.size()]);
+  }
+
+}
@@ -0,0 +1,226 @@
+package org.ne.utrino.interpreter;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.ne.utrino.runtime.IInvocation;
+import org.ne.utrino.runtime.MethodSpace;
+import org.ne.utrino.runtime.RNativeMethod;
+import org.ne.utrino.value.IValue;
+import org.ne.utrino.value.RInteger;
+import org.ne.utrino.value.RKey;
+import org.ne.utrino.value.RMethod;
+
+/**
+ * A polymorphic inline cache attached to a single invocation site. The result
+ * of a lookup is determined by the species of the arguments except for the
+ * arguments some method in the space guards by identity, so the cache keys
+ * each entry on the species of the arguments and on the value itself of the
+ * identity guarded ones.
+ */
+public class InlineCache {
+
+  /**
+   * The max number of argument vectors a site will remember. Beyond that the
+   * site is megamorphic and misses go straight to the method space.
+   */
+  private static final int kMaxEntries = 4;
+
+  /**
+   * A single remembered lookup.
+   */
+  private static class Entry {
+
+    private final Object[] keys;
+    private final boolean[] byValue;
+    private final RMethod method;
+
+    public Entry(Object[] keys, boolean[] byValue, RMethod method) {
+      this.keys = keys;
+      this.byValue = byValue;
+      this.method = method;
+    }
+
+    /**
+     * Does the given invocation look the same as the one this entry was
+     * created from, as far as method lookup is concerned?
+     */
+    public boolean matches(IInvocation args) {
+      Object[] keys = this.keys;
+      if (keys.length != args.getEntryCount())
+        return false;
+      for (int i = 0; i < keys.length; i++) {
+        IValue value = args.getValue(i);
+        if (byValue[i]) {
+          if (!((IValue) keys[i]).isIdentical(value))
+            return false;
+        } else if (keys[i] != value.getSpecies()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+  }
+
+  private static final Entry[] NO_ENTRIES = new Entry[0];
+
+  private static final int kIntrinsicUnknown = 0;
+  private static final int kIntrinsicValid = 1;
+  private static final int kIntrinsicInvalid = 2;
+
+  private static final LongAdder totalHits = new LongAdder();
+  private static final LongAdder totalMisses = new LongAdder();
+
+  private volatile Entry[] entries = NO_ENTRIES;
+  private volatile int intrinsicState = kIntrinsicUnknown;
+
+  // These are updated without synchronization so under contention they're
+  // approximate. The totals are exact.
+  private int hitCount = 0;
+  private int missCount = 0;
+
+  /**
+   * Returns the method to call for the given invocation, using the cache if
+   * possible and otherwise looking it up in the given method space.
+   */
+  public RMethod lookupMethod(MethodSpace space, IInvocation args) {
+    Entry[] current = this.entries;
+    for (int i = 0; i < current.length; i++) {
+      Entry entry = current[i];
+      if (entry.matches(args)) {
+        hitCount++;
+        totalHits.increment();
+        return entry.method;
+      }
+    }
+    missCount++;
+    totalMisses.increment();
+    RMethod result = space.lookupMethod(args);
+    if (result != null && current.length < kMaxEntries)
+      addEntry(current, newEntry(space, args, result));
+    return result;
+  }
+
+  /**
+   * Has it been determined whether the intrinsic of this site is valid?
+   */
+  public boolean isIntrinsicResolved() {
+    return this.intrinsicState != kIntrinsicUnknown;
+  }
+
+  /**
+   * Returns true if it has been determined that the interpreter can perform
+   * this site's intrinsic directly.
+   */
+  public boolean isIntrinsicValid() {
+    return this.intrinsicState == kIntrinsicValid;
+  }
+
+  /**
+   * Works out whether invocations at this site with integer receiver and
+   * argument always end up in the native method that performs the given
+   * intrinsic, in which case the interpreter can perform it directly. This
+   * is done by looking up the method for the given invocation, which must
+   * have an integer receiver and argument. The answer is remembered and
+   * returned.
+   */
+  public boolean resolveIntrinsic(MethodSpace space, IInvocation args, Intrinsic intrinsic) {
+    boolean result = canUseIntrinsic(space, lookupMethod(space, args), intrinsic);
+    this.intrinsicState = result ? kIntrinsicValid : kIntrinsicInvalid;
+    return result;
+  }
+
+  /**
+   * Returns true if integer invocations that resolve to the given method in
+   * the given space can be performed using the given intrinsic.
+   */
+  static boolean canUseIntrinsic(MethodSpace space, RMethod method, Intrinsic intrinsic) {
+    // If some method singles out particular integers then the species alone
+    // doesn't decide which method gets called.
+    if (space.isIdentityGuarded(RKey.THIS) || space.isIdentityGuarded(RInteger.of(0)))
+      return false;
+    if (method == null || method.getCode() == null)
+      return false;
+    int[] code = method.getCode().getCode();
+    if (code.length < 2 || code[0] != Opcode.kNative)
+      return false;
+    IValue handler = method.getCode().getConstants()[code[1]];
+    return (handler instanceof RNativeMethod)
+        && ((RNativeMethod) handler).getIntrinsic() == intrinsic;
+  }
+
+  /**
+   * Creates a cache entry that matches invocations that look like the given
+   * one.
+   */
+  private static Entry newEntry(MethodSpace space, IInvocation args, RMethod method) {
+    int count = args.getEntryCount();
+    Object[] keys = new Object[count];
+    boolean[] byValue = new boolean[count];
+    for (int i = 0; i < count; i++) {
+      IValue value = args.getValue(i);
+      if (space.isIdentityGuarded(args.getTag(i))) {
+        byValue[i] = true;
+        keys[i] = value;
+      } else {
+        keys[i] = value.getSpecies();
+      }
+    }
+    return new Entry(keys, byValue, method);
+  }
+
+  /**
+   * Adds an entry to this cache. If another thread has added an entry
+   * concurrently one of them may be lost which only costs another miss.
+   */
+  private void addEntry(Entry[] current, Entry entry) {
+    Entry[] next = Arrays.copyOf(current, current.length + 1);
+    next[current.length] = entry;
+    this.entries = next;
+  }
+
+  /**
+   * Returns the number of argument vectors this cache currently remembers.
+   */
+  public int getEntryCount() {
+    return this.entries.length;
+  }
+
+  /**
+   * Has this site seen so many different argument vectors that it no longer
+   * caches new ones?
+   */
+  public boolean isMegamorphic() {
+    return this.entries.length >= kMaxEntries;
+  }
+
+  /**
+   * Returns the number of lookups at this site that were served by the cache.
+   */
+  public int getHitCount() {
+    return this.hitCount;
+  }
+
+  /**
+   * Returns the number of lookups at this site that went to the method space.
+   */
+  public int getMissCount() {
+    return this.missCount;
+  }
+
+  /**
+   * Returns the number of cache hits across all sites.
+   */
+  public static long getTotalHitCount() {
+    return totalHits.sum();
+  }
+
+  /**
+   * Returns the number of cache misses across all sites.
+   */
+  public static long getTotalMissCount() {
+    return totalMisses.sum();
+  }
+
+}
@@ -1,6 +1,6 @@
 package org.ne.utrino.interpreter;
 
-import java.util.Stack;
+import java.util.Arrays;
 
 import org.ne.utrino.ast.Invocation.RInvocationDescriptor;
 import org.ne.utrino.runtime.IInvocation;
@@ -10,32 +10,90 @@ import org.ne.utrino.util.Assert;
 import org.ne.utrino.value.ITagValue;
 import org.ne.utrino.value.IValue;
 import org.ne.utrino.value.RContext;
+import org.ne.utrino.value.RInteger;
+import org.ne.utrino.value.RLambda;
 import org.ne.utrino.value.RMethod;
 
 /**
- * Simple bytecode interpreter.
+ * Simple bytecode interpreter. All activations share a single flat value
+ * stack, each one identified by a frame pointer into it, and activation
+ * objects are reused across calls so calling doesn't allocate.
  */
 public class Interpreter {
 
+  /**
+   * The ways the interpreter can execute code.
+   */
+  public enum Engine {
+
+    /**
+     * Switch over the bytecode of each block directly.
+     */
+    SWITCH,
+
+    /**
+     * Decode each block into handler objects the first time it is executed
+     * and then execute those.
+     */
+    DECODED
+
+  }
+
+  private static volatile Engine defaultEngine = getInitialEngine();
+
+  /**
+   * Returns the engine given by the system property, the switch engine if
+   * none is given.
+   */
+  private static Engine getInitialEngine() {
+    String name = System.getProperty("org.ne.utrino.engine");
+    return (name == null) ? Engine.SWITCH : Engine.valueOf(name.toUpperCase());
+  }
+
+  /**
+   * Sets the engine that is used by interpreters that don't ask for a
+   * particular one.
+   */
+  public static void setDefaultEngine(Engine engine) {
+    defaultEngine = Assert.notNull(engine);
+  }
+
   /**
    * Executes the given code block, returning the resulting value.
    */
   public static IValue interpret(CodeBlock block) {
-    Activation bottom = new Activation(null, null, block);
-    return new Interpreter().run(bottom);
+    return interpret(block, defaultEngine);
   }
 
   /**
-   * A runtime invocation descriptor used for method lookup.
+   * Executes the given code block using the given engine, returning the
+   * resulting value.
    */
-  private static class Invocation implements IInvocation {
+  public static IValue interpret(CodeBlock block, Engine engine) {
+    return new Interpreter(engine).run(block);
+  }
 
-    private final RInvocationDescriptor desc;
-    private final Stack<IValue> stack;
+  /**
+   * Executes the given code block using the given engine, compiling blocks
+   * after the given number of activations, and returns the resulting value.
+   */
+  public static IValue interpret(CodeBlock block, Engine engine, int jitThreshold) {
+    return new Interpreter(engine, jitThreshold).run(block);
+  }
+
+  /**
+   * A runtime invocation descriptor used for method lookup. Each interpreter
+   * has one which is reset for each lookup.
+   */
+  private class Invocation implements IInvocation {
 
-    public Invocation(RInvocationDescriptor desc, Stack<IValue> stack) {
+    private RInvocationDescriptor desc;
+    private int base;
+
+    public Invocation reset(RInvocationDescriptor desc, int base) {
       this.desc = desc;
-      this.stack = stack;
+      this.base = base;
+      return this;
     }
 
     @Override
@@ -50,127 +108,479 @@ public class Interpreter {
 
     @Override
     public IValue getValue(int index) {
-      int offset = stack.size() - getEntryCount();
-      return stack.get(offset + desc.getOrder()[index]);
+      return stack[base + desc.getOrder()[index]];
     }
 
   }
 
-  /**
-   * Returns the invocation descriptor for the invocation this frame is blocked
-   * on.
-   */
-  public static RInvocationDescriptor getDescriptor(Activation frame) {
-    int index = frame.getBlock().getCode()[frame.getPc() - 1];
-    return (RInvocationDescriptor) frame.getBlock().getConstants()[index];
-  }
+  private static final int kInitialStackSize = 256;
+  private static final int kInitialDepth = 64;
 
   /**
-   * Returns a descriptor for the invocation this activation is blocked after.
+   * How deeply runs of compiled code may nest on the jvm stack. Each non-tail
+   * invocation from compiled code runs the callee on top of its caller, so
+   * past this depth code is interpreted instead, which only grows the chain
+   * of activations.
    */
-  public static Invocation getInvocation(Activation frame) {
-    RInvocationDescriptor desc = getDescriptor(frame);
-    return new Invocation(desc, frame.getStack());
-  }
+  private static final int kMaxCompiledDepth = 128;
+
+  private final Engine engine;
+  private final int jitThreshold;
+  IValue[] stack = new IValue[kInitialStackSize];
+  int sp = 0;
+  int fp;
+  private Activation[] frames = new Activation[kInitialDepth];
+  private int depth = -1;
+  private final Invocation invocation = new Invocation();
 
   private Activation frame;
   private int[] code;
   private IValue[] constants;
+  private InlineCache[] inlineCaches;
+  private Handler[] handlers;
+
+  /**
+   * The position within the current activation. For the switch engine this
+   * is an offset into the bytecode, for the decoded engine an index into the
+   * handlers.
+   */
   private int pc;
-  private Stack<IValue> stack;
+
+  /**
+   * Set by compiled code that has made a tail invocation, which is left
+   * for {@link #runIfCompiled} to run.
+   */
+  private boolean isTailInvokePending = false;
+
+  /**
+   * The number of runs of compiled code currently on the jvm stack.
+   */
+  private int compiledDepth = 0;
+
+  public Interpreter(Engine engine) {
+    this(engine, JvmCompiler.getDefaultThreshold());
+  }
+
+  /**
+   * Creates an interpreter that compiles a block to jvm bytecode once it has
+   * been activated the given number of times, never if it is nonpositive.
+   */
+  public Interpreter(Engine engine, int jitThreshold) {
+    this.engine = engine;
+    this.jitThreshold = jitThreshold;
+  }
+
+  /**
+   * Returns a descriptor for the invocation that created the given activation.
+   * The result is only valid until the next lookup performed by this
+   * interpreter.
+   */
+  public IInvocation getInvocation(Activation frame) {
+    return invocation.reset(frame.getDescriptor(), frame.getArgumentBase());
+  }
+
+  /**
+   * Returns the activation currently executing.
+   */
+  Activation getCurrentActivation() {
+    return this.frame;
+  }
 
   /**
    * Sets the given frame as the current one. This can be used both when entering
    * and exiting frames (which becomes entering return frames).
    */
-  public void enterActivation(Activation frame) {
+  private void enterActivation(Activation frame) {
     this.frame = frame;
-    this.code = frame.getBlock().getCode();
-    this.constants = frame.getBlock().getConstants();
+    CodeBlock block = frame.getBlock();
+    if (engine == Engine.DECODED) {
+      this.handlers = block.getHandlers();
+    } else {
+      this.code = block.getCode();
+      this.constants = block.getConstants();
+      this.inlineCaches = block.getInlineCaches();
+    }
     this.pc = frame.getPc();
-    this.stack = frame.getStack();
+    this.fp = frame.getFramePointer();
+  }
+
+  /**
+   * Pushes and enters a new activation that executes the given code, called
+   * through the given descriptor from the given activation, with the values
+   * starting at the given frame pointer.
+   */
+  private void pushActivation(Activation below, RInvocationDescriptor desc,
+      CodeBlock block, int fp, boolean isEntry) {
+    depth++;
+    if (depth == frames.length)
+      frames = Arrays.copyOf(frames, 2 * frames.length);
+    Activation next = frames[depth];
+    if (next == null) {
+      next = new Activation(this);
+      frames[depth] = next;
+    }
+    next.reset(below, desc, block, fp, isEntry);
+    if (Profiler.kEnabled)
+      Profiler.recordDepth(depth + 1);
+    ensureStackCapacity(fp + block.getMaxStackHeight());
+    enterActivation(next);
+  }
+
+  /**
+   * If the code of the current activation, which has just been entered, has
+   * been compiled executes it immediately, leaving the activation at its
+   * final return, and returns true. If the compiled code tail invokes
+   * another block the callee's activation gets the same treatment here,
+   * rather than within the compiled code, so a chain of tail invocations
+   * grows neither the jvm stack nor the chain of activations. Returns false
+   * if the current activation is left to be interpreted from the start,
+   * which it also is if compiled code is already nested too deeply.
+   */
+  private boolean runIfCompiled() {
+    if (compiledDepth >= kMaxCompiledDepth)
+      return false;
+    while (true) {
+      CodeBlock block = frame.getBlock();
+      CompiledBlock compiled = block.countActivation(jitThreshold);
+      if (compiled == null)
+        return false;
+      isTailInvokePending = false;
+      compiledDepth++;
+      try {
+        compiled.run(this, block.getConstants(), block.getInlineCaches());
+      } finally {
+        compiledDepth--;
+      }
+      if (!isTailInvokePending) {
+        // Compiled blocks end in their one return so that's the last
+        // instruction.
+        this.pc = (engine == Engine.DECODED) ? handlers.length - 1 : code.length - 1;
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Replaces the current activation with one that executes the given method,
+   * passing it the same arguments the current one was passed.
+   */
+  public void replaceActivation(RMethod method) {
+    if (Profiler.kEnabled)
+      Profiler.countInvocation(method);
+    Activation current = this.frame;
+    depth--;
+    pushActivation(current.getBelow(), current.getDescriptor(), method.getCode(),
+        current.getFramePointer(), current.isEntry());
+    runIfCompiled();
+  }
+
+  /**
+   * Makes sure the value stack has room for at least the given number of
+   * values.
+   */
+  private void ensureStackCapacity(int size) {
+    if (size > stack.length)
+      stack = Arrays.copyOf(stack, Math.max(size, 2 * stack.length));
+  }
+
+  /**
+   * Invokes the method the given descriptor and cache resolve to for the
+   * arguments on top of the stack. When the method returns the current
+   * activation resumes at the given position.
+   */
+  void invoke(RInvocationDescriptor desc, InlineCache cache, int resumePc) {
+    // Block the current activation behind this invocation.
+    frame.setPc(resumePc);
+    // Resolve the method to invoke, going through the site's cache.
+    int argc = desc.getArgumentCount();
+    IInvocation invoke = invocation.reset(desc, sp - argc);
+    RContext context = frame.getBlock().getContext();
+    RMethod method = cache.lookupMethod(context.getMethodSpace(), invoke);
+    Assert.notNull(method);
+    if (Profiler.kEnabled)
+      Profiler.countInvocation(method);
+    // Push an activation.
+    pushActivation(frame, desc, method.getCode(), sp, false);
+    runIfCompiled();
   }
 
   /**
-   * Returns a new activation that executes a call to the given method, returning
-   * to the given frame when complete.
+   * Invokes the method the given descriptor and cache resolve to for the
+   * arguments on top of the stack in place of the current activation, which
+   * has nothing left to do but return the result. The arguments are moved
+   * down over the current activation's own arguments so however many tail
+   * invocations follow each other neither the value stack nor the chain of
+   * activations grows.
    */
-  public static Activation setUpCall(Activation frame, RMethod method) {
-    RInvocationDescriptor desc = getDescriptor(frame);
-    return new Activation(frame, desc, method.getCode());
+  void tailInvoke(RInvocationDescriptor desc, InlineCache cache) {
+    replaceWithInvocation(desc, cache);
+    runIfCompiled();
   }
 
   /**
-   * Continues executing at the given activation.
+   * Called from compiled code to make a tail invocation of the method the
+   * given descriptor and cache resolve to for the arguments below the given
+   * stack pointer. The callee's activation replaces the current one but
+   * isn't run until the compiled code has returned.
    */
-  private IValue run(Activation start) {
-    this.enterActivation(start);
+  void tailInvokeFromCompiled(RInvocationDescriptor desc, InlineCache cache, int sp) {
+    this.sp = sp;
+    replaceWithInvocation(desc, cache);
+    isTailInvokePending = true;
+  }
+
+  /**
+   * Replaces the current activation with one for the method the given
+   * descriptor and cache resolve to for the arguments on top of the stack.
+   */
+  private void replaceWithInvocation(RInvocationDescriptor desc, InlineCache cache) {
+    int argc = desc.getArgumentCount();
+    IInvocation invoke = invocation.reset(desc, sp - argc);
+    RContext context = frame.getBlock().getContext();
+    RMethod method = cache.lookupMethod(context.getMethodSpace(), invoke);
+    Assert.notNull(method);
+    if (Profiler.kEnabled)
+      Profiler.countInvocation(method);
+    Activation current = this.frame;
+    int base = current.getArgumentBase();
+    System.arraycopy(stack, sp - argc, stack, base, argc);
+    sp = base + argc;
+    depth--;
+    pushActivation(current.getBelow(), desc, method.getCode(), sp, current.isEntry());
+  }
+
+  /**
+   * Called from compiled code to invoke the method the given descriptor and
+   * cache resolve to for the arguments below the given stack pointer.
+   * Returns the result once the method has returned.
+   */
+  IValue callFromCompiled(RInvocationDescriptor desc, InlineCache cache, int sp) {
+    this.sp = sp;
+    int argc = desc.getArgumentCount();
+    IInvocation invoke = invocation.reset(desc, sp - argc);
+    RContext context = frame.getBlock().getContext();
+    RMethod method = cache.lookupMethod(context.getMethodSpace(), invoke);
+    Assert.notNull(method);
+    if (Profiler.kEnabled)
+      Profiler.countInvocation(method);
+    pushActivation(frame, desc, method.getCode(), sp, true);
+    if (runIfCompiled()) {
+      returnFromActivation();
+    } else {
+      runEngine();
+    }
+    return stack[this.sp - 1];
+  }
+
+  /**
+   * Called from compiled code to perform the given intrinsic on the given
+   * receiver, name, and argument, which belong below the given stack
+   * pointer, falling back to a call if the intrinsic doesn't apply.
+   */
+  IValue intrinsicFromCompiled(Intrinsic intrinsic, IValue self, IValue name, IValue arg,
+      RInvocationDescriptor desc, InlineCache cache, int sp) {
+    boolean isIntegers = self instanceof RInteger && arg instanceof RInteger;
+    if (isIntegers && cache.isIntrinsicResolved() && cache.isIntrinsicValid())
+      return intrinsic.apply(((RInteger) self).getValue(), ((RInteger) arg).getValue());
+    // Resolving or calling needs the values on the stack.
+    stack[sp - 3] = self;
+    stack[sp - 2] = name;
+    stack[sp - 1] = arg;
+    this.sp = sp;
+    if (isIntegers && isIntrinsicValid(intrinsic, desc, cache))
+      return intrinsic.apply(((RInteger) self).getValue(), ((RInteger) arg).getValue());
+    return callFromCompiled(desc, cache, sp);
+  }
+
+  /**
+   * Pops the given number of values below the given stack pointer and
+   * returns a copy of the given prototype lambda that has captured them.
+   */
+  IValue newLambda(IValue prototype, int count, int sp) {
+    IValue[] captures = Arrays.copyOfRange(stack, sp - count, sp);
+    this.sp = sp - count;
+    return ((RLambda) prototype).close(captures);
+  }
+
+  /**
+   * Returns true if the given intrinsic can be performed directly for the
+   * invocation through the given descriptor and cache, whose receiver and
+   * argument are known to be integers.
+   */
+  boolean isIntrinsicValid(Intrinsic intrinsic, RInvocationDescriptor desc,
+      InlineCache cache) {
+    if (cache.isIntrinsicResolved())
+      return cache.isIntrinsicValid();
+    IInvocation invoke = invocation.reset(desc, sp - desc.getArgumentCount());
+    RContext context = frame.getBlock().getContext();
+    return cache.resolveIntrinsic(context.getMethodSpace(), invoke, intrinsic);
+  }
+
+  /**
+   * Returns the value on top of the stack from the current activation to
+   * the one below it. Returns true if the engine should stop, either because
+   * the current activation was the bottom one, in which case the value is
+   * left where it is, or because it was an entry activation and the value
+   * is going back to compiled code.
+   */
+  boolean returnFromActivation() {
+    Assert.that(sp == fp + 1);
+    IValue value = stack[sp - 1];
+    Activation below = frame.getBelow();
+    if (below == null)
+      return true;
+    boolean isEntry = frame.isEntry();
+    sp = frame.getArgumentBase();
+    depth--;
+    enterActivation(below);
+    stack[sp++] = value;
+    return isEntry;
+  }
+
+  /**
+   * Returns the number of activation objects this interpreter has allocated,
+   * which is the greatest depth its chain of activations has had.
+   */
+  int getAllocatedActivationCount() {
+    int count = 0;
+    while (count < frames.length && frames[count] != null)
+      count++;
+    return count;
+  }
+
+  /**
+   * Executes the given block in a fresh bottom activation.
+   */
+  IValue run(CodeBlock block) {
+    pushActivation(null, null, block, 0, false);
+    runIfCompiled();
+    runEngine();
+    return stack[sp - 1];
+  }
+
+  /**
+   * Executes the current activation using this interpreter's engine until
+   * it stops.
+   */
+  private void runEngine() {
+    if (engine == Engine.DECODED) {
+      runDecoded();
+    } else {
+      runSwitch();
+    }
+  }
+
+  /**
+   * Executes the current activation's handlers until the bottom activation
+   * or an entry activation returns.
+   */
+  private void runDecoded() {
+    Handler[] handlers = this.handlers;
+    int index = this.pc;
+    while (true) {
+      if (Profiler.kEnabled)
+        Profiler.countOpcode(handlers[index].getOpcode().getValue());
+      index = handlers[index].execute(this, index);
+      if (index < 0) {
+        if (index == Handler.kDone)
+          return;
+        handlers = this.handlers;
+        index = this.pc;
+      }
+    }
+  }
+
+  /**
+   * Executes the current activation's bytecode until the bottom activation
+   * or an entry activation returns.
+   */
+  private void runSwitch() {
     while (true) {
+      if (Profiler.kEnabled)
+        Profiler.countOpcode(code[pc]);
       switch (code[pc]) {
         case Opcode.kPush: {
           IValue value = constants[code[pc + 1]];
-          stack.push(value);
+          stack[sp++] = value;
           pc += 2;
-          continue;
+          break;
         }
         case Opcode.kInvoke: {
-          // Block the current activation behind this invocation.
-          frame.setPc(pc + 2);
-          // Resolve the method to invoke.
-          Invocation invoke = getInvocation(frame);
-          RContext context = frame.getBlock().getContext();
-          RMethod method = context.getMethodSpace().lookupMethod(invoke);
-          Assert.notNull(method);
-          // Push an activation.
-          Activation nextFrame = setUpCall(frame, method);
-          enterActivation(nextFrame);
-          continue;
+          invoke((RInvocationDescriptor) constants[code[pc + 1]], inlineCaches[code[pc + 2]],
+              pc + 3);
+          break;
+        }
+        case Opcode.kTailInvoke: {
+          tailInvoke((RInvocationDescriptor) constants[code[pc + 1]], inlineCaches[code[pc + 2]]);
+          break;
+        }
+        case Opcode.kIntAdd: case Opcode.kIntSub: case Opcode.kIntEq: {
+          Intrinsic intrinsic = Intrinsic.forOpcode(Opcode.of(code[pc]));
+          IValue self = stack[sp - 3];
+          IValue arg = stack[sp - 1];
+          RInvocationDescriptor desc = (RInvocationDescriptor) constants[code[pc + 1]];
+          InlineCache cache = inlineCaches[code[pc + 2]];
+          if (self instanceof RInteger && arg instanceof RInteger
+              && isIntrinsicValid(intrinsic, desc, cache)) {
+            IValue result = intrinsic.apply(((RInteger) self).getValue(),
+                ((RInteger) arg).getValue());
+            sp -= 3;
+            stack[sp++] = result;
+            pc += 3;
+          } else {
+            invoke(desc, cache, pc + 3);
+          }
+          break;
         }
         case Opcode.kNative: {
           RNativeMethod method = (RNativeMethod) constants[code[pc + 1]];
+          if (Profiler.kEnabled)
+            Profiler.countNative(method);
           IValue value = method.invoke(frame, null);
-          stack.push(value);
+          stack[sp++] = value;
           // fallthrough
         }
         case Opcode.kImplicitReturn: {
-          Assert.equals(1, stack.size());
-          IValue value = stack.peek();
-          Activation above = frame;
-          Activation below = frame.getBelow();
-          if (below == null)
-            return value;
-          enterActivation(below);
-          for (int i = 0; i < above.getArgumentCount(); i++)
-            stack.pop();
-          stack.push(value);
-          continue;
+          if (returnFromActivation())
+            return;
+          break;
         }
         case Opcode.kControl: {
           RControlMethod method = (RControlMethod) constants[code[pc + 1]];
+          if (Profiler.kEnabled)
+            Profiler.countNative(method);
           pc += 2;
           method.invoke(frame, this);
           break;
         }
         case Opcode.kPopIntermediate: {
-          IValue value = stack.pop();
-          stack.pop();
-          stack.push(value);
+          stack[sp - 2] = stack[sp - 1];
+          sp--;
           pc += 1;
           break;
         }
         case Opcode.kLocal: {
-          IValue value = stack.get(code[pc + 1]);
-          stack.push(value);
+          stack[sp++] = stack[fp + code[pc + 1]];
           pc += 2;
           break;
         }
         case Opcode.kArgument: {
-          int index = code[pc + 1];
-          RInvocationDescriptor desc = getDescriptor(frame.getBelow());
-          stack.push(frame.getArgument(index));
+          stack[sp++] = frame.getArgument(code[pc + 1]);
           pc += 2;
           break;
         }
+        case Opcode.kCaptured: {
+          RLambda lambda = (RLambda) frame.getArgument(code[pc + 1]);
+          stack[sp++] = lambda.getCapture(code[pc + 2]);
+          pc += 3;
+          break;
+        }
+        case Opcode.kNewLambda: {
+          IValue lambda = newLambda(constants[code[pc + 1]], code[pc + 2], sp);
+          stack[sp++] = lambda;
+          pc += 3;
+          break;
+        }
         default: {
           throw new RuntimeException("Unknown opcode " + code[pc]);
         }
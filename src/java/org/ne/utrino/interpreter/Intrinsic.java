@@ -0,0 +1,82 @@
+package org.ne.utrino.interpreter;
+
+import org.ne.utrino.value.IValue;
+import org.ne.utrino.value.RBool;
+import org.ne.utrino.value.RInteger;
+
+/**
+ * Operations on integers that the interpreter can perform directly, without
+ * dispatching, when it knows that dispatch would end up in the native method
+ * that does the same thing anyway.
+ */
+public enum Intrinsic {
+
+  INT_ADD("+", Opcode.INT_ADD) {
+    @Override
+    public IValue apply(int self, int arg) {
+      return RInteger.of(self + arg);
+    }
+  },
+  INT_SUB("-", Opcode.INT_SUB) {
+    @Override
+    public IValue apply(int self, int arg) {
+      return RInteger.of(self - arg);
+    }
+  },
+  INT_EQ("==", Opcode.INT_EQ) {
+    @Override
+    public IValue apply(int self, int arg) {
+      return RBool.of(self == arg);
+    }
+  };
+
+  private static final Intrinsic[] BY_OPCODE = buildByOpcode();
+
+  private final String operator;
+  private final Opcode opcode;
+
+  private Intrinsic(String operator, Opcode opcode) {
+    this.operator = operator;
+    this.opcode = opcode;
+  }
+
+  /**
+   * Performs this operation on the given values.
+   */
+  public abstract IValue apply(int self, int arg);
+
+  /**
+   * Returns the opcode that performs this intrinsic.
+   */
+  public Opcode getOpcode() {
+    return this.opcode;
+  }
+
+  /**
+   * Returns the intrinsic performed by the given opcode, null if there is
+   * none.
+   */
+  public static Intrinsic forOpcode(Opcode opcode) {
+    return BY_OPCODE[opcode.getValue()];
+  }
+
+  private static Intrinsic[] buildByOpcode() {
+    Intrinsic[] result = new Intrinsic[Opcode.values().length];
+    for (Intrinsic intrinsic : values())
+      result[intrinsic.opcode.getValue()] = intrinsic;
+    return result;
+  }
+
+  /**
+   * Returns the intrinsic for the given binary operator, null if there is
+   * none.
+   */
+  public static Intrinsic forOperator(String operator) {
+    for (Intrinsic intrinsic : values()) {
+      if (intrinsic.operator.equals(operator))
+        return intrinsic;
+    }
+    return null;
+  }
+
+}
@@ -0,0 +1,601 @@
+package org.ne.utrino.interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.ne.utrino.ast.Invocation.RInvocationDescriptor;
+import org.ne.utrino.util.Exceptions;
+import org.ne.utrino.util.Factory;
+import org.ne.utrino.value.IValue;
+import org.ne.utrino.value.RLambda;
+
+/**
+ * Compiles hot code blocks to jvm bytecode. The generated code does what the
+ * interpreter would do for the same block but with the position of every
+ * value resolved statically, so values live in jvm locals rather than on the
+ * value stack and there is no dispatch between instructions. Invocations are
+ * passed back to the interpreter which dispatches them through the same
+ * inline caches as interpreted code. Blocks with instructions the compiler
+ * doesn't handle are left to the interpreter.
+ */
+public class JvmCompiler {
+
+  /**
+   * The default number of activations after which a block is compiled.
+   */
+  public static final int kDefaultThreshold = 1000;
+
+  private static final int DEFAULT_THRESHOLD = Integer.getInteger("org.ne.utrino.jitThreshold",
+      kDefaultThreshold);
+
+  /**
+   * Returns the number of activations after which a block is compiled for
+   * interpreters that aren't given a threshold, nonpositive if compilation is
+   * disabled. It is given by the org.ne.utrino.jitThreshold system property.
+   */
+  public static int getDefaultThreshold() {
+    return DEFAULT_THRESHOLD;
+  }
+
+  /**
+   * Compiles the given block, returning null if it can't be compiled.
+   */
+  static CompiledBlock compile(CodeBlock block) {
+    byte[] bytes = new Generator(block).generate();
+    if (bytes == null)
+      return null;
+    try {
+      Class<?> klass = MethodHandles.lookup().defineHiddenClass(bytes, true).lookupClass();
+      return (CompiledBlock) klass.getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException roe) {
+      throw Exceptions.propagate(roe);
+    }
+  }
+
+  private static final int kClassFileMagic = 0xCAFEBABE;
+  private static final int kClassFileVersion = 52;
+
+  private static final int ACC_PUBLIC = 0x0001;
+  private static final int ACC_FINAL = 0x0010;
+  private static final int ACC_SUPER = 0x0020;
+  private static final int ACC_SYNTHETIC = 0x1000;
+
+  private static final int ICONST_0 = 0x03;
+  private static final int BIPUSH = 0x10;
+  private static final int SIPUSH = 0x11;
+  private static final int LDC_W = 0x13;
+  private static final int ILOAD = 0x15;
+  private static final int ALOAD = 0x19;
+  private static final int ALOAD_0 = 0x2a;
+  private static final int AALOAD = 0x32;
+  private static final int ISTORE = 0x36;
+  private static final int ASTORE = 0x3a;
+  private static final int AASTORE = 0x53;
+  private static final int IADD = 0x60;
+  private static final int RETURN = 0xb1;
+  private static final int GETSTATIC = 0xb2;
+  private static final int GETFIELD = 0xb4;
+  private static final int PUTFIELD = 0xb5;
+  private static final int INVOKEVIRTUAL = 0xb6;
+  private static final int INVOKESPECIAL = 0xb7;
+  private static final int CHECKCAST = 0xc0;
+  private static final int WIDE = 0xc4;
+
+  private static final int CONSTANT_Utf8 = 1;
+  private static final int CONSTANT_Integer = 3;
+  private static final int CONSTANT_Class = 7;
+  private static final int CONSTANT_Fieldref = 9;
+  private static final int CONSTANT_Methodref = 10;
+  private static final int CONSTANT_NameAndType = 12;
+
+  /**
+   * The most jvm stack any instruction needs, which is the call to an
+   * intrinsic.
+   */
+  private static final int kMaxJvmStack = 12;
+
+  /**
+   * The largest method the jvm accepts.
+   */
+  private static final int kMaxCodeLength = 65535;
+
+  // Local variables of the generated run method.
+  private static final int kInterLocal = 1;
+  private static final int kConstantsLocal = 2;
+  private static final int kCachesLocal = 3;
+  private static final int kFpLocal = 4;
+  private static final int kArgumentBaseLocal = 5;
+  private static final int kFirstValueLocal = 6;
+
+  private static final String INTERPRETER = internalName(Interpreter.class);
+  private static final String ACTIVATION = internalName(Activation.class);
+  private static final String COMPILED_BLOCK = internalName(CompiledBlock.class);
+  private static final String INTRINSIC = internalName(Intrinsic.class);
+  private static final String VALUE_TYPE = typeName(IValue.class);
+  private static final String DESCRIPTOR = internalName(RInvocationDescriptor.class);
+  private static final String LAMBDA = internalName(RLambda.class);
+  private static final String VALUE_ARRAY_TYPE = "[" + VALUE_TYPE;
+  private static final String CALL_TYPE = "(" + typeName(RInvocationDescriptor.class)
+      + typeName(InlineCache.class) + "I)" + VALUE_TYPE;
+  private static final String TAIL_CALL_TYPE = "(" + typeName(RInvocationDescriptor.class)
+      + typeName(InlineCache.class) + "I)V";
+  private static final String INTRINSIC_CALL_TYPE = "(" + typeName(Intrinsic.class)
+      + VALUE_TYPE + VALUE_TYPE + VALUE_TYPE + typeName(RInvocationDescriptor.class)
+      + typeName(InlineCache.class) + "I)" + VALUE_TYPE;
+  private static final String NEW_LAMBDA_TYPE = "(" + VALUE_TYPE + "II)" + VALUE_TYPE;
+  private static final String RUN_TYPE = "(" + typeName(Interpreter.class) + VALUE_ARRAY_TYPE
+      + "[" + typeName(InlineCache.class) + ")V";
+
+  private static String internalName(Class<?> klass) {
+    return klass.getName().replace('.', '/');
+  }
+
+  private static String typeName(Class<?> klass) {
+    return "L" + internalName(klass) + ";";
+  }
+
+  /**
+   * A byte array output stream with the big-endian writes the class file
+   * format uses.
+   */
+  private static class ByteSink extends ByteArrayOutputStream {
+
+    public void u1(int value) {
+      write(value);
+    }
+
+    public void u2(int value) {
+      write(value >>> 8);
+      write(value);
+    }
+
+    public void u4(int value) {
+      u2(value >>> 16);
+      u2(value);
+    }
+
+    public void append(ByteSink that) {
+      write(that.buf, 0, that.count);
+    }
+
+  }
+
+  /**
+   * The constant pool of a class being generated. Entries are shared so
+   * asking for the same constant twice gives the same index.
+   */
+  private static class ConstantPool {
+
+    private final ByteSink entries = new ByteSink();
+    private final Map<String, Integer> indices = Factory.newHashMap();
+    private int count = 1;
+
+    private Integer lookup(String key) {
+      return indices.get(key);
+    }
+
+    private int register(String key) {
+      int index = count++;
+      indices.put(key, index);
+      return index;
+    }
+
+    public int utf8(String value) {
+      String key = "utf8 " + value;
+      Integer index = lookup(key);
+      if (index != null)
+        return index;
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      entries.u1(CONSTANT_Utf8);
+      entries.u2(bytes.length);
+      entries.write(bytes, 0, bytes.length);
+      return register(key);
+    }
+
+    public int integer(int value) {
+      String key = "int " + value;
+      Integer index = lookup(key);
+      if (index != null)
+        return index;
+      entries.u1(CONSTANT_Integer);
+      entries.u4(value);
+      return register(key);
+    }
+
+    public int classRef(String name) {
+      String key = "class " + name;
+      Integer index = lookup(key);
+      if (index != null)
+        return index;
+      int nameIndex = utf8(name);
+      entries.u1(CONSTANT_Class);
+      entries.u2(nameIndex);
+      return register(key);
+    }
+
+    private int member(int tag, String owner, String name, String type) {
+      String key = tag + " " + owner + " " + name + " " + type;
+      Integer index = lookup(key);
+      if (index != null)
+        return index;
+      int ownerIndex = classRef(owner);
+      int nameIndex = utf8(name);
+      int typeIndex = utf8(type);
+      entries.u1(CONSTANT_NameAndType);
+      entries.u2(nameIndex);
+      entries.u2(typeIndex);
+      int nameAndTypeIndex = count++;
+      entries.u1(tag);
+      entries.u2(ownerIndex);
+      entries.u2(nameAndTypeIndex);
+      return register(key);
+    }
+
+    public int fieldRef(String owner, String name, String type) {
+      return member(CONSTANT_Fieldref, owner, name, type);
+    }
+
+    public int methodRef(String owner, String name, String type) {
+      return member(CONSTANT_Methodref, owner, name, type);
+    }
+
+    public void writeTo(ByteSink out) {
+      out.u2(count);
+      out.append(entries);
+    }
+
+  }
+
+  /**
+   * Generates the class for a single block.
+   */
+  private static class Generator {
+
+    private final CodeBlock block;
+    private final ConstantPool pool = new ConstantPool();
+    private final ByteSink code = new ByteSink();
+
+    public Generator(CodeBlock block) {
+      this.block = block;
+    }
+
+    /**
+     * Returns the class file for the block, null if it can't be compiled.
+     */
+    public byte[] generate() {
+      ByteSink init = generateInit();
+      ByteSink run = generateRun();
+      if (run == null)
+        return null;
+      ByteSink out = new ByteSink();
+      out.u4(kClassFileMagic);
+      out.u2(0);
+      out.u2(kClassFileVersion);
+      int thisIndex = pool.classRef(COMPILED_BLOCK + "$Jvm");
+      int superIndex = pool.classRef(COMPILED_BLOCK);
+      int initName = pool.utf8("<init>");
+      int initType = pool.utf8("()V");
+      int runName = pool.utf8("run");
+      int runType = pool.utf8(RUN_TYPE);
+      int codeName = pool.utf8("Code");
+      pool.writeTo(out);
+      out.u2(ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC);
+      out.u2(thisIndex);
+      out.u2(superIndex);
+      out.u2(0); // interfaces
+      out.u2(0); // fields
+      out.u2(2); // methods
+      writeMethod(out, initName, initType, codeName, 1, 1, init);
+      writeMethod(out, runName, runType, codeName, kMaxJvmStack,
+          kFirstValueLocal + block.getMaxStackHeight(), run);
+      out.u2(0); // attributes
+      return out.toByteArray();
+    }
+
+    private static void writeMethod(ByteSink out, int name, int type, int codeName,
+        int maxStack, int maxLocals, ByteSink body) {
+      out.u2(ACC_PUBLIC);
+      out.u2(name);
+      out.u2(type);
+      out.u2(1);
+      out.u2(codeName);
+      out.u4(12 + body.size());
+      out.u2(maxStack);
+      out.u2(maxLocals);
+      out.u4(body.size());
+      out.append(body);
+      out.u2(0); // exception table
+      out.u2(0); // attributes
+    }
+
+    private ByteSink generateInit() {
+      ByteSink out = new ByteSink();
+      out.u1(ALOAD_0);
+      out.u1(INVOKESPECIAL);
+      out.u2(pool.methodRef(COMPILED_BLOCK, "<init>", "()V"));
+      out.u1(RETURN);
+      return out;
+    }
+
+    /**
+     * Generates the body of the run method, returning null if the block
+     * contains anything that can't be compiled.
+     */
+    private ByteSink generateRun() {
+      int[] bytecode = block.getCode();
+      IValue[] constants = block.getConstants();
+      // int fp = inter.fp;
+      loadLocal(kInterLocal);
+      code.u1(GETFIELD);
+      code.u2(pool.fieldRef(INTERPRETER, "fp", "I"));
+      storeInt(kFpLocal);
+      // int argumentBase = inter.getCurrentActivation().getArgumentBase();
+      loadLocal(kInterLocal);
+      code.u1(INVOKEVIRTUAL);
+      code.u2(pool.methodRef(INTERPRETER, "getCurrentActivation", "()L" + ACTIVATION + ";"));
+      code.u1(INVOKEVIRTUAL);
+      code.u2(pool.methodRef(ACTIVATION, "getArgumentBase", "()I"));
+      storeInt(kArgumentBaseLocal);
+      int height = 0;
+      int pc = 0;
+      boolean hasReturned = false;
+      while (pc < bytecode.length) {
+        if (hasReturned)
+          return null;
+        Opcode opcode = Opcode.of(bytecode[pc]);
+        switch (opcode) {
+          case PUSH: {
+            loadConstant(bytecode[pc + 1]);
+            storeValue(height++);
+            break;
+          }
+          case LOCAL: {
+            int index = bytecode[pc + 1];
+            if (index >= height)
+              return null;
+            loadValue(index);
+            storeValue(height++);
+            break;
+          }
+          case ARGUMENT: {
+            loadStack();
+            loadIntLocal(kArgumentBaseLocal);
+            pushInt(bytecode[pc + 1]);
+            code.u1(IADD);
+            code.u1(AALOAD);
+            storeValue(height++);
+            break;
+          }
+          case CAPTURED: {
+            // ((RLambda) stack[argumentBase + arg]).getCapture(index)
+            loadStack();
+            loadIntLocal(kArgumentBaseLocal);
+            pushInt(bytecode[pc + 1]);
+            code.u1(IADD);
+            code.u1(AALOAD);
+            code.u1(CHECKCAST);
+            code.u2(pool.classRef(LAMBDA));
+            pushInt(bytecode[pc + 2]);
+            code.u1(INVOKEVIRTUAL);
+            code.u2(pool.methodRef(LAMBDA, "getCapture", "(I)" + VALUE_TYPE));
+            storeValue(height++);
+            break;
+          }
+          case NEW_LAMBDA: {
+            int count = bytecode[pc + 2];
+            if (count > height)
+              return null;
+            for (int i = height - count; i < height; i++) {
+              loadStack();
+              loadStackIndex(i);
+              loadValue(i);
+              code.u1(AASTORE);
+            }
+            loadLocal(kInterLocal);
+            loadConstant(bytecode[pc + 1]);
+            pushInt(count);
+            loadStackIndex(height);
+            code.u1(INVOKEVIRTUAL);
+            code.u2(pool.methodRef(INTERPRETER, "newLambda", NEW_LAMBDA_TYPE));
+            height -= count;
+            storeValue(height++);
+            break;
+          }
+          case POP_BELOW: {
+            if (height < 2)
+              return null;
+            loadValue(height - 1);
+            storeValue(height - 2);
+            height--;
+            break;
+          }
+          case INVOKE: case TAIL_INVOKE: {
+            RInvocationDescriptor desc = (RInvocationDescriptor) constants[bytecode[pc + 1]];
+            int argc = desc.getArgumentCount();
+            if (argc > height)
+              return null;
+            // Flush the arguments to the value stack where the callee
+            // expects them.
+            for (int i = height - argc; i < height; i++) {
+              loadStack();
+              loadStackIndex(i);
+              loadValue(i);
+              code.u1(AASTORE);
+            }
+            loadLocal(kInterLocal);
+            loadDescriptor(bytecode[pc + 1]);
+            loadCache(bytecode[pc + 2]);
+            loadStackIndex(height);
+            code.u1(INVOKEVIRTUAL);
+            if (opcode == Opcode.TAIL_INVOKE) {
+              // The interpreter replaces this activation with the callee's
+              // and runs it once this has returned, so the jvm stack
+              // doesn't grow. Whatever follows only pops the values below
+              // the result so it is never executed.
+              code.u2(pool.methodRef(INTERPRETER, "tailInvokeFromCompiled", TAIL_CALL_TYPE));
+              code.u1(RETURN);
+              if (!isOnlyReturning(bytecode, pc + opcode.getLength()))
+                return null;
+              return code.size() > kMaxCodeLength ? null : code;
+            }
+            code.u2(pool.methodRef(INTERPRETER, "callFromCompiled", CALL_TYPE));
+            height -= argc;
+            storeValue(height++);
+            break;
+          }
+          case INT_ADD: case INT_SUB: case INT_EQ: {
+            if (height < 3)
+              return null;
+            loadLocal(kInterLocal);
+            code.u1(GETSTATIC);
+            code.u2(pool.fieldRef(INTRINSIC, Intrinsic.forOpcode(opcode).name(), "L" + INTRINSIC + ";"));
+            loadValue(height - 3);
+            loadValue(height - 2);
+            loadValue(height - 1);
+            loadDescriptor(bytecode[pc + 1]);
+            loadCache(bytecode[pc + 2]);
+            loadStackIndex(height);
+            code.u1(INVOKEVIRTUAL);
+            code.u2(pool.methodRef(INTERPRETER, "intrinsicFromCompiled", INTRINSIC_CALL_TYPE));
+            height -= 3;
+            storeValue(height++);
+            break;
+          }
+          case IMPLICIT_RETURN: {
+            if (height != 1)
+              return null;
+            // inter.stack[fp] = result; inter.sp = fp + 1;
+            loadStack();
+            loadIntLocal(kFpLocal);
+            loadValue(0);
+            code.u1(AASTORE);
+            loadLocal(kInterLocal);
+            loadIntLocal(kFpLocal);
+            pushInt(1);
+            code.u1(IADD);
+            code.u1(PUTFIELD);
+            code.u2(pool.fieldRef(INTERPRETER, "sp", "I"));
+            code.u1(RETURN);
+            hasReturned = true;
+            break;
+          }
+          default:
+            return null;
+        }
+        if (height > block.getMaxStackHeight())
+          return null;
+        pc += opcode.getLength();
+      }
+      if (!hasReturned || code.size() > kMaxCodeLength)
+        return null;
+      return code;
+    }
+
+    /**
+     * Returns true if the instructions from the given offset on do nothing
+     * but pop values below the top of the stack and return.
+     */
+    private static boolean isOnlyReturning(int[] bytecode, int pc) {
+      while (pc < bytecode.length) {
+        Opcode opcode = Opcode.of(bytecode[pc]);
+        if (opcode != Opcode.POP_BELOW && opcode != Opcode.IMPLICIT_RETURN)
+          return false;
+        pc += opcode.getLength();
+      }
+      return true;
+    }
+
+    private void pushInt(int value) {
+      if (-1 <= value && value <= 5) {
+        code.u1(ICONST_0 + value);
+      } else if (Byte.MIN_VALUE <= value && value <= Byte.MAX_VALUE) {
+        code.u1(BIPUSH);
+        code.u1(value);
+      } else if (Short.MIN_VALUE <= value && value <= Short.MAX_VALUE) {
+        code.u1(SIPUSH);
+        code.u2(value);
+      } else {
+        code.u1(LDC_W);
+        code.u2(pool.integer(value));
+      }
+    }
+
+    private void localInstruction(int opcode, int index) {
+      if (index <= 0xFF) {
+        code.u1(opcode);
+        code.u1(index);
+      } else {
+        code.u1(WIDE);
+        code.u1(opcode);
+        code.u2(index);
+      }
+    }
+
+    private void loadLocal(int index) {
+      localInstruction(ALOAD, index);
+    }
+
+    private void loadIntLocal(int index) {
+      localInstruction(ILOAD, index);
+    }
+
+    private void storeInt(int index) {
+      localInstruction(ISTORE, index);
+    }
+
+    /**
+     * Pushes the value at the given height in the activation.
+     */
+    private void loadValue(int height) {
+      loadLocal(kFirstValueLocal + height);
+    }
+
+    /**
+     * Pops a value into the given height in the activation.
+     */
+    private void storeValue(int height) {
+      localInstruction(ASTORE, kFirstValueLocal + height);
+    }
+
+    /**
+     * Pushes the interpreter's current value stack.
+     */
+    private void loadStack() {
+      loadLocal(kInterLocal);
+      code.u1(GETFIELD);
+      code.u2(pool.fieldRef(INTERPRETER, "stack", VALUE_ARRAY_TYPE));
+    }
+
+    /**
+     * Pushes the index on the value stack of the given height in the
+     * activation.
+     */
+    private void loadStackIndex(int height) {
+      loadIntLocal(kFpLocal);
+      pushInt(height);
+      code.u1(IADD);
+    }
+
+    private void loadConstant(int index) {
+      loadLocal(kConstantsLocal);
+      pushInt(index);
+      code.u1(AALOAD);
+    }
+
+    private void loadDescriptor(int index) {
+      loadConstant(index);
+      code.u1(CHECKCAST);
+      code.u2(pool.classRef(DESCRIPTOR));
+    }
+
+    private void loadCache(int index) {
+      loadLocal(kCachesLocal);
+      pushInt(index);
+      code.u1(AALOAD);
+    }
+
+  }
+
+}
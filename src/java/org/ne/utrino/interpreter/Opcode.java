@@ -5,14 +5,20 @@ package org.ne.utrino.interpreter;
  */
 public enum Opcode {
 
-  PUSH(0),
-  INVOKE(1),
-  IMPLICIT_RETURN(2),
-  NATIVE(3),
-  CONTROL(4),
-  POP_BELOW(5),
-  LOCAL(6),
-  ARGUMENT(7);
+  PUSH(0, 2),
+  INVOKE(1, 3),
+  IMPLICIT_RETURN(2, 1),
+  NATIVE(3, 2),
+  CONTROL(4, 2),
+  POP_BELOW(5, 1),
+  LOCAL(6, 2),
+  ARGUMENT(7, 2),
+  INT_ADD(8, 3),
+  INT_SUB(9, 3),
+  INT_EQ(10, 3),
+  TAIL_INVOKE(11, 3),
+  CAPTURED(12, 3),
+  NEW_LAMBDA(13, 3);
 
   public static final int kPush = 0;
   public static final int kInvoke = 1;
@@ -22,15 +28,47 @@ public enum Opcode {
   public static final int kPopIntermediate = 5;
   public static final int kLocal = 6;
   public static final int kArgument = 7;
+  public static final int kIntAdd = 8;
+  public static final int kIntSub = 9;
+  public static final int kIntEq = 10;
+  public static final int kTailInvoke = 11;
+  public static final int kCaptured = 12;
+  public static final int kNewLambda = 13;
+
+  private static final Opcode[] BY_VALUE = buildByValue();
 
   private final int value;
+  private final int length;
 
-  private Opcode(int value) {
+  private Opcode(int value, int length) {
     this.value = value;
+    this.length = length;
   }
 
   public int getValue() {
     return this.value;
   }
 
+  /**
+   * Returns the number of words an instruction with this opcode takes up,
+   * including the opcode itself.
+   */
+  public int getLength() {
+    return this.length;
+  }
+
+  /**
+   * Returns the opcode with the given value.
+   */
+  public static Opcode of(int value) {
+    return BY_VALUE[value];
+  }
+
+  private static Opcode[] buildByValue() {
+    Opcode[] result = new Opcode[values().length];
+    for (Opcode opcode : values())
+      result[opcode.value] = opcode;
+    return result;
+  }
+
 }
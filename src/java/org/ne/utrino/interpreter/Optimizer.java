@@ -0,0 +1,408 @@
+package org.ne.utrino.interpreter;
+
+import java.util.List;
+import java.util.Map;
+
+import org.ne.utrino.ast.Invocation.RInvocationDescriptor;
+import org.ne.utrino.runtime.IInvocation;
+import org.ne.utrino.runtime.MethodSpace;
+import org.ne.utrino.util.Factory;
+import org.ne.utrino.value.ITagValue;
+import org.ne.utrino.value.IValue;
+import org.ne.utrino.value.RContext;
+import org.ne.utrino.value.RInteger;
+import org.ne.utrino.value.RMethod;
+
+/**
+ * Simple optimizations on the bytecode produced by an assembler. Locals
+ * bound to constants are replaced by the constants, integer operations on
+ * constants are folded when the context guarantees they would end up in
+ * the native method anyway, locals that are never read are removed, and
+ * finally the constant pool and inline caches are compacted to only those
+ * still in use. The passes are repeated until none of them changes anything.
+ */
+public class Optimizer {
+
+  /**
+   * Is code optimized when it is assembled, unless the caller says
+   * otherwise?
+   */
+  public static final boolean kEnabledByDefault = !"false".equals(
+      System.getProperty("org.ne.utrino.optimize"));
+
+  /**
+   * A single decoded instruction.
+   */
+  private static class Instruction {
+
+    private final Opcode opcode;
+    private final int[] args;
+
+    public Instruction(Opcode opcode, int... args) {
+      this.opcode = opcode;
+      this.args = args;
+    }
+
+    public boolean isPushLike() {
+      return opcode == Opcode.PUSH || opcode == Opcode.LOCAL || opcode == Opcode.ARGUMENT
+          || opcode == Opcode.CAPTURED;
+    }
+
+  }
+
+  /**
+   * An invocation whose arguments are known values.
+   */
+  private static class ConstantInvocation implements IInvocation {
+
+    private final RInvocationDescriptor desc;
+    private final IValue[] values;
+
+    public ConstantInvocation(RInvocationDescriptor desc, IValue[] values) {
+      this.desc = desc;
+      this.values = values;
+    }
+
+    @Override
+    public int getEntryCount() {
+      return desc.getOrder().length;
+    }
+
+    @Override
+    public ITagValue getTag(int index) {
+      return desc.getTags()[desc.getOrder()[index]];
+    }
+
+    @Override
+    public IValue getValue(int index) {
+      return values[desc.getOrder()[index]];
+    }
+
+  }
+
+  private final RContext context;
+  private List<Instruction> instrs = Factory.newArrayList();
+  private final List<IValue> constants = Factory.newArrayList();
+
+  private Optimizer(RContext context, int[] code, IValue[] constants) {
+    this.context = context;
+    for (IValue constant : constants)
+      this.constants.add(constant);
+    int pc = 0;
+    while (pc < code.length) {
+      Opcode opcode = Opcode.of(code[pc]);
+      int[] args = new int[opcode.getLength() - 1];
+      System.arraycopy(code, pc + 1, args, 0, args.length);
+      instrs.add(new Instruction(opcode, args));
+      pc += opcode.getLength();
+    }
+  }
+
+  /**
+   * Returns an optimized code block with the given contents.
+   */
+  static CodeBlock optimize(RContext context, int[] code, IValue[] constants,
+      int inlineCacheCount, int maxStackHeight) {
+    Optimizer optimizer = new Optimizer(context, code, constants);
+    if (!optimizer.isOptimizable())
+      return new CodeBlock(context, code, constants, inlineCacheCount, maxStackHeight);
+    boolean changed;
+    do {
+      changed = optimizer.propagateConstants();
+      changed |= optimizer.removeDeadLocals();
+    } while (changed);
+    optimizer.markTailInvocation();
+    return optimizer.toCodeBlock();
+  }
+
+  /**
+   * Removing locals can leave an invocation in tail position that wasn't
+   * when the code was assembled, in which case it is made a tail invocation.
+   */
+  private void markTailInvocation() {
+    int i = instrs.size() - 2;
+    while (i >= 0 && instrs.get(i).opcode == Opcode.POP_BELOW)
+      i--;
+    if (i >= 0 && instrs.get(i).opcode == Opcode.INVOKE) {
+      Instruction invoke = instrs.get(i);
+      instrs.set(i, new Instruction(Opcode.TAIL_INVOKE, invoke.args));
+    }
+  }
+
+  /**
+   * Only ordinary code is optimized, not the stubs that call native methods.
+   */
+  private boolean isOptimizable() {
+    for (Instruction instr : instrs) {
+      if (instr.opcode == Opcode.NATIVE || instr.opcode == Opcode.CONTROL)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the number of values the given instruction removes from the
+   * stack.
+   */
+  private int getPopCount(Instruction instr) {
+    switch (instr.opcode) {
+      case INVOKE: case TAIL_INVOKE: case INT_ADD: case INT_SUB: case INT_EQ:
+        return getDescriptor(instr).getArgumentCount();
+      case POP_BELOW:
+        return 2;
+      case NEW_LAMBDA:
+        return instr.args[1];
+      case IMPLICIT_RETURN:
+        return 1;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * Returns the number of values the given instruction adds to the stack.
+   */
+  private static int getPushCount(Instruction instr) {
+    return (instr.opcode == Opcode.IMPLICIT_RETURN) ? 0 : 1;
+  }
+
+  private RInvocationDescriptor getDescriptor(Instruction instr) {
+    return (RInvocationDescriptor) constants.get(instr.args[0]);
+  }
+
+  /**
+   * Returns the height of the stack before each instruction, with one extra
+   * entry for the height at the end.
+   */
+  private int[] getHeights() {
+    int[] result = new int[instrs.size() + 1];
+    for (int i = 0; i < instrs.size(); i++) {
+      Instruction instr = instrs.get(i);
+      result[i + 1] = result[i] - getPopCount(instr) + getPushCount(instr);
+    }
+    return result;
+  }
+
+  private int registerConstant(IValue value) {
+    for (int i = 0; i < constants.size(); i++) {
+      if (constants.get(i).equals(value))
+        return i;
+    }
+    constants.add(value);
+    return constants.size() - 1;
+  }
+
+  /**
+   * Replaces reads of locals that hold constants with the constants
+   * themselves and folds integer operations on constants. Returns true if
+   * anything changed.
+   */
+  private boolean propagateConstants() {
+    boolean changed = false;
+    int[] heights = getHeights();
+    int maxHeight = 0;
+    for (int height : heights)
+      maxHeight = Math.max(maxHeight, height);
+    // The index of the constant held in each stack slot, -1 if unknown.
+    int[] known = new int[maxHeight + 1];
+    List<Instruction> result = Factory.newArrayList();
+    int height = 0;
+    for (Instruction instr : instrs) {
+      switch (instr.opcode) {
+        case PUSH:
+          known[height++] = instr.args[0];
+          result.add(instr);
+          break;
+        case LOCAL: {
+          int value = known[instr.args[0]];
+          known[height++] = value;
+          if (value >= 0) {
+            result.add(new Instruction(Opcode.PUSH, value));
+            changed = true;
+          } else {
+            result.add(instr);
+          }
+          break;
+        }
+        case POP_BELOW:
+          known[height - 2] = known[height - 1];
+          height--;
+          result.add(instr);
+          break;
+        case INT_ADD: case INT_SUB: case INT_EQ: {
+          IValue folded = tryFold(instr, known, height, result);
+          height -= 2;
+          if (folded == null) {
+            known[height - 1] = -1;
+            result.add(instr);
+          } else {
+            for (int i = 0; i < 3; i++)
+              result.remove(result.size() - 1);
+            int index = registerConstant(folded);
+            known[height - 1] = index;
+            result.add(new Instruction(Opcode.PUSH, index));
+            changed = true;
+          }
+          break;
+        }
+        default:
+          height += getPushCount(instr) - getPopCount(instr);
+          if (getPushCount(instr) > 0)
+            known[height - 1] = -1;
+          result.add(instr);
+          break;
+      }
+    }
+    this.instrs = result;
+    return changed;
+  }
+
+  /**
+   * If the given integer operation, executed at the given stack height, can
+   * be performed now returns the result, otherwise null. It can be performed
+   * if the receiver and argument are integer constants pushed by the last
+   * instructions emitted and the context is immutable so dispatch would
+   * always end up in the native the intrinsic performs.
+   */
+  private IValue tryFold(Instruction instr, int[] known, int height,
+      List<Instruction> emitted) {
+    if (context == null || context.getPhase().isMutable())
+      return null;
+    int size = emitted.size();
+    if (size < 3)
+      return null;
+    IValue[] values = new IValue[3];
+    for (int i = 0; i < 3; i++) {
+      Instruction push = emitted.get(size - 3 + i);
+      if (push.opcode != Opcode.PUSH || push.args[0] != known[height - 3 + i])
+        return null;
+      values[i] = constants.get(push.args[0]);
+    }
+    if (!(values[0] instanceof RInteger) || !(values[2] instanceof RInteger))
+      return null;
+    RInvocationDescriptor desc = getDescriptor(instr);
+    if (desc.getArgumentCount() != 3)
+      return null;
+    Intrinsic intrinsic = Intrinsic.forOpcode(instr.opcode);
+    MethodSpace space = context.getMethodSpace();
+    RMethod method = space.lookupMethod(new ConstantInvocation(desc, values));
+    if (!InlineCache.canUseIntrinsic(space, method, intrinsic))
+      return null;
+    return intrinsic.apply(((RInteger) values[0]).getValue(), ((RInteger) values[2]).getValue());
+  }
+
+  /**
+   * Removes locals whose value is a constant, argument or another local and
+   * that are never read, as well as reading the top value just before
+   * popping it. Returns true if anything changed.
+   */
+  private boolean removeDeadLocals() {
+    boolean changed = false;
+    int[] heights = getHeights();
+    for (int i = 0; i < instrs.size(); i++) {
+      Instruction instr = instrs.get(i);
+      // Reading the top value and then popping below it leaves the stack as
+      // it was.
+      if (instr.opcode == Opcode.LOCAL && instr.args[0] == heights[i] - 1
+          && i + 1 < instrs.size() && instrs.get(i + 1).opcode == Opcode.POP_BELOW) {
+        instrs.remove(i + 1);
+        instrs.remove(i);
+        heights = getHeights();
+        changed = true;
+        i--;
+        continue;
+      }
+      if (!instr.isPushLike())
+        continue;
+      int end = findDeadLocalEnd(i, heights);
+      if (end < 0)
+        continue;
+      // The local lives in this slot; everything pushed while it is live
+      // moves down by one.
+      int slot = heights[i];
+      for (int j = i + 1; j < end; j++) {
+        Instruction inner = instrs.get(j);
+        if (inner.opcode == Opcode.LOCAL && inner.args[0] > slot)
+          instrs.set(j, new Instruction(Opcode.LOCAL, inner.args[0] - 1));
+      }
+      instrs.remove(end);
+      instrs.remove(i);
+      heights = getHeights();
+      changed = true;
+      i--;
+    }
+    return changed;
+  }
+
+  /**
+   * If the value pushed by the instruction at the given index is a local
+   * that is never read, returns the index of the instruction that pops it,
+   * otherwise -1.
+   */
+  private int findDeadLocalEnd(int start, int[] heights) {
+    int slot = heights[start];
+    for (int j = start + 1; j < instrs.size(); j++) {
+      Instruction instr = instrs.get(j);
+      if (instr.opcode == Opcode.LOCAL && instr.args[0] == slot)
+        return -1;
+      // The lowest slot this instruction touches.
+      int floor = heights[j] - getPopCount(instr);
+      if (floor <= slot) {
+        boolean isPoppedBelow = (instr.opcode == Opcode.POP_BELOW) && (floor == slot);
+        return isPoppedBelow ? j : -1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns a code block for the current instructions, with only the
+   * constants and inline caches they use.
+   */
+  private CodeBlock toCodeBlock() {
+    List<Integer> code = Factory.newArrayList();
+    List<IValue> usedConstants = Factory.newArrayList();
+    Map<Integer, Integer> constantIndices = Factory.newHashMap();
+    int inlineCacheCount = 0;
+    int height = 0;
+    int maxStackHeight = 0;
+    for (Instruction instr : instrs) {
+      code.add(instr.opcode.getValue());
+      switch (instr.opcode) {
+        case PUSH:
+          code.add(remapConstant(instr.args[0], usedConstants, constantIndices));
+          break;
+        case INVOKE: case TAIL_INVOKE: case INT_ADD: case INT_SUB: case INT_EQ:
+          code.add(remapConstant(instr.args[0], usedConstants, constantIndices));
+          code.add(inlineCacheCount++);
+          break;
+        case NEW_LAMBDA:
+          code.add(remapConstant(instr.args[0], usedConstants, constantIndices));
+          code.add(instr.args[1]);
+          break;
+        default:
+          for (int arg : instr.args)
+            code.add(arg);
+          break;
+      }
+      height += getPushCount(instr) - getPopCount(instr);
+      maxStackHeight = Math.max(maxStackHeight, height);
+    }
+    int[] result = new int[code.size()];
+    for (int i = 0; i < result.length; i++)
+      result[i] = code.get(i);
+    IValue[] pool = usedConstants.toArray(new IValue[usedConstants.size()]);
+    return new CodeBlock(context, result, pool, inlineCacheCount, maxStackHeight);
+  }
+
+  private int remapConstant(int index, List<IValue> used, Map<Integer, Integer> indices) {
+    Integer result = indices.get(index);
+    if (result == null) {
+      result = used.size();
+      used.add(constants.get(index));
+      indices.put(index, result);
+    }
+    return result;
+  }
+
+}
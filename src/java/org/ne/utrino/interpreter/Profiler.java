@@ -0,0 +1,224 @@
+package org.ne.utrino.interpreter;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.ne.utrino.runtime.NativeMethods;
+import org.ne.utrino.util.Exceptions;
+import org.ne.utrino.util.Factory;
+import org.ne.utrino.value.IValue;
+import org.ne.utrino.value.RMethod;
+
+/**
+ * Counts what the interpreter spends its time on. Profiling is enabled by
+ * setting the org.ne.utrino.profile system property to true; the flag is a
+ * constant so when it is off the calls that record events are compiled away.
+ * While profiling no code is compiled to jvm bytecode so every instruction
+ * is counted. When enabled the counters are also registered over JMX.
+ */
+public class Profiler implements ProfilerMXBean {
+
+  /**
+   * Is profiling enabled?
+   */
+  public static final boolean kEnabled = Boolean.getBoolean("org.ne.utrino.profile");
+
+  /**
+   * The name under which the profiler is registered with JMX.
+   */
+  public static final String kObjectName = "org.ne.utrino:type=Profiler";
+
+  private static final Profiler INSTANCE = new Profiler();
+
+  static {
+    if (kEnabled)
+      INSTANCE.register();
+  }
+
+  private final AtomicLongArray opcodeCounts = new AtomicLongArray(Opcode.values().length);
+  private final ConcurrentMap<RMethod, LongAdder> invocations = new ConcurrentHashMap<RMethod, LongAdder>();
+  private final ConcurrentMap<IValue, LongAdder> nativeCalls = new ConcurrentHashMap<IValue, LongAdder>();
+  private final LongAdder lookupCount = new LongAdder();
+  private final LongAdder lookupNanos = new LongAdder();
+  private final AtomicInteger maxDepth = new AtomicInteger(0);
+
+  private Profiler() { }
+
+  /**
+   * Returns the profiler.
+   */
+  public static Profiler get() {
+    return INSTANCE;
+  }
+
+  private void register() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(kObjectName));
+    } catch (JMException jme) {
+      throw Exceptions.propagate(jme);
+    }
+  }
+
+  /**
+   * Records that an instruction with the given opcode has been executed.
+   */
+  public static void countOpcode(int opcode) {
+    INSTANCE.opcodeCounts.incrementAndGet(opcode);
+  }
+
+  /**
+   * Records that the given method has been invoked.
+   */
+  public static void countInvocation(RMethod method) {
+    increment(INSTANCE.invocations, method);
+  }
+
+  /**
+   * Records that the given native or control method has been called.
+   */
+  public static void countNative(IValue method) {
+    increment(INSTANCE.nativeCalls, method);
+  }
+
+  /**
+   * Records a method lookup that took the given number of nanoseconds.
+   */
+  public static void recordLookup(long nanos) {
+    INSTANCE.lookupCount.increment();
+    INSTANCE.lookupNanos.add(nanos);
+  }
+
+  /**
+   * Records that an interpreter's activation stack has reached the given
+   * depth.
+   */
+  public static void recordDepth(int depth) {
+    AtomicInteger max = INSTANCE.maxDepth;
+    int current = max.get();
+    while (depth > current && !max.compareAndSet(current, depth))
+      current = max.get();
+  }
+
+  private static <K> void increment(ConcurrentMap<K, LongAdder> counts, K key) {
+    LongAdder count = counts.get(key);
+    if (count == null) {
+      LongAdder created = new LongAdder();
+      count = counts.putIfAbsent(key, created);
+      if (count == null)
+        count = created;
+    }
+    count.increment();
+  }
+
+  @Override
+  public Map<String, Long> getOpcodeCounts() {
+    Map<String, Long> result = Factory.newLinkedHashMap();
+    for (Opcode opcode : Opcode.values())
+      result.put(opcode.name(), opcodeCounts.get(opcode.getValue()));
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getMethodInvocations() {
+    Map<String, Long> result = Factory.newLinkedHashMap();
+    for (Map.Entry<RMethod, LongAdder> entry : sortByCount(invocations))
+      addCount(result, String.valueOf(entry.getKey().getSignature()), entry.getValue().sum());
+    return result;
+  }
+
+  @Override
+  public Map<String, Long> getNativeCalls() {
+    Map<String, Long> result = Factory.newLinkedHashMap();
+    for (Map.Entry<IValue, LongAdder> entry : sortByCount(nativeCalls))
+      addCount(result, NativeMethods.getName(entry.getKey()), entry.getValue().sum());
+    return result;
+  }
+
+  /**
+   * Adds the given count under the given key, adding it to what's there if
+   * different values have the same name.
+   */
+  private static void addCount(Map<String, Long> counts, String key, long count) {
+    Long existing = counts.get(key);
+    counts.put(key, (existing == null) ? count : existing + count);
+  }
+
+  /**
+   * Returns the entries of the given map with the largest counts first.
+   */
+  private static <K> List<Map.Entry<K, LongAdder>> sortByCount(Map<K, LongAdder> counts) {
+    List<Map.Entry<K, LongAdder>> result = Factory.newArrayList(counts.entrySet());
+    Collections.sort(result, new Comparator<Map.Entry<K, LongAdder>>() {
+      @Override
+      public int compare(Map.Entry<K, LongAdder> a, Map.Entry<K, LongAdder> b) {
+        return Long.compare(b.getValue().sum(), a.getValue().sum());
+      }
+    });
+    return result;
+  }
+
+  @Override
+  public long getLookupCount() {
+    return lookupCount.sum();
+  }
+
+  @Override
+  public long getLookupNanos() {
+    return lookupNanos.sum();
+  }
+
+  @Override
+  public int getMaxDepth() {
+    return maxDepth.get();
+  }
+
+  @Override
+  public String getReport() {
+    StringBuilder buf = new StringBuilder();
+    buf.append(String.format("Opcodes:%n"));
+    appendCounts(buf, getOpcodeCounts());
+    buf.append(String.format("Methods:%n"));
+    appendCounts(buf, getMethodInvocations());
+    buf.append(String.format("Natives:%n"));
+    appendCounts(buf, getNativeCalls());
+    long lookups = getLookupCount();
+    long nanos = getLookupNanos();
+    buf.append(String.format("Lookups: %d taking %d ns", lookups, nanos));
+    if (lookups > 0)
+      buf.append(String.format(" (%d ns each)", nanos / lookups));
+    buf.append(String.format("%n"));
+    buf.append(String.format("Inline caches: %d hits, %d misses%n", InlineCache.getTotalHitCount(),
+        InlineCache.getTotalMissCount()));
+    buf.append(String.format("Max depth: %d%n", getMaxDepth()));
+    return buf.toString();
+  }
+
+  private static void appendCounts(StringBuilder buf, Map<String, Long> counts) {
+    for (Map.Entry<String, Long> entry : counts.entrySet()) {
+      buf.append(String.format("  %12d  %s%n", entry.getValue(), entry.getKey()));
+    }
+  }
+
+  @Override
+  public void reset() {
+    for (int i = 0; i < opcodeCounts.length(); i++)
+      opcodeCounts.set(i, 0);
+    invocations.clear();
+    nativeCalls.clear();
+    lookupCount.reset();
+    lookupNanos.reset();
+    maxDepth.set(0);
+  }
+
+}
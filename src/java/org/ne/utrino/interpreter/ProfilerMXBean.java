@@ -0,0 +1,53 @@
+package org.ne.utrino.interpreter;
+
+import java.util.Map;
+
+/**
+ * Management interface through which the {@link Profiler}'s counters are
+ * exposed over JMX.
+ */
+public interface ProfilerMXBean {
+
+  /**
+   * Returns the number of times each opcode has been executed.
+   */
+  public Map<String, Long> getOpcodeCounts();
+
+  /**
+   * Returns the number of times each method has been invoked, keyed by the
+   * method's signature.
+   */
+  public Map<String, Long> getMethodInvocations();
+
+  /**
+   * Returns the number of times each native method has been called, keyed by
+   * the native's name.
+   */
+  public Map<String, Long> getNativeCalls();
+
+  /**
+   * Returns the number of method lookups performed in method spaces.
+   */
+  public long getLookupCount();
+
+  /**
+   * Returns the total time spent in method lookups in nanoseconds.
+   */
+  public long getLookupNanos();
+
+  /**
+   * Returns the deepest any interpreter's activation stack has been.
+   */
+  public int getMaxDepth();
+
+  /**
+   * Returns a human-readable report of all the counters.
+   */
+  public String getReport();
+
+  /**
+   * Clears all the counters.
+   */
+  public void reset();
+
+}
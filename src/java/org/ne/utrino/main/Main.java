@@ -1,5 +1,6 @@
 package org.ne.utrino.main;
 
+import org.ne.utrino.interpreter.Profiler;
 import org.ne.utrino.runtime.Compiler;
 
 /**
@@ -9,6 +10,8 @@ public class Main {
 
   public static void main(String[] args) {
     Compiler.run(args[1]);
+    if (Profiler.kEnabled)
+      System.err.print(Profiler.get().getReport());
   }
 
 }
@@ -1,9 +1,13 @@
 package org.ne.utrino.plankton;
+
+import java.nio.charset.Charset;
 /**
  * Abstract implementation of the binary input stream interface.
  */
 public abstract class AbstractBinaryInputStream implements IBinaryInputStream {
 
+  protected static final Charset UTF_8 = Charset.forName("UTF-8");
+
   @Override
   public int nextInt32() throws DecodingError {
     int result = 0;
@@ -20,13 +24,37 @@ public abstract class AbstractBinaryInputStream implements IBinaryInputStream {
   private static final byte[] EMPTY_BYTES = new byte[0];
   @Override
   public byte[] nextBlob() throws DecodingError {
-    int bytes = nextInt32();
+    int bytes = nextBlobLength();
     if (bytes == 0)
       return EMPTY_BYTES;
     byte[] result = new byte[bytes];
-    for (int i = 0; i < bytes; i++)
-      result[i] = (byte) nextByte();
+    nextBytes(result, 0, bytes);
     return result;
   }
-  
+
+  @Override
+  public String nextString() throws DecodingError {
+    return new String(nextBlob(), UTF_8);
+  }
+
+  /**
+   * Reads the length of the next blob.
+   */
+  protected int nextBlobLength() throws DecodingError {
+    int result = nextInt32();
+    if (result < 0)
+      throw new DecodingError("Invalid blob length " + result);
+    return result;
+  }
+
+  /**
+   * Reads the given number of bytes into the given array starting at the
+   * given offset. Implementations should override this with something faster
+   * than reading the bytes one at a time.
+   */
+  protected void nextBytes(byte[] dest, int offset, int length) throws DecodingError {
+    for (int i = 0; i < length; i++)
+      dest[offset + i] = (byte) nextByte();
+  }
+
 }
@@ -26,14 +26,29 @@ public abstract class AbstractBinaryOutputStream implements IBinaryOutputStream
   @Override
   public IBinaryOutputStream addBlob(byte[] data) {
     addInt32(data.length);
-    ensureCapacityDelta(data.length);
-    for (int i = 0; i < data.length; i++)
-      append(data[i]);
+    appendBytes(data, 0, data.length);
     return this;
   }
 
+  /**
+   * Makes sure there is room for at least the given number of bytes to be
+   * appended.
+   */
   protected abstract void ensureCapacityDelta(int delta);
 
+  /**
+   * Appends a single byte. Capacity must have been ensured beforehand.
+   */
   protected abstract void append(int value);
 
+  /**
+   * Appends a range of the given bytes. Implementations should override this
+   * with something faster than appending the bytes one at a time.
+   */
+  protected void appendBytes(byte[] data, int offset, int length) {
+    ensureCapacityDelta(length);
+    for (int i = 0; i < length; i++)
+      append(data[offset + i]);
+  }
+
 }
@@ -0,0 +1,108 @@
+package org.ne.utrino.plankton;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+/**
+ * A binary input stream that reads directly from a byte buffer, for instance
+ * one that maps a file into memory. Blobs are copied out in bulk and strings
+ * are decoded straight from the buffer so the input is never copied onto the
+ * heap as a whole.
+ */
+public class ByteBufferBinaryInputStream extends AbstractBinaryInputStream {
+
+  private final ByteBuffer data;
+  private byte[] scratch = new byte[256];
+
+  /**
+   * Creates a stream that reads the bytes between the given buffer's
+   * position and limit. The buffer itself is left untouched.
+   */
+  public ByteBufferBinaryInputStream(ByteBuffer data) {
+    this.data = data.slice();
+  }
+
+  /**
+   * Returns a stream that reads the contents of the given file, mapped into
+   * memory rather than read.
+   */
+  public static ByteBufferBinaryInputStream map(File file) throws IOException {
+    return new ByteBufferBinaryInputStream(mapFile(file));
+  }
+
+  /**
+   * Maps the contents of the given file into memory, read-only.
+   */
+  public static ByteBuffer mapFile(File file) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      // The mapping stays valid after the channel has been closed.
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      in.close();
+    }
+  }
+
+  @Override
+  public int nextByte() throws DecodingError {
+    if (!data.hasRemaining())
+      throw new DecodingError("Unexpected end of input");
+    return data.get() & 0xFF;
+  }
+
+  @Override
+  public int nextInt32() throws DecodingError {
+    int result = 0;
+    int offset = 0;
+    int current;
+    try {
+      do {
+        current = data.get();
+        result |= (current & 0x7F) << offset;
+        offset += 7;
+      } while ((current & 0x80) != 0);
+    } catch (BufferUnderflowException bue) {
+      throw new DecodingError("Unexpected end of input");
+    }
+    return result;
+  }
+
+  @Override
+  protected void nextBytes(byte[] dest, int offset, int length) throws DecodingError {
+    if (data.remaining() < length)
+      throw new DecodingError("Unexpected end of input");
+    data.get(dest, offset, length);
+  }
+
+  @Override
+  public String nextString() throws DecodingError {
+    int length = nextBlobLength();
+    if (data.remaining() < length)
+      throw new DecodingError("Unexpected end of input");
+    String result;
+    if (data.hasArray()) {
+      // Decode in place from the backing array.
+      result = new String(data.array(), data.arrayOffset() + data.position(), length, UTF_8);
+      data.position(data.position() + length);
+    } else {
+      // Go through a scratch array that is reused between strings.
+      if (length > scratch.length)
+        scratch = new byte[Math.max(length, 2 * scratch.length)];
+      data.get(scratch, 0, length);
+      result = new String(scratch, 0, length, UTF_8);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the number of bytes left to read.
+   */
+  public int getRemaining() {
+    return data.remaining();
+  }
+
+}
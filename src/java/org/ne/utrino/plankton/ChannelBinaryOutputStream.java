@@ -0,0 +1,94 @@
+package org.ne.utrino.plankton;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import org.ne.utrino.util.Assert;
+import org.ne.utrino.util.Exceptions;
+/**
+ * A binary output stream that writes to a channel through a fixed size
+ * direct buffer, so output of any size can be produced without holding it
+ * all in memory. Blobs too large for the buffer are written to the channel
+ * directly. Nothing is guaranteed to reach the channel until the stream has
+ * been flushed.
+ */
+public class ChannelBinaryOutputStream extends AbstractBinaryOutputStream {
+
+  private static final int kDefaultBufferSize = 64 * 1024;
+
+  private final WritableByteChannel channel;
+  private final ByteBuffer buffer;
+
+  public ChannelBinaryOutputStream(WritableByteChannel channel) {
+    this(channel, kDefaultBufferSize);
+  }
+
+  /**
+   * Creates a stream that buffers the given number of bytes at a time.
+   */
+  public ChannelBinaryOutputStream(WritableByteChannel channel, int bufferSize) {
+    Assert.that(bufferSize >= 16);
+    this.channel = channel;
+    this.buffer = ByteBuffer.allocateDirect(bufferSize);
+  }
+
+  @Override
+  protected void ensureCapacityDelta(int delta) {
+    if (buffer.remaining() < delta)
+      flushUnchecked();
+  }
+
+  @Override
+  protected void append(int value) {
+    buffer.put((byte) value);
+  }
+
+  @Override
+  protected void appendBytes(byte[] data, int offset, int length) {
+    if (length <= buffer.remaining()) {
+      buffer.put(data, offset, length);
+      return;
+    }
+    flushUnchecked();
+    if (length <= buffer.remaining()) {
+      buffer.put(data, offset, length);
+    } else {
+      try {
+        writeFully(ByteBuffer.wrap(data, offset, length));
+      } catch (IOException ioe) {
+        throw Exceptions.propagate(ioe);
+      }
+    }
+  }
+
+  /**
+   * Writes any buffered bytes to the channel.
+   */
+  public void flush() throws IOException {
+    buffer.flip();
+    try {
+      writeFully(buffer);
+    } finally {
+      buffer.clear();
+    }
+  }
+
+  /**
+   * Flushes, wrapping any i/o errors since appending can't throw checked
+   * exceptions.
+   */
+  private void flushUnchecked() {
+    try {
+      flush();
+    } catch (IOException ioe) {
+      throw Exceptions.propagate(ioe);
+    }
+  }
+
+  private void writeFully(ByteBuffer data) throws IOException {
+    while (data.hasRemaining())
+      channel.write(data);
+  }
+
+}
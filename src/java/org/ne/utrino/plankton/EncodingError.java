@@ -0,0 +1,14 @@
+package org.ne.utrino.plankton;
+
+@SuppressWarnings("serial")
+/**
+ * Signals that a value can't be encoded as plankton, typically because it
+ * only has meaning within the current process.
+ */
+public class EncodingError extends RuntimeException {
+
+  public EncodingError(String message) {
+    super(message);
+  }
+
+}
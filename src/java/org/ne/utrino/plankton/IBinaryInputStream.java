@@ -19,4 +19,9 @@ public interface IBinaryInputStream {
    */
   public byte[] nextBlob() throws DecodingError;
 
+  /**
+   * Returns the next binary blob decoded as a utf8 string.
+   */
+  public String nextString() throws DecodingError;
+
 }
@@ -172,12 +172,7 @@ public class Plankton {
    * Reads a utf8 string from the given stream.
    */
   private static String decodeString(IBinaryInputStream in) throws DecodingError {
-    byte[] bytes = in.nextBlob();
-    try {
-      return new String(bytes, "UTF-8");
-    } catch (UnsupportedEncodingException uee) {
-      throw Exceptions.propagate(uee);
-    }
+    return in.nextString();
   }
 
   @Internal
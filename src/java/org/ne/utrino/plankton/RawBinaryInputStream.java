@@ -17,4 +17,10 @@ public class RawBinaryInputStream extends AbstractBinaryInputStream {
     return data.read();
   }
 
+  @Override
+  protected void nextBytes(byte[] dest, int offset, int length) throws DecodingError {
+    if (data.read(dest, offset, length) != length)
+      throw new DecodingError("Unexpected end of input");
+  }
+
 }
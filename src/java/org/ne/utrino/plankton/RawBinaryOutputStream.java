@@ -1,25 +1,76 @@
 package org.ne.utrino.plankton;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 /**
  * A binary output stream backed by a raw array of bytes.
  */
 public class RawBinaryOutputStream extends AbstractBinaryOutputStream {
-  
-  private final ByteArrayOutputStream data = new ByteArrayOutputStream();
-  
+
+  private static final int kInitialCapacity = 256;
+
+  private byte[] data;
+  private int size = 0;
+
+  public RawBinaryOutputStream() {
+    this(kInitialCapacity);
+  }
+
+  /**
+   * Creates a stream whose buffer starts out with room for the given number
+   * of bytes.
+   */
+  public RawBinaryOutputStream(int initialCapacity) {
+    this.data = new byte[Math.max(initialCapacity, 16)];
+  }
+
   @Override
   protected void ensureCapacityDelta(int delta) {
-    // ignore
+    int required = size + delta;
+    if (required > data.length)
+      data = Arrays.copyOf(data, Math.max(required, 2 * data.length));
   }
 
   @Override
   protected void append(int value) {
-    data.write(value);
+    data[size++] = (byte) value;
   }
-  
+
+  @Override
+  protected void appendBytes(byte[] bytes, int offset, int length) {
+    ensureCapacityDelta(length);
+    System.arraycopy(bytes, offset, data, size, length);
+    size += length;
+  }
+
+  /**
+   * Returns the number of bytes written so far.
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Discards everything written so far but keeps the buffer so it can be
+   * reused.
+   */
+  public void reset() {
+    this.size = 0;
+  }
+
   public byte[] toByteArray() {
-    return data.toByteArray();
+    return Arrays.copyOf(data, size);
+  }
+
+  /**
+   * Writes everything written so far to the given channel.
+   */
+  public void writeTo(WritableByteChannel channel) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(data, 0, size);
+    while (buffer.hasRemaining())
+      channel.write(buffer);
   }
 
 }
@@ -0,0 +1,219 @@
+package org.ne.utrino.runtime;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.ne.utrino.interpreter.CodeBlock;
+import org.ne.utrino.interpreter.Optimizer;
+import org.ne.utrino.plankton.ByteBufferBinaryInputStream;
+import org.ne.utrino.plankton.DecodingError;
+import org.ne.utrino.plankton.EncodingError;
+import org.ne.utrino.plankton.IPlanktonFactory;
+import org.ne.utrino.plankton.ISeed;
+import org.ne.utrino.plankton.Plankton;
+import org.ne.utrino.plankton.RawBinaryOutputStream;
+import org.ne.utrino.util.Exceptions;
+import org.ne.utrino.util.Factory;
+import org.ne.utrino.util.Name;
+import org.ne.utrino.util.Pair;
+import org.ne.utrino.value.RContext;
+
+/**
+ * An on-disk cache of the code compiled from source units. Each unit is
+ * stored in its own file, named by a hash of the source, holding the
+ * plankton encoding of the code of each of its declarations behind a header
+ * with its length and checksum. Loading a cached unit skips tokenizing,
+ * parsing, linking and assembling entirely.
+ */
+public class CodeCache {
+
+  /**
+   * Seed headers of the objects stored in the cache.
+   */
+  public static final String kUnit = "utrino:Unit";
+  public static final String kCodeBlock = "utrino:CodeBlock";
+  public static final String kInvocationDescriptor = "utrino:InvocationDescriptor";
+  public static final String kSignature = "utrino:Signature";
+  public static final String kMethod = "utrino:Method";
+  public static final String kLambda = "utrino:Lambda";
+  public static final String kAnyGuard = "utrino:AnyGuard";
+  public static final String kIdentityGuard = "utrino:IdentityGuard";
+  public static final String kInteger = "utrino:Integer";
+  public static final String kString = "utrino:String";
+  public static final String kBool = "utrino:Bool";
+  public static final String kNull = "utrino:Null";
+  public static final String kKey = "utrino:Key";
+  public static final String kIsGuard = "utrino:IsGuard";
+  public static final String kProtocol = "utrino:Protocol";
+  public static final String kNative = "utrino:Native";
+  public static final String kContext = "utrino:Context";
+
+  /**
+   * The version of the format, which is part of the key so changing it
+   * invalidates everything stored in the old format.
+   */
+  private static final int kFormatVersion = 3;
+
+  /**
+   * The size of the header in front of the encoded unit, which holds the
+   * length of the encoded data and its CRC32 checksum.
+   */
+  private static final int kHeaderSize = 8;
+
+  private final File directory;
+
+  public CodeCache(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Returns the key under which the code for the given source is stored.
+   * Whether the optimizer is enabled by default affects the code generated
+   * so it is part of the key too.
+   */
+  public static String getKey(String source) {
+    return hash(kFormatVersion + ":" + Optimizer.kEnabledByDefault + ":" + source);
+  }
+
+  /**
+   * Returns the SHA-256 hash of the given string as hex digits.
+   */
+  static String hash(String str) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException nsae) {
+      throw Exceptions.propagate(nsae);
+    }
+    byte[] hash = digest.digest(str.getBytes(StandardCharsets.UTF_8));
+    StringBuilder buf = new StringBuilder();
+    for (byte b : hash)
+      buf.append(String.format("%02x", b & 0xFF));
+    return buf.toString();
+  }
+
+  /**
+   * Returns the file that holds the code for the given source.
+   */
+  File getFile(String source) {
+    return new File(directory, getKey(source) + ".plk");
+  }
+
+  /**
+   * Returns the declarations compiled from the given source, with their code
+   * bound to the given context, or null if they're not in the cache or
+   * can't be read. A file that can't be decoded is deleted.
+   */
+  public List<Pair<Name, CodeBlock>> load(String source, RContext context) {
+    File file = getFile(source);
+    if (!file.exists())
+      return null;
+    try {
+      return readUnit(ByteBufferBinaryInputStream.mapFile(file), new Reviver(context));
+    } catch (IOException ioe) {
+      return null;
+    } catch (DecodingError de) {
+      // The contents are no good so the file is dropped and the code will
+      // be compiled and stored again.
+      file.delete();
+      return null;
+    }
+  }
+
+  private static List<Pair<Name, CodeBlock>> readUnit(ByteBuffer data, Reviver reviver) {
+    if (data.remaining() < kHeaderSize)
+      throw new DecodingError("Truncated header");
+    int length = data.getInt();
+    int checksum = data.getInt();
+    if (length != data.remaining())
+      throw new DecodingError("Expected " + length + " bytes but found " + data.remaining());
+    if (checksum != getChecksum(data))
+      throw new DecodingError("Checksum mismatch");
+    return reviveUnit(Plankton.decode(new ByteBufferBinaryInputStream(data)), reviver);
+  }
+
+  /**
+   * Returns the CRC32 checksum of the bytes remaining in the given buffer,
+   * leaving the buffer itself untouched.
+   */
+  private static int getChecksum(ByteBuffer data) {
+    CRC32 crc = new CRC32();
+    crc.update(data.duplicate());
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Stores the code compiled from the given source. Returns false if the
+   * code can't be stored, for instance because it refers to values that
+   * only exist in this process.
+   */
+  public boolean store(String source, List<Pair<Name, CodeBlock>> decls) {
+    IPlanktonFactory factory = Plankton.getDefaultFactory();
+    List<Object> entries = Factory.newArrayList();
+    for (Pair<Name, CodeBlock> decl : decls) {
+      entries.add(factory.newMap()
+          .set("name", Factory.newArrayList(decl.getFirst().getParts()))
+          .set("code", decl.getSecond()));
+    }
+    ISeed unit = factory.newSeed().setHeader(kUnit).setPayload(entries);
+    RawBinaryOutputStream out = new RawBinaryOutputStream();
+    try {
+      Plankton.encode(unit, out);
+    } catch (EncodingError ee) {
+      return false;
+    }
+    ByteBuffer header = ByteBuffer.allocate(kHeaderSize);
+    header.putInt(out.size()).putInt(getChecksum(ByteBuffer.wrap(out.toByteArray())));
+    header.flip();
+    // Write to a temporary file first and move it into place so concurrent
+    // readers never see a partially written file.
+    File temp = null;
+    try {
+      directory.mkdirs();
+      temp = File.createTempFile("unit", ".tmp", directory);
+      FileOutputStream stream = new FileOutputStream(temp);
+      try {
+        FileChannel channel = stream.getChannel();
+        while (header.hasRemaining())
+          channel.write(header);
+        out.writeTo(channel);
+      } finally {
+        stream.close();
+      }
+      Files.move(temp.toPath(), getFile(source).toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+      temp = null;
+    } catch (IOException ioe) {
+      return false;
+    } finally {
+      if (temp != null)
+        temp.delete();
+    }
+    return true;
+  }
+
+  private static List<Pair<Name, CodeBlock>> reviveUnit(Object data, Reviver reviver) {
+    ISeed unit = Reviver.expect(data, ISeed.class);
+    if (!kUnit.equals(unit.getHeader()))
+      throw new DecodingError("Unexpected header " + unit.getHeader());
+    List<Pair<Name, CodeBlock>> result = Factory.newArrayList();
+    for (Object obj : Reviver.expect(unit.getPayload(), List.class)) {
+      Map<?, ?> entry = Reviver.expect(obj, Map.class);
+      Name name = reviver.reviveName(entry.get("name"));
+      result.add(Pair.of(name, Reviver.expect(reviver.call(entry.get("code")), CodeBlock.class)));
+    }
+    return result;
+  }
+
+}
@@ -1,38 +1,216 @@
 package org.ne.utrino.runtime;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import org.ne.utrino.ast.IDeclaration;
 import org.ne.utrino.ast.IExpression;
+import org.ne.utrino.ast.NameDeclaration;
 import org.ne.utrino.ast.Unit;
 import org.ne.utrino.compiler.LinkVisitor;
 import org.ne.utrino.interpreter.Assembler;
+import org.ne.utrino.interpreter.Optimizer;
 import org.ne.utrino.interpreter.CodeBlock;
+import org.ne.utrino.interpreter.Interpreter;
+import org.ne.utrino.plankton.DecodingError;
 import org.ne.utrino.syntax.Parser;
-import org.ne.utrino.syntax.Token;
+import org.ne.utrino.syntax.StringCharStream;
 import org.ne.utrino.syntax.Tokenizer;
+import org.ne.utrino.util.Assert;
+import org.ne.utrino.util.Factory;
+import org.ne.utrino.util.IThunk;
+import org.ne.utrino.util.Name;
+import org.ne.utrino.util.Pair;
+import org.ne.utrino.value.IValue;
 import org.ne.utrino.value.RContext;
 
 public class Compiler {
 
+  /**
+   * Below this many declarations a unit is compiled without splitting the
+   * work any further.
+   */
+  private static final int kSequentialThreshold = 8;
+
+  /**
+   * If set, the directory in which to cache compiled code between runs.
+   */
+  private static final String kCodeCacheDirectory = System.getProperty("org.ne.utrino.codeCache");
+
+  /**
+   * If set, the file holding a snapshot of the initial context, which is
+   * written the first time if it doesn't exist.
+   */
+  private static final String kSnapshotFile = System.getProperty("org.ne.utrino.snapshot");
+
   public static void run(String code) {
-    Runtime runtime = new Runtime(4);
-    runtime.start();
-    List<Token> tokens = Tokenizer.tokenize(code);
-    Unit unit = Parser.parseUnit(tokens);
-    compileUnit(runtime.newProcess(), unit);
+    RContext context = newInitialContext((kSnapshotFile == null) ? null : new File(kSnapshotFile));
+    if (kCodeCacheDirectory == null) {
+      Unit unit = Parser.parseUnit(new Tokenizer(new StringCharStream(code)));
+      compileUnit(unit, context, ForkJoinPool.commonPool());
+    } else {
+      CodeCache cache = new CodeCache(new File(kCodeCacheDirectory));
+      loadUnit(code, context, ForkJoinPool.commonPool(), cache);
+    }
+  }
+
+  /**
+   * Returns a new context holding the native methods, restoring it from the
+   * given snapshot file if it exists. If the file is null no snapshot is
+   * used, and if it doesn't exist or can't be read it is written.
+   */
+  static RContext newInitialContext(File snapshot) {
+    if (snapshot != null && snapshot.exists()) {
+      try {
+        return ContextSnapshot.load(snapshot);
+      } catch (IOException ioe) {
+        // Fall through and build the context from scratch.
+      } catch (DecodingError de) {
+        // Likewise, the snapshot is corrupt or out of date.
+      }
+    }
+    RContext context = new RContext();
+    NativeMethods.addToContext(context);
+    if (snapshot != null) {
+      try {
+        ContextSnapshot.save(context, snapshot);
+      } catch (IOException ioe) {
+        // The snapshot is only an optimization.
+      }
+    }
+    return context;
+  }
+
+  /**
+   * Compiles and evaluates the declarations of the given unit on the given
+   * pool and binds the results in the given context's namespace. The code
+   * is compiled against a snapshot of the context so it doesn't see the
+   * bindings being added.
+   */
+  public static void compileUnit(Unit unit, RContext context, ForkJoinPool pool) {
+    RContext snapshot = context.newSnapshot();
+    evaluateDeclarations(compileDeclarations(unit, snapshot, pool), context, pool);
+  }
+
+  /**
+   * Like {@link #compileUnit} but takes the compiled code from the given
+   * cache if it is there, skipping the front end entirely, and otherwise
+   * compiles the source and stores the result in the cache.
+   */
+  public static void loadUnit(String source, RContext context, ForkJoinPool pool,
+      CodeCache cache) {
+    RContext snapshot = context.newSnapshot();
+    List<Pair<Name, CodeBlock>> decls = cache.load(source, snapshot);
+    if (decls == null) {
+      Unit unit = Parser.parseUnit(new Tokenizer(new StringCharStream(source)));
+      decls = compileDeclarations(unit, snapshot, pool);
+      cache.store(source, decls);
+    }
+    evaluateDeclarations(decls, context, pool);
+  }
+
+  /**
+   * Links and assembles the declarations of the given unit on the given
+   * pool. The declarations are independent so each is compiled separately,
+   * with its own assembler, but the result is in the order the declarations
+   * appear in the unit. The context must be immutable, typically a
+   * snapshot, since it is shared by all the tasks.
+   */
+  public static List<Pair<Name, CodeBlock>> compileDeclarations(Unit unit, final RContext context,
+      ForkJoinPool pool) {
+    Assert.that(!context.getPhase().isMutable());
+    final List<NameDeclaration> decls = Factory.newArrayList();
+    unit.accept(new IDeclaration.IVisitor() {
+      @Override
+      public void visitNameDeclaration(NameDeclaration that) {
+        decls.add(that);
+      }
+    });
+    final CodeBlock[] code = new CodeBlock[decls.size()];
+    pool.invoke(new RangeTask(0, decls.size(), new IThunk<Integer>() {
+      @Override
+      public void call(Integer index) {
+        code[index] = linkAndCompile(null, decls.get(index).getValue(), context);
+      }
+    }));
+    List<Pair<Name, CodeBlock>> result = Factory.newArrayList();
+    for (int i = 0; i < decls.size(); i++)
+      result.add(Pair.of(decls.get(i).getName(), code[i]));
+    return result;
+  }
+
+  /**
+   * Evaluates the code of the given declarations on the given pool and binds
+   * the results in the given context's namespace. The results are bound in
+   * the order of the declarations so a later declaration of a name always
+   * wins over an earlier one.
+   */
+  public static void evaluateDeclarations(final List<Pair<Name, CodeBlock>> decls,
+      RContext context, ForkJoinPool pool) {
+    final IValue[] values = new IValue[decls.size()];
+    pool.invoke(new RangeTask(0, decls.size(), new IThunk<Integer>() {
+      @Override
+      public void call(Integer index) {
+        values[index] = Interpreter.interpret(decls.get(index).getSecond());
+      }
+    }));
+    for (int i = 0; i < decls.size(); i++)
+      context.set(decls.get(i).getFirst(), values[i]);
   }
 
-  private static void compileUnit(Process process, Unit unit) {
+  /**
+   * Calls a thunk with each index in a range. Ranges that are too large are
+   * split in two.
+   */
+  @SuppressWarnings("serial")
+  private static class RangeTask extends RecursiveAction {
+
+    private final int start;
+    private final int end;
+    private final IThunk<Integer> body;
+
+    public RangeTask(int start, int end, IThunk<Integer> body) {
+      this.start = start;
+      this.end = end;
+      this.body = body;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start <= kSequentialThreshold) {
+        for (int i = start; i < end; i++)
+          body.call(i);
+      } else {
+        int middle = (start + end) >>> 1;
+        invokeAll(new RangeTask(start, middle, body), new RangeTask(middle, end, body));
+      }
+    }
 
   }
 
   public static CodeBlock linkAndCompile(Signature signature, IExpression expr, RContext context) {
+    return linkAndCompile(signature, expr, context, Optimizer.kEnabledByDefault);
+  }
+
+  public static CodeBlock linkAndCompile(Signature signature, IExpression expr, RContext context,
+      boolean optimize) {
     expr.accept(new LinkVisitor(), null);
-    return compile(signature, expr, context);
+    return compile(signature, expr, context, optimize);
   }
 
   public static CodeBlock compile(Signature signature, IExpression expr, RContext context) {
-    Assembler assm = new Assembler(signature, context);
+    return compile(signature, expr, context, Optimizer.kEnabledByDefault);
+  }
+
+  /**
+   * Compiles the given expression, optimizing the result if requested.
+   */
+  public static CodeBlock compile(Signature signature, IExpression expr, RContext context,
+      boolean optimize) {
+    Assembler assm = new Assembler(signature, context, optimize);
     expr.emit(assm);
     assm.close();
     return assm.toCodeBlock();
@@ -0,0 +1,195 @@
+package org.ne.utrino.runtime;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.ne.utrino.plankton.ByteBufferBinaryInputStream;
+import org.ne.utrino.plankton.DecodingError;
+import org.ne.utrino.plankton.EncodingError;
+import org.ne.utrino.plankton.IBinaryInputStream;
+import org.ne.utrino.plankton.IBinaryOutputStream;
+import org.ne.utrino.plankton.IPlanktonFactory;
+import org.ne.utrino.plankton.IPlanktonFactory.IPlanktonArray;
+import org.ne.utrino.plankton.ISeed;
+import org.ne.utrino.plankton.Plankton;
+import org.ne.utrino.plankton.RawBinaryOutputStream;
+import org.ne.utrino.util.Factory;
+import org.ne.utrino.util.Name;
+import org.ne.utrino.value.IValue;
+import org.ne.utrino.value.Phase;
+import org.ne.utrino.value.RBool;
+import org.ne.utrino.value.RContext;
+import org.ne.utrino.value.RInteger;
+import org.ne.utrino.value.RLambda;
+import org.ne.utrino.value.RMethod;
+import org.ne.utrino.value.RObject;
+import org.ne.utrino.value.RProtocol;
+import org.ne.utrino.value.RString;
+
+/**
+ * Stores a context, its namespace, methods and inheritance, as a plankton
+ * image and restores it again. Restoring a context is cheaper than building
+ * it since no code is compiled and no signatures are built: natives are
+ * restored by name from the registry in {@link NativeMethods}, which is
+ * still found by reflection but only once per process, and the built-in
+ * protocols from the table here.
+ */
+public class ContextSnapshot {
+
+  /**
+   * The version of the format, which is stored in each snapshot so changing
+   * it invalidates snapshots stored in the old format.
+   */
+  private static final int kFormatVersion = 1;
+
+  /**
+   * The protocols that can be stored in a snapshot, keyed by name.
+   */
+  private static final Map<String, RProtocol> BUILTIN_PROTOCOLS = Factory.newLinkedHashMap();
+
+  static {
+    BUILTIN_PROTOCOLS.put("Object", RObject.getProtocol());
+    BUILTIN_PROTOCOLS.put("Integer", RInteger.getProtocol());
+    BUILTIN_PROTOCOLS.put("Bool", RBool.getProtocol());
+    BUILTIN_PROTOCOLS.put("String", RString.getProtocol());
+    BUILTIN_PROTOCOLS.put("Lambda", RLambda.getProtocol());
+  }
+
+  /**
+   * Returns the built-in protocol with the given name, null if there is
+   * none.
+   */
+  public static RProtocol getBuiltinProtocol(String name) {
+    return BUILTIN_PROTOCOLS.get(name);
+  }
+
+  /**
+   * Returns the name of the given protocol if it is a built-in one,
+   * otherwise null.
+   */
+  public static String getBuiltinProtocolName(RProtocol protocol) {
+    for (Map.Entry<String, RProtocol> entry : BUILTIN_PROTOCOLS.entrySet()) {
+      if (entry.getValue() == protocol)
+        return entry.getKey();
+    }
+    return null;
+  }
+
+  /**
+   * Writes a snapshot of the given context to the given stream. Throws an
+   * {@link EncodingError} if the context holds values that
+   * can't be restored in another process.
+   */
+  public static void write(RContext context, IBinaryOutputStream out) {
+    write(context, out, NativeMethods.getFingerprint());
+  }
+
+  /**
+   * Writes a snapshot of the given context as if the natives had the given
+   * fingerprint.
+   */
+  static void write(RContext context, IBinaryOutputStream out, String nativesFingerprint) {
+    IPlanktonFactory factory = Plankton.getDefaultFactory();
+    MethodSpace methodSpace = context.getMethodSpace();
+    IPlanktonArray inheritance = factory.newArray();
+    for (Map.Entry<RProtocol, Collection<RProtocol>> entry : methodSpace.getInheritance().entrySet()) {
+      for (RProtocol parent : entry.getValue())
+        inheritance.push(factory.newArray().push(entry.getKey()).push(parent));
+    }
+    IPlanktonArray namespace = factory.newArray();
+    for (Map.Entry<Name, IValue> entry : context.getNamespace().entrySet()) {
+      namespace.push(factory.newMap()
+          .set("name", Factory.newArrayList(entry.getKey().getParts()))
+          .set("value", entry.getValue()));
+    }
+    ISeed snapshot = factory.newSeed().setHeader(CodeCache.kContext).setPayload(factory.newMap()
+        .set("version", kFormatVersion)
+        .set("natives", nativesFingerprint)
+        .set("inheritance", inheritance)
+        .set("methods", Factory.newArrayList(methodSpace.getMethods()))
+        .set("namespace", namespace)
+        .set("isFrozen", !context.getPhase().isMutable()));
+    Plankton.encode(snapshot, out);
+  }
+
+  /**
+   * Reads a snapshot written by {@link #write} and returns a new context
+   * with the same contents. If the context was frozen when it was written
+   * the restored one is too. A snapshot written in another format or with
+   * other natives than this process has is rejected.
+   */
+  public static RContext read(IBinaryInputStream in) throws DecodingError {
+    Object data = Plankton.decode(in);
+    if (!(data instanceof ISeed) || !CodeCache.kContext.equals(((ISeed) data).getHeader()))
+      throw new DecodingError("Not a context snapshot");
+    Map<?, ?> payload = Reviver.expect(((ISeed) data).getPayload(), Map.class);
+    if (!Integer.valueOf(kFormatVersion).equals(payload.get("version")))
+      throw new DecodingError("Unexpected snapshot version " + payload.get("version"));
+    if (!NativeMethods.getFingerprint().equals(payload.get("natives")))
+      throw new DecodingError("Snapshot was written with other natives");
+    return restore(payload);
+  }
+
+  private static RContext restore(Map<?, ?> payload) {
+    RContext context = new RContext();
+    Reviver reviver = new Reviver(context);
+    MethodSpace methodSpace = context.getMethodSpace();
+    for (Object obj : Reviver.getField(payload, "inheritance", List.class)) {
+      List<?> pair = Reviver.expect(obj, List.class);
+      if (pair.size() != 2)
+        throw new DecodingError("Invalid inheritance " + pair);
+      methodSpace.addInheritance(Reviver.expect(reviver.call(pair.get(0)), RProtocol.class),
+          Reviver.expect(reviver.call(pair.get(1)), RProtocol.class));
+    }
+    for (Object method : Reviver.getField(payload, "methods", List.class))
+      methodSpace.addMethod(Reviver.expect(reviver.call(method), RMethod.class));
+    for (Object obj : Reviver.getField(payload, "namespace", List.class)) {
+      Map<?, ?> entry = Reviver.expect(obj, Map.class);
+      context.set(reviver.reviveName(entry.get("name")),
+          Reviver.expect(reviver.call(entry.get("value")), IValue.class));
+    }
+    if (Boolean.TRUE.equals(payload.get("isFrozen")))
+      context.trySetPhase(Phase.SHALLOW_IMMUTABLE);
+    return context;
+  }
+
+  /**
+   * Writes a snapshot of the given context to the given file. The snapshot
+   * is written to a temporary file first and moved into place so a process
+   * starting concurrently never sees a partially written file.
+   */
+  public static void save(RContext context, File file) throws IOException {
+    RawBinaryOutputStream out = new RawBinaryOutputStream();
+    write(context, out);
+    File temp = File.createTempFile("snapshot", ".tmp", file.getAbsoluteFile().getParentFile());
+    try {
+      FileOutputStream stream = new FileOutputStream(temp);
+      try {
+        out.writeTo(stream.getChannel());
+      } finally {
+        stream.close();
+      }
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+          StandardCopyOption.REPLACE_EXISTING);
+      temp = null;
+    } finally {
+      if (temp != null)
+        temp.delete();
+    }
+  }
+
+  /**
+   * Restores the context stored in the given file, which is mapped into
+   * memory rather than read.
+   */
+  public static RContext load(File file) throws IOException {
+    return read(ByteBufferBinaryInputStream.map(file));
+  }
+
+}
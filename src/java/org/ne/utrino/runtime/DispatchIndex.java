@@ -0,0 +1,234 @@
+package org.ne.utrino.runtime;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.ne.utrino.util.Factory;
+import org.ne.utrino.value.ITagValue;
+import org.ne.utrino.value.IValue;
+import org.ne.utrino.value.RKey;
+import org.ne.utrino.value.RMethod;
+import org.ne.utrino.value.RProtocol;
+import org.ne.utrino.value.Species;
+
+/**
+ * An index over the methods of a frozen method space that narrows down which
+ * methods need to be matched against an invocation. Methods are bucketed by
+ * the value their name parameter is guarded by and the number of arguments
+ * they accept, and each bucket is split further into a decision tree over the
+ * protocols of the arguments. The tree is grown lazily as argument protocols
+ * are encountered. Narrowing only ever removes methods that can't match so
+ * lookup over the candidates gives the same result as lookup over all the
+ * methods.
+ */
+class DispatchIndex {
+
+  /**
+   * A node in the decision tree. Either a leaf or a split on the protocol of
+   * one of the arguments.
+   */
+  private static class Node {
+
+    private final List<RMethod> candidates;
+    private final List<ITagValue> splitTags;
+    private final ITagValue splitTag;
+    private final ConcurrentMap<RProtocol, Node> children;
+
+    public Node(List<RMethod> candidates, List<ITagValue> splitTags) {
+      this.candidates = Collections.unmodifiableList(candidates);
+      this.splitTags = splitTags;
+      this.splitTag = chooseSplitTag(candidates, splitTags);
+      this.children = (splitTag == null) ? null : new ConcurrentHashMap<RProtocol, Node>();
+    }
+
+    /**
+     * Picks the tag guarded by protocol in the most candidates, ignoring the
+     * tags already split on. Returns null if there's nothing worth splitting on.
+     */
+    private static ITagValue chooseSplitTag(List<RMethod> candidates,
+        List<ITagValue> splitTags) {
+      if (candidates.size() <= 1)
+        return null;
+      Map<ITagValue, Integer> counts = Factory.newHashMap();
+      List<ITagValue> tags = Factory.newArrayList();
+      for (RMethod method : candidates) {
+        tags.clear();
+        method.getSignature().addProtocolGuardedTags(tags);
+        for (ITagValue tag : tags) {
+          if (splitTags.contains(tag))
+            continue;
+          Integer count = counts.get(tag);
+          counts.put(tag, (count == null) ? 1 : count + 1);
+        }
+      }
+      ITagValue best = null;
+      int bestCount = 0;
+      for (Map.Entry<ITagValue, Integer> entry : counts.entrySet()) {
+        int count = entry.getValue();
+        if (count > bestCount || (count == bestCount && entry.getKey().compareTo(best) < 0)) {
+          best = entry.getKey();
+          bestCount = count;
+        }
+      }
+      return best;
+    }
+
+    /**
+     * Walks down the tree as far as the arguments allow, returning the
+     * candidates of the node we end up at.
+     */
+    public List<RMethod> narrow(IInvocation args, IHierarchy hierarchy) {
+      Node current = this;
+      while (current.splitTag != null) {
+        IValue value = getArgument(args, current.splitTag);
+        if (value == null)
+          break;
+        Species species = value.getSpecies();
+        if (species == null)
+          break;
+        current = current.getChild(species.getPrimary(), hierarchy);
+      }
+      return current.candidates;
+    }
+
+    /**
+     * Returns the child to use for arguments with the given primary protocol
+     * for the split tag, creating it if necessary.
+     */
+    private Node getChild(RProtocol primary, IHierarchy hierarchy) {
+      Node result = children.get(primary);
+      if (result != null)
+        return result;
+      List<RMethod> accepted = Factory.newArrayList();
+      for (RMethod method : candidates) {
+        Guard guard = method.getSignature().getGuardForTag(splitTag);
+        if (guard == null || guard.acceptsProtocol(primary, hierarchy))
+          accepted.add(method);
+      }
+      List<ITagValue> childSplitTags = Factory.newArrayList();
+      childSplitTags.addAll(splitTags);
+      childSplitTags.add(splitTag);
+      Node child = new Node(accepted, childSplitTags);
+      Node existing = children.putIfAbsent(primary, child);
+      return (existing == null) ? child : existing;
+    }
+
+  }
+
+  /**
+   * The methods that apply to invocations with a particular name, split by
+   * the number of arguments.
+   */
+  private static class Bucket {
+
+    /**
+     * The root for each argument count, with the last one covering all counts
+     * greater than the ones before it.
+     */
+    private final Node[] byArgCount;
+
+    public Bucket(List<RMethod> methods) {
+      int maxFiniteCount = 0;
+      for (RMethod method : methods)
+        maxFiniteCount = Math.max(maxFiniteCount, getMaxArgCount(method.getSignature()));
+      this.byArgCount = new Node[maxFiniteCount + 2];
+      for (int argc = 0; argc < byArgCount.length; argc++) {
+        List<RMethod> accepted = Factory.newArrayList();
+        for (RMethod method : methods) {
+          Signature signature = method.getSignature();
+          if (argc >= signature.getMandatoryParameterCount()
+              && (signature.allowsExtra() || argc <= signature.getParameterCount()))
+            accepted.add(method);
+        }
+        byArgCount[argc] = new Node(accepted, Collections.<ITagValue>emptyList());
+      }
+    }
+
+    /**
+     * Returns the largest number of arguments the given signature accepts,
+     * not counting extras.
+     */
+    private static int getMaxArgCount(Signature signature) {
+      return signature.allowsExtra()
+          ? signature.getMandatoryParameterCount()
+          : signature.getParameterCount();
+    }
+
+    public Node getRoot(int argCount) {
+      return byArgCount[Math.min(argCount, byArgCount.length - 1)];
+    }
+
+  }
+
+  private final IHierarchy hierarchy;
+  private final Map<IValue, Bucket> byName = Factory.newHashMap();
+  private final Bucket unnamed;
+
+  public DispatchIndex(Collection<RMethod> methods, IHierarchy hierarchy) {
+    this.hierarchy = hierarchy;
+    // Group the methods by name. Methods that don't require a particular name
+    // apply to every group.
+    Map<IValue, List<RMethod>> named = Factory.newHashMap();
+    for (RMethod method : methods) {
+      IValue name = getRequiredName(method.getSignature());
+      if (name != null && !named.containsKey(name))
+        named.put(name, Factory.<RMethod>newArrayList());
+    }
+    List<RMethod> unnamedMethods = Factory.newArrayList();
+    for (RMethod method : methods) {
+      IValue name = getRequiredName(method.getSignature());
+      if (name == null) {
+        unnamedMethods.add(method);
+        for (List<RMethod> group : named.values())
+          group.add(method);
+      } else {
+        named.get(name).add(method);
+      }
+    }
+    for (Map.Entry<IValue, List<RMethod>> entry : named.entrySet())
+      byName.put(entry.getKey(), new Bucket(entry.getValue()));
+    this.unnamed = new Bucket(unnamedMethods);
+  }
+
+  /**
+   * If the given signature only matches invocations that pass a particular
+   * name returns that name, otherwise null.
+   */
+  private static IValue getRequiredName(Signature signature) {
+    Guard guard = signature.getGuardForTag(RKey.NAME);
+    if (guard == null || signature.isOptional(RKey.NAME))
+      return null;
+    return guard.getIdentityValue();
+  }
+
+  /**
+   * Returns the value of the argument with the given tag, null if there is
+   * none.
+   */
+  private static IValue getArgument(IInvocation args, ITagValue tag) {
+    for (int i = 0; i < args.getEntryCount(); i++) {
+      if (args.getTag(i).equals(tag))
+        return args.getValue(i);
+    }
+    return null;
+  }
+
+  /**
+   * Returns the methods that could possibly match the given invocation.
+   */
+  public List<RMethod> getCandidates(IInvocation args) {
+    Bucket bucket = unnamed;
+    IValue name = getArgument(args, RKey.NAME);
+    if (name != null) {
+      Bucket namedBucket = byName.get(name);
+      if (namedBucket != null)
+        bucket = namedBucket;
+    }
+    return bucket.getRoot(args.getEntryCount()).narrow(args, hierarchy);
+  }
+
+}
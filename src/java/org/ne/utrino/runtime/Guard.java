@@ -1,5 +1,8 @@
 package org.ne.utrino.runtime;
 
+import org.ne.utrino.plankton.IPlanktonDatable;
+import org.ne.utrino.plankton.IPlanktonFactory;
+import org.ne.utrino.plankton.ISeed;
 import org.ne.utrino.value.IValue;
 import org.ne.utrino.value.RProtocol;
 import org.ne.utrino.value.Species;
@@ -10,7 +13,7 @@ import org.ne.utrino.value.Species;
  * defined in Guard. As a general principle though, lower values signify better
  * matches.
  */
-public abstract class Guard {
+public abstract class Guard implements IPlanktonDatable {
 
   /**
    * An identity guard that matches perfectly when values are identical to this
@@ -29,6 +32,16 @@ public abstract class Guard {
       return this.value.isIdentical(input) ? IDENTICAL_MATCH : NO_MATCH;
     }
 
+    @Override
+    IValue getIdentityValue() {
+      return this.value;
+    }
+
+    @Override
+    public ISeed toPlanktonData(IPlanktonFactory factory) {
+      return factory.newSeed().setHeader(CodeCache.kIdentityGuard).setPayload(value);
+    }
+
     @Override
     public String toString() {
       return "eq(" + value + ")";
@@ -52,28 +65,23 @@ public abstract class Guard {
     @Override
     public int match(IValue input, IHierarchy hierarchy) {
       Species species = input.getSpecies();
-      return findBestMatch(species.getPrimary(), PERFECT_IS_MATCH, hierarchy);
+      int dist = hierarchy.getDistance(species.getPrimary(), protocol);
+      return (dist < 0) ? NO_MATCH : PERFECT_IS_MATCH + dist;
     }
 
-    /**
-     * Finds the best match of the given protocol in the given hierarchy. If a
-     * match is found the distance from here will be added to the given part
-     * distance and returned as the score, otherwise NO_MATCH will be returned.
-     */
-    private int findBestMatch(RProtocol current, int dist, IHierarchy hierarchy) {
-      if (dist > 1024) {
-        throw new RuntimeException("Inheritance cycle involving " + current);
-      }
-      if (protocol.isIdentical(current)) {
-        return dist;
-      } else {
-        int score = NO_MATCH;
-        for (RProtocol parent : hierarchy.getParents(current)) {
-          int nextScore = findBestMatch(parent, dist + 1, hierarchy);
-          score = bestScore(nextScore, score);
-        }
-        return score;
-      }
+    @Override
+    boolean isProtocolGuard() {
+      return true;
+    }
+
+    @Override
+    boolean acceptsProtocol(RProtocol primary, IHierarchy hierarchy) {
+      return hierarchy.getDistance(primary, protocol) >= 0;
+    }
+
+    @Override
+    public ISeed toPlanktonData(IPlanktonFactory factory) {
+      return factory.newSeed().setHeader(CodeCache.kIsGuard).setPayload(protocol);
     }
 
   }
@@ -94,6 +102,11 @@ public abstract class Guard {
       return "*";
     }
 
+    @Override
+    public ISeed toPlanktonData(IPlanktonFactory factory) {
+      return factory.newSeed().setHeader(CodeCache.kAnyGuard);
+    }
+
     /**
      * Singleton instance.
      */
@@ -145,6 +158,29 @@ public abstract class Guard {
     return Integer.compare(a, b);
   }
 
+  /**
+   * If this guard matches values identical to a particular value returns that
+   * value, otherwise null.
+   */
+  IValue getIdentityValue() {
+    return null;
+  }
+
+  /**
+   * Does this guard match values based on their primary protocol?
+   */
+  boolean isProtocolGuard() {
+    return false;
+  }
+
+  /**
+   * Could this guard match a value whose primary protocol is the given one?
+   * Guards that don't match on protocols answer true.
+   */
+  boolean acceptsProtocol(RProtocol primary, IHierarchy hierarchy) {
+    return true;
+  }
+
   /**
    * Returns the score of matching this guard to the given value. The returned
    * score value can be inspected using the static helper methods on this class.
@@ -14,4 +14,11 @@ public interface IHierarchy {
    */
   public Collection<RProtocol> getParents(RProtocol protocol);
 
+  /**
+   * Returns the length of the shortest inheritance path from the first
+   * protocol to the second, 0 if they're the same protocol and -1 if the
+   * second isn't an ancestor of the first.
+   */
+  public int getDistance(RProtocol from, RProtocol to);
+
 }
@@ -0,0 +1,25 @@
+package org.ne.utrino.runtime;
+
+/**
+ * A strategy for running the processes of a runtime on threads.
+ */
+public interface IScheduler {
+
+  /**
+   * Starts executing scheduled processes on behalf of the given runtime.
+   */
+  public void start(Runtime runtime);
+
+  /**
+   * Stops executing processes, returning once no more processes are being
+   * stepped. Doesn't wait for pending work to be done.
+   */
+  public void stop();
+
+  /**
+   * Called when the given process has been marked as scheduled. The process
+   * must be stepped at some point after this call.
+   */
+  public void schedule(Process process);
+
+}
@@ -10,9 +10,9 @@ import org.ne.utrino.value.RMethod;
  */
 public class MethodLookup {
 
-  private final int maxArgCount;
-  private final int[] bestScore;
-  private final int[] scratchScore;
+  private int maxArgCount;
+  private int[] bestScore;
+  private int[] scratchScore;
   private RMethod result;
   private boolean foundMatch;
 
@@ -26,6 +26,19 @@ public class MethodLookup {
     this.scratchScore = new int[maxArgCount];
   }
 
+  /**
+   * Makes sure this lookup can handle invocations with the given number of
+   * arguments, growing it if necessary.
+   */
+  public void ensureCapacity(int argCount) {
+    if (argCount <= maxArgCount)
+      return;
+    int newCount = Math.max(argCount, 2 * maxArgCount);
+    this.maxArgCount = newCount;
+    this.bestScore = new int[newCount];
+    this.scratchScore = new int[newCount];
+  }
+
   /**
    * Returns the method found by the last lookup.
    */
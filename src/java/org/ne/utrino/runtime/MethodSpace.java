@@ -3,9 +3,12 @@ package org.ne.utrino.runtime;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 
+import org.ne.utrino.interpreter.Profiler;
 import org.ne.utrino.util.Assert;
 import org.ne.utrino.util.Factory;
+import org.ne.utrino.value.ITagValue;
 import org.ne.utrino.value.RMethod;
 import org.ne.utrino.value.RProtocol;
 
@@ -15,16 +18,40 @@ import org.ne.utrino.value.RProtocol;
  */
 public class MethodSpace implements IHierarchy {
 
+  private static final int kInitialLookupSize = 8;
+
+  /**
+   * The scratch state used by lookups on each thread. A lookup never runs
+   * code that could cause another lookup on the same thread so one per
+   * thread is enough, and sharing it between spaces means it only grows a
+   * few times over the life of a thread.
+   */
+  private static final ThreadLocal<MethodLookup> LOOKUP = new ThreadLocal<MethodLookup>() {
+    @Override
+    protected MethodLookup initialValue() {
+      return new MethodLookup(kInitialLookupSize);
+    }
+  };
+
   private boolean isFrozen = false;
   private final Map<RProtocol, Collection<RProtocol>> inheritance = Factory.newIdentityHashMap();
   private final Collection<RMethod> methods = Factory.newArrayList();
-  private MethodLookup lookupCache = null;
+  private final Set<ITagValue> identityGuardedTags = Factory.newHashSet();
+  private ProtocolTable protocols = null;
+  private DispatchIndex index = null;
+  private RMethod onlyMethod = null;
+  private int maxArgCount = 0;
 
   @Override
   public Collection<RProtocol> getParents(RProtocol protocol) {
     Assert.that(isFrozen);
-    Collection<RProtocol> parents = inheritance.get(protocol);
-    return (parents == null) ? Collections.<RProtocol>emptySet() : parents;
+    return protocols.getParents(protocol);
+  }
+
+  @Override
+  public int getDistance(RProtocol from, RProtocol to) {
+    Assert.that(isFrozen);
+    return protocols.getDistance(from, to);
   }
 
   /**
@@ -46,10 +73,13 @@ public class MethodSpace implements IHierarchy {
    */
   public RMethod lookupMethod(IInvocation args) {
     Assert.that(isFrozen);
-    MethodLookup lookup = grabLookup(args.getEntryCount());
-    lookup.findMethod(args, methods, this);
+    long start = Profiler.kEnabled ? System.nanoTime() : 0;
+    MethodLookup lookup = LOOKUP.get();
+    lookup.ensureCapacity(Math.max(maxArgCount, args.getEntryCount()));
+    lookup.findMethod(args, index.getCandidates(args), this);
     RMethod result = lookup.getMethod();
-    returnLookup(lookup);
+    if (Profiler.kEnabled)
+      Profiler.recordLookup(System.nanoTime() - start);
     return result;
   }
 
@@ -62,31 +92,53 @@ public class MethodSpace implements IHierarchy {
   }
 
   /**
-   * Freezes this method space if it isn't frozen already.
+   * Returns the inheritance relationships added to this space, mapping each
+   * protocol to its direct supertypes.
    */
-  public void ensureFrozen() {
-    this.isFrozen = true;
+  public Map<RProtocol, Collection<RProtocol>> getInheritance() {
+    return Collections.unmodifiableMap(this.inheritance);
   }
 
   /**
-   * Returns a lookup suitable for looking up an invocation with the give number
-   * of arguments.
+   * Returns the methods in this space.
    */
-  private synchronized MethodLookup grabLookup(int argCount) {
-    if (lookupCache != null && lookupCache.getMaxArguments() <= argCount) {
-      MethodLookup result = lookupCache;
-      lookupCache = null;
-      return result;
+  public Collection<RMethod> getMethods() {
+    return Collections.unmodifiableCollection(this.methods);
+  }
+
+  /**
+   * Returns the method of this frozen space if it has exactly one, otherwise
+   * null.
+   */
+  public RMethod getOnlyMethod() {
+    Assert.that(isFrozen);
+    return this.onlyMethod;
+  }
+
+  /**
+   * Freezes this method space if it isn't frozen already.
+   */
+  public void ensureFrozen() {
+    if (isFrozen)
+      return;
+    for (RMethod method : methods) {
+      method.getSignature().addIdentityGuardedTags(identityGuardedTags);
+      this.maxArgCount = Math.max(maxArgCount, method.getSignature().getParameterCount());
     }
-    return new MethodLookup(argCount * 2);
+    this.protocols = new ProtocolTable(inheritance);
+    this.index = new DispatchIndex(methods, this);
+    this.onlyMethod = (methods.size() == 1) ? methods.iterator().next() : null;
+    this.isFrozen = true;
   }
 
   /**
-   * Caches the given lookup such that it can be reused by future lookups.
+   * Returns true if any method in this space has an identity guard on the
+   * given tag. If not, the species of the argument passed for that tag is all
+   * that matters to lookup.
    */
-  private synchronized void returnLookup(MethodLookup lookup) {
-    if (lookupCache == null || lookupCache.getMaxArguments() < lookup.getMaxArguments())
-      lookupCache = lookup;
+  public boolean isIdentityGuarded(ITagValue tag) {
+    Assert.that(isFrozen);
+    return identityGuardedTags.contains(tag);
   }
 
 }
@@ -6,13 +6,16 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
 
 import org.ne.utrino.interpreter.Activation;
 import org.ne.utrino.interpreter.Assembler;
 import org.ne.utrino.interpreter.CodeBlock;
 import org.ne.utrino.interpreter.Interpreter;
+import org.ne.utrino.interpreter.Intrinsic;
 import org.ne.utrino.util.Assert;
 import org.ne.utrino.util.Exceptions;
+import org.ne.utrino.util.Factory;
 import org.ne.utrino.value.ITagValue;
 import org.ne.utrino.value.IValue;
 import org.ne.utrino.value.RBool;
@@ -40,6 +43,10 @@ public class NativeMethods {
       boolean result = activation.getArgument(0).isIdentical(activation.getArgument(2));
       return RBool.of(result);
     }
+    @Override
+    public Intrinsic getIntrinsic() {
+      return Intrinsic.INT_EQ;
+    }
   };
 
   /* ---
@@ -52,7 +59,11 @@ public class NativeMethods {
     public IValue invoke(Activation activation, InlineInfo inlineInfo) {
       int a = ((RInteger) activation.getArgument(0)).getValue();
       int b = ((RInteger) activation.getArgument(2)).getValue();
-      return new RInteger(a + b);
+      return RInteger.of(a + b);
+    }
+    @Override
+    public Intrinsic getIntrinsic() {
+      return Intrinsic.INT_ADD;
     }
   };
 
@@ -62,7 +73,11 @@ public class NativeMethods {
     public IValue invoke(Activation activation, InlineInfo inlineInfo) {
       int a = ((RInteger) activation.getArgument(0)).getValue();
       int b = ((RInteger) activation.getArgument(2)).getValue();
-      return new RInteger(a - b);
+      return RInteger.of(a - b);
+    }
+    @Override
+    public Intrinsic getIntrinsic() {
+      return Intrinsic.INT_SUB;
     }
   };
 
@@ -75,12 +90,9 @@ public class NativeMethods {
     @Override
     public void invoke(Activation frame, Interpreter inter) {
       RLambda lambda = (RLambda) frame.getArgument(0);
-      MethodSpace methodSpace = lambda.getMethodSpace();
-      IInvocation invoke = Interpreter.getInvocation(frame.getBelow());
-      RMethod method = methodSpace.lookupMethod(invoke);
+      RMethod method = lambda.lookupMethod(inter.getInvocation(frame));
       Assert.notNull(method);
-      Activation nextFrame = Interpreter.setUpCall(frame.getBelow(), method);
-      inter.enterActivation(nextFrame);
+      inter.replaceActivation(method);
     }
   };
 
@@ -112,14 +124,23 @@ public class NativeMethods {
     }
   }
 
+  /**
+   * The inheritance relationships between the built-in types, each a
+   * subtype followed by its supertype.
+   */
+  private static final Class<?>[][] INHERITANCE = {
+    {RInteger.class, RObject.class},
+    {RBool.class, RObject.class}
+  };
+
   /**
    * Adds all the native methods defined in this class to the given context.
    */
   public static void addToContext(RContext context) {
     MethodSpace methodSpace = context.getMethodSpace();
     // Set up inheritance.
-    methodSpace.addInheritance(RInteger.getProtocol(), RObject.getProtocol());
-    methodSpace.addInheritance(RBool.getProtocol(), RObject.getProtocol());
+    for (Class<?>[] entry : INHERITANCE)
+      methodSpace.addInheritance(getProtocol(entry[0]), getProtocol(entry[1]));
     // Set up methods.
     for (Field field : NativeMethods.class.getDeclaredFields()) {
       Native marker = field.getAnnotation(Native.class);
@@ -132,6 +153,84 @@ public class NativeMethods {
     }
   }
 
+  /**
+   * The native and control methods defined here, keyed by the name of the
+   * field that holds them. Built on first use.
+   */
+  private static Map<String, IValue> registry = null;
+
+  /**
+   * A hash of the natives and inheritance {@link #addToContext} sets up.
+   * Built on first use.
+   */
+  private static String fingerprint = null;
+
+  private static synchronized Map<String, IValue> getRegistry() {
+    if (registry == null) {
+      Map<String, IValue> natives = Factory.newLinkedHashMap();
+      for (Field field : NativeMethods.class.getDeclaredFields()) {
+        if (field.getAnnotation(Native.class) != null)
+          natives.put(field.getName(), getNativeMethod(field));
+      }
+      registry = natives;
+    }
+    return registry;
+  }
+
+  /**
+   * Returns a hash of the names and signatures of the natives defined here
+   * and of the inheritance between the built-in types, which changes
+   * whenever what {@link #addToContext} adds does.
+   */
+  public static synchronized String getFingerprint() {
+    if (fingerprint == null) {
+      StringBuilder buf = new StringBuilder();
+      for (Class<?>[] entry : INHERITANCE)
+        buf.append(entry[0].getName()).append("<").append(entry[1].getName()).append(";");
+      for (Field field : NativeMethods.class.getDeclaredFields()) {
+        Native marker = field.getAnnotation(Native.class);
+        if (marker == null)
+          continue;
+        buf.append(field.getName()).append(":").append(marker.self().getName())
+            .append(" ").append(marker.name()).append(" ").append(marker.first().getName())
+            .append(" ").append(marker.isControl()).append(" ").append(marker.allowExtra())
+            .append(";");
+      }
+      fingerprint = CodeCache.hash(buf.toString());
+    }
+    return fingerprint;
+  }
+
+  /**
+   * Returns the native or control method registered under the given name,
+   * null if there is none.
+   */
+  public static IValue getNative(String name) {
+    return getRegistry().get(name);
+  }
+
+  /**
+   * Returns the name the given native or control method is registered under,
+   * null if it isn't one of the ones defined here.
+   */
+  public static String findName(IValue method) {
+    for (Map.Entry<String, IValue> entry : getRegistry().entrySet()) {
+      if (entry.getValue() == method)
+        return entry.getKey();
+    }
+    return null;
+  }
+
+  /**
+   * Returns the name of the field that holds the given native or control
+   * method, or the method's string form if it isn't one of the ones defined
+   * here.
+   */
+  public static String getName(IValue method) {
+    String name = findName(method);
+    return (name == null) ? String.valueOf(method) : name;
+  }
+
   /**
    * Returns the code block that calls the native method stored in the given
    * field.
@@ -169,7 +268,7 @@ public class NativeMethods {
         .newBuilder()
         .setAllowExtra(marker.allowExtra());
     builder
-        .addParameter(Guard.identity(RString.of(marker.name())))
+        .addParameter(Guard.identity(RString.intern(marker.name())))
         .addTag(RKey.NAME);
     addParameter(builder, RKey.THIS, marker.self());
     addParameter(builder, RInteger.of(0), marker.first());
@@ -193,7 +292,7 @@ public class NativeMethods {
   /**
    * Extracts the protocol object for the given class.
    */
-  private static RProtocol getProtocol(Class<? extends IValue> klass) {
+  private static RProtocol getProtocol(Class<?> klass) {
     try {
       return (RProtocol) klass.getMethod("getProtocol").invoke(null);
     } catch (IllegalAccessException iae) {
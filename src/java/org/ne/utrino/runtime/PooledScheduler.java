@@ -0,0 +1,202 @@
+package org.ne.utrino.runtime;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import org.ne.utrino.util.Assert;
+import org.ne.utrino.util.Factory;
+/**
+ * A scheduler that multiplexes all processes onto a fixed pool of worker
+ * threads. Each worker has its own deque of scheduled processes which it
+ * takes work from first, before looking at the processes submitted from
+ * outside the pool and finally trying to steal from the other workers.
+ * Workers that find nothing to do park until new work is scheduled.
+ */
+public class PooledScheduler implements IScheduler {
+
+  /**
+   * A worker thread along with the processes scheduled to run on it.
+   */
+  private class Worker extends Thread {
+
+    private final int index;
+    private int stepCount = 0;
+    private final ConcurrentLinkedDeque<Process> local = new ConcurrentLinkedDeque<Process>();
+
+    /**
+     * Set while this worker is, or is about to be, parked waiting for work.
+     * Only the worker itself sets it. It is cleared by the thread that wakes
+     * the worker or, if nobody does, by the worker when it stops waiting.
+     */
+    private final AtomicBoolean isIdle = new AtomicBoolean(false);
+
+    public Worker(int index) {
+      this.index = index;
+    }
+
+    public PooledScheduler getScheduler() {
+      return PooledScheduler.this;
+    }
+
+    @Override
+    public void run() {
+      runWorker(this);
+    }
+
+  }
+
+  /**
+   * How often, in steps, a worker looks at the submitted processes before its
+   * own deque. Without this a worker whose processes keep rescheduling
+   * themselves would never get to the submitted ones.
+   */
+  private static final int kIncomingCheckInterval = 61;
+
+  private final List<Worker> workers = Factory.newArrayList();
+  private final ConcurrentLinkedQueue<Process> incoming = new ConcurrentLinkedQueue<Process>();
+  private final ConcurrentLinkedQueue<Worker> idle = new ConcurrentLinkedQueue<Worker>();
+  private volatile boolean keepRunning = true;
+
+  /**
+   * Creates a new scheduler that executes using the given number of threads.
+   */
+  public PooledScheduler(int threadCount) {
+    Assert.that(threadCount >= 1);
+    for (int i = 0; i < threadCount; i++)
+      workers.add(new Worker(i));
+  }
+
+  @Override
+  public void start(Runtime runtime) {
+    for (Thread thread : workers)
+      thread.start();
+  }
+
+  @Override
+  public void stop() {
+    this.keepRunning = false;
+    for (Thread thread : this.workers)
+      thread.interrupt();
+    for (Thread thread : this.workers) {
+      try {
+        thread.join();
+      } catch (InterruptedException ie) {
+        return;
+      }
+    }
+    this.workers.clear();
+  }
+
+  /**
+   * All the worker threads will be executing this method.
+   */
+  private void runWorker(Worker worker) {
+    while (this.keepRunning) {
+      Process next = findWork(worker);
+      if (next == null) {
+        awaitWork(worker);
+      } else {
+        next.step();
+      }
+    }
+  }
+
+  /**
+   * Returns the next process the given worker should step, null if there is
+   * nothing to do anywhere.
+   */
+  private Process findWork(Worker worker) {
+    Process next;
+    if (++worker.stepCount % kIncomingCheckInterval == 0) {
+      next = incoming.poll();
+      if (next != null)
+        return next;
+    }
+    next = worker.local.pollFirst();
+    if (next != null)
+      return next;
+    next = incoming.poll();
+    if (next != null)
+      return next;
+    // Steal from the other end of the other workers' deques, starting with
+    // the one after this worker so thieves spread out.
+    int count = workers.size();
+    for (int i = 1; i < count; i++) {
+      Worker victim = workers.get((worker.index + i) % count);
+      next = victim.local.pollLast();
+      if (next != null)
+        return next;
+    }
+    return null;
+  }
+
+  /**
+   * Returns true if any work is waiting to be picked up.
+   */
+  private boolean hasWork() {
+    if (!incoming.isEmpty())
+      return true;
+    for (Worker worker : workers) {
+      if (!worker.local.isEmpty())
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Parks the given worker until there's work available. The worker announces
+   * itself as idle before checking for work one last time so that work
+   * scheduled concurrently either is seen by the check or wakes it up.
+   */
+  private void awaitWork(Worker worker) {
+    worker.isIdle.set(true);
+    idle.offer(worker);
+    if (!hasWork() && keepRunning)
+      LockSupport.park(this);
+    // If the worker found work itself or woke up spuriously it's still marked
+    // as idle and has to take itself off the list before going back to work.
+    if (worker.isIdle.compareAndSet(true, false))
+      idle.remove(worker);
+  }
+
+  /**
+   * Wakes up one idle worker, if there is one. Entries for workers that have
+   * stopped waiting on their own are stale and skipped.
+   */
+  private void wakeIdleWorker() {
+    while (true) {
+      Worker worker = idle.poll();
+      if (worker == null)
+        return;
+      if (worker.isIdle.compareAndSet(true, false)) {
+        LockSupport.unpark(worker);
+        return;
+      }
+    }
+  }
+
+  /**
+   * If the given process is being rescheduled by one of this scheduler's
+   * workers it goes on that worker's deque, otherwise it is submitted to all
+   * of them.
+   */
+  @Override
+  public void schedule(Process process) {
+    Thread current = Thread.currentThread();
+    if (current instanceof Worker && ((Worker) current).getScheduler() == this) {
+      Worker worker = (Worker) current;
+      worker.local.offerLast(process);
+      // Only get help if the worker has other things to do before it gets to
+      // this process, otherwise it'll just pick it up itself.
+      if (worker.local.peekFirst() != process)
+        wakeIdleWorker();
+    } else {
+      incoming.offer(process);
+      wakeIdleWorker();
+    }
+  }
+
+}
@@ -1,8 +1,8 @@
 package org.ne.utrino.runtime;
 
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.ne.utrino.util.Factory;
 import org.ne.utrino.value.IValue;
 import org.ne.utrino.value.RPromise;
 /**
@@ -29,39 +29,64 @@ public class Process {
 
   }
 
-  private boolean isScheduled = false;
+  /**
+   * Set while this process is either waiting in a queue or being stepped,
+   * which ensures that it is only ever stepped by one worker at a time.
+   */
+  private final AtomicBoolean isScheduled = new AtomicBoolean(false);
   private final Runtime runtime;
-  private final LinkedList<PendingTask<?>> work = Factory.newLinkedList();
+  private final ConcurrentLinkedQueue<PendingTask<?>> work = new ConcurrentLinkedQueue<PendingTask<?>>();
 
   public Process(Runtime runtime) {
     this.runtime = runtime;
   }
 
-  public synchronized <T extends IValue> RPromise<T> schedule(ITask<T> task) {
+  public <T extends IValue> RPromise<T> schedule(ITask<T> task) {
     PendingTask<T> pending = new PendingTask<T>(task);
     this.work.add(pending);
     this.runtime.ensureScheduled(this);
     return pending.promise;
   }
 
+  /**
+   * Executes pending tasks until there are none left or the runtime's quantum
+   * is used up. The process stays scheduled until the step is done, after
+   * which it is rescheduled behind whatever else is waiting if there is more
+   * work.
+   */
   public void step() {
-    PendingTask<?> first;
-    synchronized (this) {
-      first = work.removeFirst();
+    int taskQuantum = runtime.getTaskQuantum();
+    long timeQuantum = runtime.getTimeQuantumNanos();
+    long deadline = (timeQuantum > 0) ? System.nanoTime() + timeQuantum : 0;
+    for (int i = 0; i < taskQuantum; i++) {
+      PendingTask<?> next = work.poll();
+      if (next == null)
+        break;
+      next.execute(this);
+      if (timeQuantum > 0 && System.nanoTime() - deadline >= 0)
+        break;
     }
-    first.execute(this);
+    clearScheduled();
     if (!work.isEmpty())
       this.runtime.ensureScheduled(this);
   }
 
-  public synchronized boolean getAndSetScheduled() {
-    boolean result = this.isScheduled;
-    this.isScheduled = true;
-    return result;
+  /**
+   * Marks this process as scheduled, returning true if it already was.
+   */
+  public boolean getAndSetScheduled() {
+    return this.isScheduled.getAndSet(true);
+  }
+
+  /**
+   * Returns true if this process is waiting to be stepped or being stepped.
+   */
+  public boolean isScheduled() {
+    return this.isScheduled.get();
   }
 
-  public synchronized void clearScheduled() {
-    this.isScheduled = false;
+  public void clearScheduled() {
+    this.isScheduled.set(false);
   }
 
 }
@@ -0,0 +1,78 @@
+package org.ne.utrino.runtime;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import org.ne.utrino.util.Factory;
+import org.ne.utrino.value.RProtocol;
+
+/**
+ * An immutable inheritance graph which precomputes the distance from each
+ * protocol to each of its ancestors, so distance queries don't have to walk
+ * the graph.
+ */
+public class ProtocolTable implements IHierarchy {
+
+  private final Map<RProtocol, Collection<RProtocol>> parents = Factory.newIdentityHashMap();
+  private final Map<RProtocol, Map<RProtocol, Integer>> ancestors = Factory.newIdentityHashMap();
+
+  /**
+   * Creates a table for the hierarchy where the parents of each protocol are
+   * given by the map.
+   */
+  public ProtocolTable(Map<RProtocol, ? extends Collection<RProtocol>> parents) {
+    for (Map.Entry<RProtocol, ? extends Collection<RProtocol>> entry : parents.entrySet()) {
+      Collection<RProtocol> protoParents = Factory.newArrayList();
+      protoParents.addAll(entry.getValue());
+      this.parents.put(entry.getKey(), Collections.unmodifiableCollection(protoParents));
+    }
+    for (RProtocol protocol : this.parents.keySet())
+      this.ancestors.put(protocol, findAncestors(protocol));
+  }
+
+  /**
+   * Returns a map from each strict ancestor of the given protocol to the
+   * length of the shortest path to it. Since the walk is breadth first the
+   * first time we reach an ancestor is along the shortest path.
+   */
+  private Map<RProtocol, Integer> findAncestors(RProtocol protocol) {
+    Map<RProtocol, Integer> result = Factory.newIdentityHashMap();
+    ArrayDeque<RProtocol> pending = new ArrayDeque<RProtocol>();
+    pending.add(protocol);
+    result.put(protocol, 0);
+    while (!pending.isEmpty()) {
+      RProtocol current = pending.remove();
+      int nextDist = result.get(current) + 1;
+      for (RProtocol parent : getParents(current)) {
+        if (parent == protocol)
+          throw new RuntimeException("Inheritance cycle involving " + protocol);
+        if (!result.containsKey(parent)) {
+          result.put(parent, nextDist);
+          pending.add(parent);
+        }
+      }
+    }
+    result.remove(protocol);
+    return result;
+  }
+
+  @Override
+  public Collection<RProtocol> getParents(RProtocol protocol) {
+    Collection<RProtocol> result = parents.get(protocol);
+    return (result == null) ? Collections.<RProtocol>emptySet() : result;
+  }
+
+  @Override
+  public int getDistance(RProtocol from, RProtocol to) {
+    if (from == to)
+      return 0;
+    Map<RProtocol, Integer> fromAncestors = ancestors.get(from);
+    if (fromAncestors == null)
+      return -1;
+    Integer result = fromAncestors.get(to);
+    return (result == null) ? -1 : result;
+  }
+
+}
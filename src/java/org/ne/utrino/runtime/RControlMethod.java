@@ -2,11 +2,15 @@ package org.ne.utrino.runtime;
 
 import org.ne.utrino.interpreter.Activation;
 import org.ne.utrino.interpreter.Interpreter;
+import org.ne.utrino.plankton.EncodingError;
+import org.ne.utrino.plankton.IPlanktonDatable;
+import org.ne.utrino.plankton.IPlanktonFactory;
+import org.ne.utrino.plankton.ISeed;
 import org.ne.utrino.value.RInternalData;
 /**
  * A native method that is allowed to affect control flow.
  */
-public abstract class RControlMethod extends RInternalData {
+public abstract class RControlMethod extends RInternalData implements IPlanktonDatable {
 
   /**
    * Perform this native method with arguments given through the given frame.
@@ -15,4 +19,16 @@ public abstract class RControlMethod extends RInternalData {
    */
   public abstract void invoke(Activation frame, Interpreter inter);
 
+  /**
+   * Natives are stored by the name they're registered under in
+   * {@link NativeMethods}.
+   */
+  @Override
+  public ISeed toPlanktonData(IPlanktonFactory factory) {
+    String name = NativeMethods.findName(this);
+    if (name == null)
+      throw new EncodingError(this.toString());
+    return factory.newSeed().setHeader(CodeCache.kNative).setPayload(name);
+  }
+
 }
@@ -1,6 +1,11 @@
 package org.ne.utrino.runtime;
 
 import org.ne.utrino.interpreter.Activation;
+import org.ne.utrino.interpreter.Intrinsic;
+import org.ne.utrino.plankton.EncodingError;
+import org.ne.utrino.plankton.IPlanktonDatable;
+import org.ne.utrino.plankton.IPlanktonFactory;
+import org.ne.utrino.plankton.ISeed;
 import org.ne.utrino.value.IValue;
 import org.ne.utrino.value.RInternalData;
 
@@ -9,7 +14,7 @@ import org.ne.utrino.value.RInternalData;
  * For efficiency native methods have the option to rewrite themselves into
  * raw bytecodes.
  */
-public abstract class RNativeMethod extends RInternalData {
+public abstract class RNativeMethod extends RInternalData implements IPlanktonDatable {
 
   /**
    * Information about whether and how to inline a native method.
@@ -27,4 +32,24 @@ public abstract class RNativeMethod extends RInternalData {
    */
   public abstract IValue invoke(Activation frame, InlineInfo inlineInfo);
 
+  /**
+   * Returns the intrinsic the interpreter can use instead of calling this
+   * method, null if there is none.
+   */
+  public Intrinsic getIntrinsic() {
+    return null;
+  }
+
+  /**
+   * Natives are stored by the name they're registered under in
+   * {@link NativeMethods}.
+   */
+  @Override
+  public ISeed toPlanktonData(IPlanktonFactory factory) {
+    String name = NativeMethods.findName(this);
+    if (name == null)
+      throw new EncodingError(this.toString());
+    return factory.newSeed().setHeader(CodeCache.kNative).setPayload(name);
+  }
+
 }
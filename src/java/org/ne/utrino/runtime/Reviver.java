@@ -0,0 +1,163 @@
+package org.ne.utrino.runtime;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ne.utrino.ast.Invocation.RInvocationDescriptor;
+import org.ne.utrino.interpreter.CodeBlock;
+import org.ne.utrino.plankton.DecodingError;
+import org.ne.utrino.plankton.ISeed;
+import org.ne.utrino.util.Factory;
+import org.ne.utrino.util.IFunction;
+import org.ne.utrino.util.Name;
+import org.ne.utrino.value.ITagValue;
+import org.ne.utrino.value.IValue;
+import org.ne.utrino.value.Phase;
+import org.ne.utrino.value.RBool;
+import org.ne.utrino.value.RContext;
+import org.ne.utrino.value.RInteger;
+import org.ne.utrino.value.RKey;
+import org.ne.utrino.value.RLambda;
+import org.ne.utrino.value.RMethod;
+import org.ne.utrino.value.RNull;
+import org.ne.utrino.value.RProtocol;
+import org.ne.utrino.value.RString;
+
+/**
+ * Turns decoded plankton seeds back into the objects they were encoded
+ * from. Seeds that were shared when encoded are shared when decoded. All
+ * code is restored into the same context.
+ */
+class Reviver implements IFunction<Object, Object> {
+
+  private final RContext context;
+  private final Map<Object, Object> revived = new IdentityHashMap<Object, Object>();
+
+  public Reviver(RContext context) {
+    this.context = context;
+  }
+
+  /**
+   * Restores a name stored as the list of its parts.
+   */
+  public Name reviveName(Object data) {
+    List<ITagValue> parts = Factory.newArrayList();
+    for (Object part : expect(data, List.class))
+      parts.add(expect(call(part), ITagValue.class));
+    return new Name(parts);
+  }
+
+  @Override
+  public Object call(Object obj) {
+    if (!(obj instanceof ISeed))
+      return obj;
+    Object result = revived.get(obj);
+    if (result == null) {
+      result = reviveSeed((ISeed) obj);
+      revived.put(obj, result);
+    }
+    return result;
+  }
+
+  private Object reviveSeed(ISeed seed) {
+    Object header = seed.getHeader();
+    Object payload = seed.getPayload();
+    if (CodeCache.kCodeBlock.equals(header)) {
+      Map<?, ?> map = expect(payload, Map.class);
+      List<?> constants = getField(map, "constants", List.class);
+      IValue[] constantArray = new IValue[constants.size()];
+      for (int i = 0; i < constantArray.length; i++)
+        constantArray[i] = expect(call(constants.get(i)), IValue.class);
+      return new CodeBlock(context, toIntArray(getField(map, "code", List.class)), constantArray,
+          getField(map, "inlineCacheCount", Integer.class),
+          getField(map, "maxStackHeight", Integer.class));
+    } else if (CodeCache.kInvocationDescriptor.equals(header)) {
+      Map<?, ?> map = expect(payload, Map.class);
+      List<?> tags = getField(map, "tags", List.class);
+      ITagValue[] tagArray = new ITagValue[tags.size()];
+      for (int i = 0; i < tagArray.length; i++)
+        tagArray[i] = expect(call(tags.get(i)), ITagValue.class);
+      return new RInvocationDescriptor(toIntArray(getField(map, "order", List.class)), tagArray);
+    } else if (CodeCache.kSignature.equals(header)) {
+      return Signature.fromPlanktonData(expect(payload, Map.class), this);
+    } else if (CodeCache.kMethod.equals(header)) {
+      Map<?, ?> map = expect(payload, Map.class);
+      return new RMethod(expect(call(map.get("signature")), Signature.class),
+          expect(call(map.get("code")), CodeBlock.class));
+    } else if (CodeCache.kLambda.equals(header)) {
+      Map<?, ?> map = expect(payload, Map.class);
+      MethodSpace methodSpace = new MethodSpace();
+      for (Object method : getField(map, "methods", List.class))
+        methodSpace.addMethod(expect(call(method), RMethod.class));
+      List<?> captures = getField(map, "captures", List.class);
+      IValue[] captureArray = new IValue[captures.size()];
+      for (int i = 0; i < captureArray.length; i++)
+        captureArray[i] = expect(call(captures.get(i)), IValue.class);
+      RLambda lambda = new RLambda(methodSpace, captureArray);
+      lambda.trySetPhase(Phase.SHALLOW_IMMUTABLE);
+      return lambda;
+    } else if (CodeCache.kAnyGuard.equals(header)) {
+      return Guard.any();
+    } else if (CodeCache.kIdentityGuard.equals(header)) {
+      return Guard.identity(expect(call(payload), IValue.class));
+    } else if (CodeCache.kIsGuard.equals(header)) {
+      return Guard.is(expect(call(payload), RProtocol.class));
+    } else if (CodeCache.kProtocol.equals(header)) {
+      return notNull(ContextSnapshot.getBuiltinProtocol(expect(payload, String.class)), payload);
+    } else if (CodeCache.kNative.equals(header)) {
+      return notNull(NativeMethods.getNative(expect(payload, String.class)), payload);
+    } else if (CodeCache.kInteger.equals(header)) {
+      return RInteger.of(expect(payload, Integer.class));
+    } else if (CodeCache.kString.equals(header)) {
+      return RString.intern(expect(payload, String.class));
+    } else if (CodeCache.kBool.equals(header)) {
+      return RBool.of(expect(payload, Boolean.class));
+    } else if (CodeCache.kNull.equals(header)) {
+      return RNull.get();
+    } else if (CodeCache.kKey.equals(header)) {
+      if ("this".equals(payload)) {
+        return RKey.THIS;
+      } else if ("name".equals(payload)) {
+        return RKey.NAME;
+      }
+    }
+    throw new DecodingError("Unexpected header " + header);
+  }
+
+  /**
+   * Returns the given value, failing to decode if it is null because the
+   * given name didn't refer to anything.
+   */
+  private static Object notNull(Object value, Object name) {
+    if (value == null)
+      throw new DecodingError("Unknown name " + name);
+    return value;
+  }
+
+  /**
+   * Returns the given value as an instance of the given type, failing to
+   * decode if it is null or of some other type.
+   */
+  static <T> T expect(Object value, Class<T> type) {
+    if (!type.isInstance(value))
+      throw new DecodingError("Expected " + type.getSimpleName() + " but found " + value);
+    return type.cast(value);
+  }
+
+  /**
+   * Returns the value of the given field of the given map, failing to decode
+   * if it is missing or of the wrong type.
+   */
+  static <T> T getField(Map<?, ?> map, String key, Class<T> type) {
+    return expect(map.get(key), type);
+  }
+
+  private static int[] toIntArray(List<?> values) {
+    int[] result = new int[values.size()];
+    for (int i = 0; i < result.length; i++)
+      result[i] = expect(values.get(i), Integer.class);
+    return result;
+  }
+
+}
@@ -1,59 +1,84 @@
 package org.ne.utrino.runtime;
 
-import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.ne.utrino.util.Assert;
-import org.ne.utrino.util.Factory;
 /**
- * A runtime, the home of all the processes.
+ * A runtime, the home of all the processes. How the processes are mapped onto
+ * threads is up to the runtime's scheduler.
  */
 public class Runtime {
 
-  private final List<Thread> workers = Factory.newArrayList();
-  private final LinkedBlockingQueue<Process> processes = new LinkedBlockingQueue<Process>();
-  private volatile boolean keepRunning = true;
+  /**
+   * The default maximum number of tasks a process executes per step.
+   */
+  public static final int kDefaultTaskQuantum = 64;
+
+  /**
+   * The default maximum time a process gets to execute tasks per step.
+   */
+  public static final long kDefaultTimeQuantumNanos = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final IScheduler scheduler;
+  private final int taskQuantum;
+  private final long timeQuantumNanos;
 
   /**
-   * Creates a new runtime that executes using the given number of threads.
+   * Creates a new runtime that executes on a pool of the given number of
+   * threads using the default quanta.
    */
   public Runtime(int threadCount) {
-    Assert.that(threadCount >= 1);
-    for (int i = 0; i < threadCount; i++) {
-      final int workerIndex = i;
-      Thread thread = new Thread(new Runnable() {
-        @Override
-        public void run() {
-          runWorker(workerIndex);
-        }
-      });
-      workers.add(thread);
-    }
+    this(threadCount, kDefaultTaskQuantum, kDefaultTimeQuantumNanos);
+  }
+
+  /**
+   * Creates a new runtime that executes on a pool of the given number of
+   * threads, using the given quanta.
+   */
+  public Runtime(int threadCount, int taskQuantum, long timeQuantumNanos) {
+    this(new PooledScheduler(threadCount), taskQuantum, timeQuantumNanos);
+  }
+
+  /**
+   * Creates a new runtime that executes using the given scheduler. Each time
+   * a process is scheduled it gets to execute at most the given number of
+   * tasks, stopping early once it has spent the given time. A nonpositive
+   * time quantum means that only the number of tasks counts.
+   */
+  public Runtime(IScheduler scheduler, int taskQuantum, long timeQuantumNanos) {
+    Assert.that(taskQuantum >= 1);
+    this.scheduler = scheduler;
+    this.taskQuantum = taskQuantum;
+    this.timeQuantumNanos = timeQuantumNanos;
   }
 
   /**
-   * Starts the worker threads running.
+   * Starts running processes.
    */
   public void start() {
-    for (Thread thread : workers)
-      thread.start();
+    scheduler.start(this);
   }
 
   /**
-   * Doesn't wait for the workers to finish but just stops them forcefully.
+   * Doesn't wait for the processes to finish but just stops them forcefully.
    */
   public void stop() {
-    this.keepRunning = false;
-    for (Thread thread : this.workers)
-      thread.interrupt();
-    for (Thread thread : this.workers) {
-      try {
-        thread.join();
-      } catch (InterruptedException ie) {
-        return;
-      }
-    }
-    this.workers.clear();
+    scheduler.stop();
+  }
+
+  /**
+   * Returns the maximum number of tasks a process executes per step.
+   */
+  public int getTaskQuantum() {
+    return this.taskQuantum;
+  }
+
+  /**
+   * Returns the maximum time in nanoseconds a process executes tasks per
+   * step, nonpositive if there is no limit.
+   */
+  public long getTimeQuantumNanos() {
+    return this.timeQuantumNanos;
   }
 
   /**
@@ -64,26 +89,11 @@ public class Runtime {
   }
 
   /**
-   * All the worker threads will be executing this method.
+   * Makes sure the given process is scheduled to run.
    */
-  protected void runWorker(int workerIndex) {
-    while (this.keepRunning) {
-      Process next;
-      try {
-        next = processes.take();
-      } catch (InterruptedException ie) {
-        return;
-      }
-      synchronized (this) {
-        next.clearScheduled();
-      }
-      next.step();
-    }
-  }
-
-  public synchronized void ensureScheduled(Process process) {
+  public void ensureScheduled(Process process) {
     if (!process.getAndSetScheduled())
-      processes.offer(process);
+      scheduler.schedule(process);
   }
 
 }
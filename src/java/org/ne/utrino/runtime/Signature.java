@@ -1,12 +1,19 @@
 package org.ne.utrino.runtime;
 
 import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
+import org.ne.utrino.plankton.IPlanktonDatable;
+import org.ne.utrino.plankton.IPlanktonFactory;
+import org.ne.utrino.plankton.IPlanktonFactory.IPlanktonArray;
+import org.ne.utrino.plankton.ISeed;
 import org.ne.utrino.util.Assert;
 import org.ne.utrino.util.Factory;
+import org.ne.utrino.util.IFunction;
 import org.ne.utrino.value.ITagValue;
 import org.ne.utrino.value.IValue;
 
@@ -14,7 +21,7 @@ import org.ne.utrino.value.IValue;
  * A method signature that can be used to match against a concrete set of
  * arguments.
  */
-public class Signature {
+public class Signature implements IPlanktonDatable {
 
   /**
    * A single signature entry.
@@ -177,6 +184,20 @@ public class Signature {
   private final int mandatoryParamCount;
   private final boolean allowExtra;
 
+  // The entries unpacked into parallel arrays in tag order such that
+  // matching doesn't have to go through the entry objects.
+  private final ITagValue[] entryTags;
+  private final Guard[] entryGuards;
+  private final int[] entryParams;
+  private final boolean[] entryOptional;
+
+  /**
+   * Is every parameter mandatory with exactly one tag and no extra arguments
+   * allowed? For such signatures an invocation matches exactly if it has the
+   * same tags.
+   */
+  private final boolean isExact;
+
   private Signature(int totalParamCount, int mandatoryParamCount, List<Entry> entries,
       boolean allowExtra) {
     this.tags = buildTagList(entries);
@@ -184,6 +205,20 @@ public class Signature {
     this.totalParamCount = totalParamCount;
     this.mandatoryParamCount = mandatoryParamCount;
     this.allowExtra = allowExtra;
+    int count = entries.size();
+    this.entryTags = new ITagValue[count];
+    this.entryGuards = new Guard[count];
+    this.entryParams = new int[count];
+    this.entryOptional = new boolean[count];
+    for (int i = 0; i < count; i++) {
+      Entry entry = entries.get(i);
+      entryTags[i] = entry.tag;
+      entryGuards[i] = entry.guard;
+      entryParams[i] = entry.index;
+      entryOptional[i] = entry.isOptional;
+    }
+    this.isExact = !allowExtra && (mandatoryParamCount == totalParamCount)
+        && (count == totalParamCount);
   }
 
   /**
@@ -208,6 +243,60 @@ public class Signature {
     return -1;
   }
 
+  /**
+   * Returns the number of parameters that must be passed for a call to match.
+   */
+  public int getMandatoryParameterCount() {
+    return this.mandatoryParamCount;
+  }
+
+  /**
+   * Does this signature accept arguments it has no parameters for?
+   */
+  public boolean allowsExtra() {
+    return this.allowExtra;
+  }
+
+  /**
+   * Returns the guard on the parameter with the given tag or null if there is
+   * no such parameter.
+   */
+  Guard getGuardForTag(ITagValue tag) {
+    int entryIndex = Collections.binarySearch(tags, tag);
+    return (entryIndex < 0) ? null : entries.get(entryIndex).guard;
+  }
+
+  /**
+   * Is the parameter with the given tag optional? The tag must be present.
+   */
+  boolean isOptional(ITagValue tag) {
+    int entryIndex = Collections.binarySearch(tags, tag);
+    Assert.that(entryIndex >= 0);
+    return entries.get(entryIndex).isOptional;
+  }
+
+  /**
+   * Adds the tags of the entries whose guards match on protocols to the given
+   * collection.
+   */
+  void addProtocolGuardedTags(Collection<ITagValue> out) {
+    for (Entry entry : entries) {
+      if (entry.guard.isProtocolGuard())
+        out.add(entry.tag);
+    }
+  }
+
+  /**
+   * Adds the tags of the entries whose guards match by identity to the given
+   * collection.
+   */
+  void addIdentityGuardedTags(Collection<ITagValue> out) {
+    for (Entry entry : entries) {
+      if (entry.guard.getIdentityValue() != null)
+        out.add(entry.tag);
+    }
+  }
+
   /**
    * Returns a fresh signature builder.
    */
@@ -235,17 +324,22 @@ public class Signature {
   public MatchResult match(IInvocation record, IHierarchy hierarchy, int[] scores) {
     int recordEntryCount = record.getEntryCount();
     Assert.that(scores.length >= recordEntryCount);
-    BitSet paramsSeen = new BitSet(totalParamCount);
+    // The parameters seen so far, one bit each. Signatures with more than 64
+    // parameters keep track of the rest in a bit set.
+    long paramsSeen = 0;
+    BitSet moreParamsSeen = null;
     int mandatoryArgsSeenCount = 0;
     MatchResult onMatch = MatchResult.MATCH;
-    for (int i = 0; i < recordEntryCount; i++)
-      scores[i] = Guard.NO_MATCH;
-    // Scan through the arguments and look them up in the signature.
+    // Both the invocation and the entries are sorted by tag so they can be
+    // scanned together, each only once.
+    int entryIndex = 0;
+    int entryCount = entryTags.length;
     for (int i = 0; i < recordEntryCount; i++) {
       ITagValue tag = record.getTag(i);
-      IValue value = record.getValue(i);
-      int entryIndex = Collections.binarySearch(tags, tag);
-      if (entryIndex < 0) {
+      int cmp = -1;
+      while (entryIndex < entryCount && (cmp = compareTags(entryTags[entryIndex], tag)) < 0)
+        entryIndex++;
+      if (cmp != 0) {
         if (allowExtra) {
           onMatch = MatchResult.EXTRA_MATCH;
           scores[i] = Guard.EXTRA_MATCH;
@@ -255,20 +349,26 @@ public class Signature {
           return MatchResult.UNEXPECTED_ARGUMENT;
         }
       }
-      Entry entry = entries.get(entryIndex);
-      if (paramsSeen.get(entry.index)) {
-        // We've seen this entry before; fail.
-        return MatchResult.REDUNDANT_ARGUMENT;
-      }
-      int score = entry.guard.match(value, hierarchy);
-      if (!Guard.isMatch(score)) {
-        return MatchResult.GUARD_REJECTED;
+      int param = entryParams[entryIndex];
+      if (param < 64) {
+        long bit = 1L << param;
+        if ((paramsSeen & bit) != 0)
+          return MatchResult.REDUNDANT_ARGUMENT;
+        paramsSeen |= bit;
       } else {
-        paramsSeen.set(entry.index);
-        scores[i] = score;
-        if (!entry.isOptional)
-          mandatoryArgsSeenCount++;
+        if (moreParamsSeen == null)
+          moreParamsSeen = new BitSet(totalParamCount);
+        if (moreParamsSeen.get(param))
+          return MatchResult.REDUNDANT_ARGUMENT;
+        moreParamsSeen.set(param);
       }
+      int score = entryGuards[entryIndex].match(record.getValue(i), hierarchy);
+      if (!Guard.isMatch(score))
+        return MatchResult.GUARD_REJECTED;
+      scores[i] = score;
+      if (!entryOptional[entryIndex])
+        mandatoryArgsSeenCount++;
+      entryIndex++;
     }
     if (mandatoryArgsSeenCount < mandatoryParamCount) {
       // There are some parameters we haven't seen. Fail.
@@ -279,6 +379,72 @@ public class Signature {
     }
   }
 
+  /**
+   * Compares two tags, trying identity first since the tags used in
+   * signatures and invocations are usually the same canonical objects.
+   */
+  private static int compareTags(ITagValue a, ITagValue b) {
+    return (a == b) ? 0 : a.compareTo(b);
+  }
+
+  /**
+   * Returns true if the given invocation matches this signature. This gives
+   * the same answer as {@link #match} but when the signature is exact, as the
+   * signatures of lambdas are, it compares the sorted tags of the invocation
+   * pairwise with its own instead of looking each one up and allocates
+   * nothing.
+   */
+  public boolean accepts(IInvocation record, IHierarchy hierarchy) {
+    int recordEntryCount = record.getEntryCount();
+    if (!isExact)
+      return match(record, hierarchy, new int[recordEntryCount]).didMatch();
+    if (recordEntryCount != entryTags.length)
+      return false;
+    for (int i = 0; i < recordEntryCount; i++) {
+      if (compareTags(entryTags[i], record.getTag(i)) != 0)
+        return false;
+      if (!Guard.isMatch(entryGuards[i].match(record.getValue(i), hierarchy)))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Rebuilds a signature from the payload produced by {@link #toPlanktonData},
+   * using the given function to restore the tags and guards.
+   */
+  static Signature fromPlanktonData(Map<?, ?> payload, IFunction<Object, Object> revive) {
+    List<Entry> entries = Factory.newArrayList();
+    for (Object obj : Reviver.getField(payload, "entries", List.class)) {
+      Map<?, ?> entry = Reviver.expect(obj, Map.class);
+      entries.add(new Entry(Reviver.expect(revive.call(entry.get("tag")), ITagValue.class),
+          Reviver.expect(revive.call(entry.get("guard")), Guard.class),
+          Reviver.getField(entry, "optional", Boolean.class),
+          Reviver.getField(entry, "index", Integer.class)));
+    }
+    Collections.sort(entries);
+    return new Signature(Reviver.getField(payload, "totalParamCount", Integer.class),
+        Reviver.getField(payload, "mandatoryParamCount", Integer.class), entries,
+        Reviver.getField(payload, "allowExtra", Boolean.class));
+  }
+
+  @Override
+  public ISeed toPlanktonData(IPlanktonFactory factory) {
+    IPlanktonArray entryArray = factory.newArray();
+    for (Entry entry : entries) {
+      entryArray.push(factory.newMap()
+          .set("tag", entry.tag)
+          .set("guard", entry.guard)
+          .set("optional", entry.isOptional)
+          .set("index", entry.index));
+    }
+    return factory.newSeed().setHeader(CodeCache.kSignature).setPayload(factory.newMap()
+        .set("entries", entryArray)
+        .set("totalParamCount", totalParamCount)
+        .set("mandatoryParamCount", mandatoryParamCount)
+        .set("allowExtra", allowExtra));
+  }
+
   @Override
   public String toString() {
     return Objects.toString(this.entries);
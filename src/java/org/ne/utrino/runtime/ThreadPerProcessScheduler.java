@@ -0,0 +1,183 @@
+package org.ne.utrino.runtime;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+import org.ne.utrino.util.Exceptions;
+/**
+ * A scheduler that gives each process its own thread which steps the process
+ * whenever it has work and parks otherwise. Where the platform supports them
+ * the threads are virtual so a runtime can have very many mostly idle
+ * processes; otherwise they are plain daemon threads. A thread whose process
+ * has had nothing to do for a while exits and a new one is created the next
+ * time the process is scheduled.
+ */
+public class ThreadPerProcessScheduler implements IScheduler {
+
+  /**
+   * Factory for virtual threads, null if they're not supported.
+   */
+  private static final ThreadFactory VIRTUAL_THREADS = getVirtualThreadFactory();
+
+  /**
+   * The default time a thread waits for more work before exiting.
+   */
+  public static final long kDefaultLingerNanos = 1000000000L;
+
+  private final long lingerNanos;
+  private final ConcurrentMap<Process, Thread> threads = new ConcurrentHashMap<Process, Thread>();
+  private volatile boolean isStarted = false;
+  private volatile boolean keepRunning = true;
+
+  public ThreadPerProcessScheduler() {
+    this(kDefaultLingerNanos);
+  }
+
+  /**
+   * Creates a scheduler whose threads exit once their process has had
+   * nothing to do for the given number of nanoseconds.
+   */
+  public ThreadPerProcessScheduler(long lingerNanos) {
+    this.lingerNanos = lingerNanos;
+  }
+
+  /**
+   * Returns a factory for virtual threads if this platform supports them,
+   * otherwise null. This goes through reflection so the code still builds
+   * and runs on versions of java that don't have them.
+   */
+  private static ThreadFactory getVirtualThreadFactory() {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (NoSuchMethodException nsme) {
+      return null;
+    } catch (ClassNotFoundException cnfe) {
+      return null;
+    } catch (IllegalAccessException iae) {
+      throw Exceptions.propagate(iae);
+    } catch (InvocationTargetException ite) {
+      // Virtual threads exist but are disabled, for instance because they're
+      // still a preview feature.
+      if (ite.getCause() instanceof UnsupportedOperationException)
+        return null;
+      throw Exceptions.propagate(ite);
+    }
+  }
+
+  /**
+   * Returns true if processes are run on virtual threads.
+   */
+  public static boolean isUsingVirtualThreads() {
+    return VIRTUAL_THREADS != null;
+  }
+
+  @Override
+  public void start(Runtime runtime) {
+    this.isStarted = true;
+    for (Thread thread : threads.values())
+      LockSupport.unpark(thread);
+  }
+
+  @Override
+  public void stop() {
+    this.keepRunning = false;
+    for (Thread thread : threads.values())
+      thread.interrupt();
+    for (Thread thread : threads.values()) {
+      try {
+        thread.join();
+      } catch (InterruptedException ie) {
+        return;
+      }
+    }
+    this.threads.clear();
+  }
+
+  /**
+   * Wakes up the thread that runs the given process, creating it if this is
+   * the first time the process is scheduled.
+   */
+  @Override
+  public void schedule(Process process) {
+    Thread thread = threads.get(process);
+    if (thread == null) {
+      Thread created = newThread(process);
+      thread = threads.putIfAbsent(process, created);
+      if (thread == null) {
+        thread = created;
+        thread.start();
+      }
+    }
+    LockSupport.unpark(thread);
+  }
+
+  /**
+   * Creates, but doesn't start, a thread that runs the given process.
+   */
+  private Thread newThread(final Process process) {
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        runProcess(process);
+      }
+    };
+    if (VIRTUAL_THREADS != null)
+      return VIRTUAL_THREADS.newThread(task);
+    Thread result = new Thread(task);
+    result.setDaemon(true);
+    return result;
+  }
+
+  /**
+   * The thread of each process will be executing this method.
+   */
+  private void runProcess(Process process) {
+    Thread current = Thread.currentThread();
+    boolean hasLingered = false;
+    try {
+      while (this.keepRunning) {
+        if (this.isStarted && process.isScheduled()) {
+          process.step();
+          hasLingered = false;
+        } else if (!this.isStarted) {
+          LockSupport.park(this);
+        } else if (!hasLingered) {
+          LockSupport.parkNanos(this, lingerNanos);
+          hasLingered = true;
+        } else if (retire(process, current)) {
+          return;
+        } else {
+          hasLingered = false;
+        }
+      }
+    } finally {
+      threads.remove(process, current);
+    }
+  }
+
+  /**
+   * Removes the given thread as the one running the given process and
+   * returns true if it should exit. If the process was scheduled while the
+   * thread was still registered the thread carries on instead, unless a new
+   * one has already been created.
+   */
+  private boolean retire(Process process, Thread thread) {
+    threads.remove(process, thread);
+    if (!process.isScheduled())
+      return true;
+    return threads.putIfAbsent(process, thread) != null;
+  }
+
+  /**
+   * Returns the number of threads currently running processes.
+   */
+  int getThreadCount() {
+    return threads.size();
+  }
+
+}
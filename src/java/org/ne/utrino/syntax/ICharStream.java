@@ -34,4 +34,10 @@ public interface ICharStream {
    */
   public String substring(int start, int end);
 
+  /**
+   * Tells this stream that no substrings starting before the given position
+   * will be asked for, so it doesn't have to keep that part of the input.
+   */
+  public void release(int position);
+
 }
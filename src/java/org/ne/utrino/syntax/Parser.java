@@ -1,7 +1,9 @@
 package org.ne.utrino.syntax;
 
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import org.ne.utrino.ast.IDeclaration;
 import org.ne.utrino.ast.IExpression;
@@ -22,6 +24,11 @@ import org.ne.utrino.value.ITagValue;
 import org.ne.utrino.value.IValue;
 import org.ne.utrino.value.RInteger;
 
+/**
+ * Recursive descent parser. The parser only ever looks at the current token
+ * so it can consume tokens lazily from an iterator, for instance straight
+ * from a {@link Tokenizer}.
+ */
 public class Parser {
 
   private static final String DEF_WORD = "def";
@@ -30,23 +37,30 @@ public class Parser {
   private static final String ASSIGN_OP = ":=";
   private static final String TO_OP = "=>";
 
-  private final List<Token> tokens;
-  private int cursor = 0;
+  private final Iterator<Token> tokens;
+  private Token current;
 
   public Parser(List<Token> tokens) {
+    this(tokens.iterator());
+  }
+
+  public Parser(Iterator<Token> tokens) {
     this.tokens = tokens;
+    advance();
   }
 
   private boolean hasMore() {
-    return cursor < tokens.size();
+    return current != null;
   }
 
   private Token getCurrent() {
-    return tokens.get(cursor);
+    if (current == null)
+      throw new NoSuchElementException();
+    return current;
   }
 
   private void advance() {
-    cursor++;
+    current = tokens.hasNext() ? tokens.next() : null;
   }
 
   private Unit parseUnit() {
@@ -311,4 +325,11 @@ public class Parser {
     return new Parser(tokens).parseUnit();
   }
 
+  /**
+   * Parses a unit from the given tokens, consuming them as they're needed.
+   */
+  public static Unit parseUnit(Iterator<Token> tokens) {
+    return new Parser(tokens).parseUnit();
+  }
+
 }
@@ -0,0 +1,204 @@
+package org.ne.utrino.syntax;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.ne.utrino.util.Assert;
+import org.ne.utrino.util.Exceptions;
+
+/**
+ * A character stream that reads its input from a reader through a buffer.
+ * Only the part of the input that hasn't been released is kept so as long as
+ * the stream is released regularly, which the tokenizer does, memory use is
+ * bounded by the buffer size and the longest token rather than the size of
+ * the input.
+ */
+public class ReaderCharStream implements ICharStream, Closeable {
+
+  /**
+   * The default number of characters to buffer.
+   */
+  public static final int kDefaultBufferSize = 8192;
+
+  private final Reader reader;
+  private char[] buffer;
+
+  /**
+   * The position in the input of the first character in the buffer.
+   */
+  private int bufferStart = 0;
+
+  /**
+   * The number of characters in the buffer.
+   */
+  private int bufferLength = 0;
+
+  /**
+   * The position in the input before which characters may be discarded.
+   */
+  private int released = 0;
+
+  private boolean isAtEnd = false;
+  private int cursor;
+  private char current;
+
+  public ReaderCharStream(Reader reader) {
+    this(reader, kDefaultBufferSize);
+  }
+
+  public ReaderCharStream(Reader reader, int bufferSize) {
+    Assert.that(bufferSize >= 2);
+    this.reader = reader;
+    this.buffer = new char[bufferSize];
+    this.cursor = -1;
+    advance();
+  }
+
+  /**
+   * Returns a stream that reads the given UTF-8 file, which is mapped into
+   * memory rather than read.
+   */
+  public static ReaderCharStream map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new ReaderCharStream(new DecodingReader(bytes));
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * A reader that decodes UTF-8 from a byte buffer.
+   */
+  private static class DecodingReader extends Reader {
+
+    private final ByteBuffer bytes;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+
+    public DecodingReader(ByteBuffer bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public int read(char[] chars, int offset, int length) throws IOException {
+      CharBuffer out = CharBuffer.wrap(chars, offset, length);
+      CoderResult result = decoder.decode(bytes, out, true);
+      if (result.isError())
+        result.throwException();
+      int count = out.position() - offset;
+      return (count == 0 && !bytes.hasRemaining()) ? -1 : count;
+    }
+
+    @Override
+    public void close() {
+      // Nothing to do, the mapping goes away with the buffer.
+    }
+
+  }
+
+  /**
+   * Makes sure the character at the given position has been read into the
+   * buffer, if the input is that long. Returns false if it isn't.
+   */
+  private boolean ensureBuffered(int position) {
+    while (position >= bufferStart + bufferLength) {
+      if (isAtEnd)
+        return false;
+      // A reader may need room for two chars to make progress, a surrogate
+      // pair, and otherwise reads nothing.
+      while (buffer.length - bufferLength < 2)
+        makeRoom();
+      int count;
+      try {
+        count = reader.read(buffer, bufferLength, buffer.length - bufferLength);
+      } catch (IOException ioe) {
+        throw Exceptions.propagate(ioe);
+      }
+      if (count < 0) {
+        isAtEnd = true;
+      } else {
+        bufferLength += count;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Makes room in the buffer by dropping the released characters or, if
+   * there are none, growing it.
+   */
+  private void makeRoom() {
+    int dropCount = released - bufferStart;
+    if (dropCount > 0) {
+      System.arraycopy(buffer, dropCount, buffer, 0, bufferLength - dropCount);
+      bufferStart += dropCount;
+      bufferLength -= dropCount;
+    } else {
+      buffer = Arrays.copyOf(buffer, 2 * buffer.length);
+    }
+  }
+
+  @Override
+  public boolean hasMore() {
+    return cursor < bufferStart + bufferLength;
+  }
+
+  @Override
+  public char getCurrent() {
+    return current;
+  }
+
+  @Override
+  public char getNext() {
+    int next = cursor + 1;
+    return ensureBuffered(next) ? buffer[next - bufferStart] : '\0';
+  }
+
+  @Override
+  public void advance() {
+    cursor++;
+    current = ensureBuffered(cursor) ? buffer[cursor - bufferStart] : '\0';
+  }
+
+  @Override
+  public int getCursor() {
+    return cursor;
+  }
+
+  @Override
+  public String substring(int start, int end) {
+    Assert.that(start >= bufferStart);
+    return new String(buffer, start - bufferStart, end - start);
+  }
+
+  @Override
+  public void release(int position) {
+    Assert.that(position <= cursor);
+    released = Math.max(released, position);
+  }
+
+  /**
+   * Returns the current size of the buffer.
+   */
+  int getBufferSize() {
+    return buffer.length;
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+
+}
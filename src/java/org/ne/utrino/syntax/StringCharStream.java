@@ -43,4 +43,9 @@ public class StringCharStream implements ICharStream {
     return source.substring(start, end);
   }
 
+  @Override
+  public void release(int position) {
+    // The whole string is kept anyway.
+  }
+
 }
@@ -1,6 +1,8 @@
 package org.ne.utrino.syntax;
 
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import org.ne.utrino.syntax.Token.DelimiterStatus;
 import org.ne.utrino.syntax.Token.LiteralToken;
@@ -15,9 +17,11 @@ import org.ne.utrino.value.RInteger;
 import org.ne.utrino.value.RString;
 
 /**
- * Utility for chopping a string into tokens.
+ * Utility for chopping a string into tokens. A tokenizer is also an iterator
+ * over the tokens of its input which scans them one at a time as they're
+ * asked for, so the input doesn't have to be held in memory all at once.
  */
-public class Tokenizer {
+public class Tokenizer implements Iterator<Token> {
 
   private final ICharStream source;
   private DelimiterStatus nextDelimStatus = DelimiterStatus.NONE;
@@ -129,12 +133,26 @@ public class Tokenizer {
       advance();
   }
 
+  @Override
+  public boolean hasNext() {
+    return hasMore();
+  }
+
+  @Override
+  public Token next() {
+    if (!hasMore())
+      throw new NoSuchElementException();
+    return scanNext();
+  }
+
   /**
    * Advances over the next token or tokens, adding them to the given
    * list.
    */
   public Token scanNext() {
     Assert.that(hasMore());
+    // Tokens never reach back before where they start.
+    source.release(getCursor());
     Token result;
     DelimiterStatus delimStatus = this.nextDelimStatus;
     this.nextDelimStatus = DelimiterStatus.NONE;
@@ -210,7 +228,7 @@ public class Tokenizer {
       int end = getCursor();
       advance();
       String str = source.substring(start, end);
-      return new TagToken(delimStatus, RString.of(str));
+      return new TagToken(delimStatus, RString.intern(str));
     } else {
       return new Token(Type.WORD, source.substring(start, getCursor()), delimStatus);
     }
@@ -225,7 +243,7 @@ public class Tokenizer {
     String value = source.substring(start, getCursor());
     List<ITagValue> parts = Factory.newArrayList();
     for (String part : value.substring(1).split(":"))
-      parts.add(RString.of(part));
+      parts.add(RString.intern(part));
     return new Token.NameToken(value, delimStatus, isDynamic, Name.of(parts.toArray(new ITagValue[0])));
   }
 
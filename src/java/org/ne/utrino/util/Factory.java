@@ -1,10 +1,13 @@
 package org.ne.utrino.util;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Stack;
 import java.util.TreeMap;
 
@@ -21,6 +24,13 @@ public class Factory {
     return new ArrayList<T>();
   }
 
+  /**
+   * Creates a new array list containing the given elements.
+   */
+  public static <T> ArrayList<T> newArrayList(Collection<? extends T> elements) {
+    return new ArrayList<T>(elements);
+  }
+
   /**
    * Creates a new hash map.
    */
@@ -28,6 +38,20 @@ public class Factory {
     return new HashMap<K, V>();
   }
 
+  /**
+   * Creates a new hash map containing the given entries.
+   */
+  public static <K, V> HashMap<K, V> newHashMap(Map<? extends K, ? extends V> entries) {
+    return new HashMap<K, V>(entries);
+  }
+
+  /**
+   * Creates a new linked hash map.
+   */
+  public static <K, V> LinkedHashMap<K, V> newLinkedHashMap() {
+    return new LinkedHashMap<K, V>();
+  }
+
   /**
    * Creates a new identity hash map.
    */
@@ -17,6 +17,13 @@ public class Name {
     return new Name(Arrays.asList(parts));
   }
 
+  /**
+   * Returns the parts of this name.
+   */
+  public List<ITagValue> getParts() {
+    return this.parts;
+  }
+
   @Override
   public boolean equals(Object obj) {
     if (this == obj) {
@@ -28,6 +35,11 @@ public class Name {
     }
   }
 
+  @Override
+  public int hashCode() {
+    return parts.hashCode();
+  }
+
   @Override
   public String toString() {
     return parts.toString();
@@ -1,6 +1,11 @@
 package org.ne.utrino.value;
 
-public class RBool extends RDeepImmutable {
+import org.ne.utrino.plankton.IPlanktonDatable;
+import org.ne.utrino.plankton.IPlanktonFactory;
+import org.ne.utrino.plankton.ISeed;
+import org.ne.utrino.runtime.CodeCache;
+
+public class RBool extends RDeepImmutable implements IPlanktonDatable {
 
   private static final RProtocol PROTOCOL = new RProtocol("Bool");
   private static final Species SPECIES = new Species(PROTOCOL);
@@ -54,4 +59,9 @@ public class RBool extends RDeepImmutable {
     return value ? "#<true>" : "#<false>";
   }
 
+  @Override
+  public ISeed toPlanktonData(IPlanktonFactory factory) {
+    return factory.newSeed().setHeader(CodeCache.kBool).setPayload(value);
+  }
+
 }
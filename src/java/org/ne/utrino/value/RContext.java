@@ -1,10 +1,12 @@
 package org.ne.utrino.value;
 
+import java.util.Collections;
 import java.util.Map;
 
 import org.ne.utrino.runtime.MethodSpace;
 import org.ne.utrino.util.Assert;
 import org.ne.utrino.util.Factory;
+import org.ne.utrino.util.Name;
 /**
  * A combined name- and methodspace.
  */
@@ -13,8 +15,29 @@ public class RContext extends RBuiltObject {
   private static final RProtocol PROTOCOL = new RProtocol();
   private static final Species SPECIES = new Species(PROTOCOL);
 
-  private final Map<IValue, IValue> namespace = Factory.newHashMap();
-  private final MethodSpace methodSpace = new MethodSpace();
+  private final Map<Name, IValue> namespace;
+  private final MethodSpace methodSpace;
+
+  public RContext() {
+    this(Factory.<Name, IValue>newHashMap(), new MethodSpace());
+  }
+
+  private RContext(Map<Name, IValue> namespace, MethodSpace methodSpace) {
+    this.namespace = namespace;
+    this.methodSpace = methodSpace;
+  }
+
+  /**
+   * Returns an immutable copy of this context holding the current bindings
+   * and sharing its method space, which gets frozen. Code compiled against
+   * the snapshot can be folded and run concurrently while bindings are still
+   * being added to this context.
+   */
+  public RContext newSnapshot() {
+    RContext result = new RContext(Factory.newHashMap(namespace), methodSpace);
+    result.trySetPhase(Phase.SHALLOW_IMMUTABLE);
+    return result;
+  }
 
   /**
    * Returns this context's method space.
@@ -26,11 +49,26 @@ public class RContext extends RBuiltObject {
   /**
    * Binds the given key to the given value in this namespace.
    */
-  public void set(IValue key, IValue value) {
+  public void set(Name key, IValue value) {
     Assert.that(this.getPhase().isMutable());
     namespace.put(key, value);
   }
 
+  /**
+   * Returns the value bound to the given key in this namespace, or null if
+   * there is none.
+   */
+  public IValue get(Name key) {
+    return namespace.get(key);
+  }
+
+  /**
+   * Returns the bindings in this namespace.
+   */
+  public Map<Name, IValue> getNamespace() {
+    return Collections.unmodifiableMap(namespace);
+  }
+
   @Override
   public boolean trySetPhase(Phase phase) {
     boolean result = super.trySetPhase(phase);
@@ -1,12 +1,25 @@
 package org.ne.utrino.value;
+
+import org.ne.utrino.plankton.IPlanktonDatable;
+import org.ne.utrino.plankton.IPlanktonFactory;
+import org.ne.utrino.plankton.ISeed;
+import org.ne.utrino.runtime.CodeCache;
 /**
  * A 32-bit fixed integer.
  */
-public class RInteger extends RDeepImmutable implements ITagValue {
+public class RInteger extends RDeepImmutable implements ITagValue, IPlanktonDatable {
 
   private static final RProtocol PROTOCOL = new RProtocol();
   private static final Species SPECIES = new Species(PROTOCOL);
 
+  /**
+   * Integers between these bounds, inclusive, are preallocated and shared.
+   * The bounds can be changed through system properties.
+   */
+  private static final int kCacheLow = Integer.getInteger("org.ne.utrino.integerCacheLow", -128);
+  private static final int kCacheHigh = Integer.getInteger("org.ne.utrino.integerCacheHigh", 1023);
+  private static final RInteger[] CACHE = buildCache();
+
   private final int value;
 
   public RInteger(int value) {
@@ -56,12 +69,25 @@ public class RInteger extends RDeepImmutable implements ITagValue {
   }
 
   /**
-   * Returns a new integer with the given value.
+   * Returns an integer with the given value. Small integers come from a
+   * shared cache so the result is only guaranteed to be new for values
+   * outside the cached range.
    */
   public static RInteger of(int value) {
+    if (kCacheLow <= value && value <= kCacheHigh)
+      return CACHE[value - kCacheLow];
     return new RInteger(value);
   }
 
+  private static RInteger[] buildCache() {
+    if (kCacheHigh < kCacheLow)
+      return new RInteger[0];
+    RInteger[] result = new RInteger[kCacheHigh - kCacheLow + 1];
+    for (int i = 0; i < result.length; i++)
+      result[i] = new RInteger(kCacheLow + i);
+    return result;
+  }
+
   @Override
   public Species getSpecies() {
     return SPECIES;
@@ -71,4 +97,9 @@ public class RInteger extends RDeepImmutable implements ITagValue {
     return PROTOCOL;
   }
 
+  @Override
+  public ISeed toPlanktonData(IPlanktonFactory factory) {
+    return factory.newSeed().setHeader(CodeCache.kInteger).setPayload(value);
+  }
+
 }
@@ -1,10 +1,15 @@
 package org.ne.utrino.value;
 
+import org.ne.utrino.plankton.EncodingError;
+import org.ne.utrino.plankton.IPlanktonDatable;
+import org.ne.utrino.plankton.IPlanktonFactory;
+import org.ne.utrino.plankton.ISeed;
+import org.ne.utrino.runtime.CodeCache;
 
 /**
  * A unique key.
  */
-public class RKey extends RDeepImmutable implements ITagValue {
+public class RKey extends RDeepImmutable implements ITagValue, IPlanktonDatable {
 
   /**
    * The receiver argument key.
@@ -68,4 +73,21 @@ public class RKey extends RDeepImmutable implements ITagValue {
     return this.debugName;
   }
 
+  /**
+   * Only the well-known keys can be stored since other keys are only
+   * identified by the object itself.
+   */
+  @Override
+  public ISeed toPlanktonData(IPlanktonFactory factory) {
+    String name;
+    if (this == THIS) {
+      name = "this";
+    } else if (this == NAME) {
+      name = "name";
+    } else {
+      throw new EncodingError(this.toString());
+    }
+    return factory.newSeed().setHeader(CodeCache.kKey).setPayload(name);
+  }
+
 }
@@ -1,16 +1,70 @@
 package org.ne.utrino.value;
 
+import java.util.Arrays;
+
+import org.ne.utrino.plankton.EncodingError;
+import org.ne.utrino.plankton.IPlanktonDatable;
+import org.ne.utrino.plankton.IPlanktonFactory;
+import org.ne.utrino.plankton.ISeed;
+import org.ne.utrino.runtime.CodeCache;
+import org.ne.utrino.runtime.IInvocation;
 import org.ne.utrino.runtime.MethodSpace;
+import org.ne.utrino.util.Factory;
 
-public class RLambda extends RBuiltObject {
+public class RLambda extends RBuiltObject implements IPlanktonDatable {
 
   private static final RProtocol PROTOCOL = new RProtocol("Lambda");
   private static final Species SPECIES = new Species(PROTOCOL);
 
+  private static final IValue[] NO_CAPTURES = new IValue[0];
+
   private final MethodSpace methodSpace;
+  private final IValue[] captures;
 
   public RLambda(MethodSpace methodSpace) {
+    this(methodSpace, NO_CAPTURES);
+  }
+
+  public RLambda(MethodSpace methodSpace, IValue[] captures) {
     this.methodSpace = methodSpace;
+    this.captures = captures;
+  }
+
+  /**
+   * Returns a new immutable lambda with the same methods as this one that
+   * has captured the given values.
+   */
+  public RLambda close(IValue[] captures) {
+    RLambda result = new RLambda(methodSpace, captures);
+    result.trySetPhase(Phase.SHALLOW_IMMUTABLE);
+    return result;
+  }
+
+  /**
+   * Returns the method to call for the given invocation of this lambda, null
+   * if there is none. Lambdas created from source have exactly one method
+   * so rather than going through a full lookup the invocation is checked
+   * directly against that method's signature.
+   */
+  public RMethod lookupMethod(IInvocation invoke) {
+    RMethod method = methodSpace.getOnlyMethod();
+    if (method == null)
+      return methodSpace.lookupMethod(invoke);
+    return method.getSignature().accepts(invoke, methodSpace) ? method : null;
+  }
+
+  /**
+   * Returns the captured value with the given index.
+   */
+  public IValue getCapture(int index) {
+    return this.captures[index];
+  }
+
+  /**
+   * Returns the number of values captured by this lambda.
+   */
+  public int getCaptureCount() {
+    return this.captures.length;
   }
 
   /**
@@ -37,4 +91,15 @@ public class RLambda extends RBuiltObject {
     return result;
   }
 
+  @Override
+  public ISeed toPlanktonData(IPlanktonFactory factory) {
+    for (IValue capture : captures) {
+      if (!(capture instanceof IPlanktonDatable))
+        throw new EncodingError(String.valueOf(capture));
+    }
+    return factory.newSeed().setHeader(CodeCache.kLambda).setPayload(factory.newMap()
+        .set("methods", Factory.newArrayList(methodSpace.getMethods()))
+        .set("captures", Factory.newArrayList(Arrays.asList(captures))));
+  }
+
 }
@@ -1,9 +1,13 @@
 package org.ne.utrino.value;
 
 import org.ne.utrino.interpreter.CodeBlock;
+import org.ne.utrino.plankton.IPlanktonDatable;
+import org.ne.utrino.plankton.IPlanktonFactory;
+import org.ne.utrino.plankton.ISeed;
+import org.ne.utrino.runtime.CodeCache;
 import org.ne.utrino.runtime.Signature;
 
-public class RMethod extends RDeepImmutable {
+public class RMethod extends RDeepImmutable implements IPlanktonDatable {
 
   private static final RProtocol PROTOCOL = new RProtocol();
   private static final Species SPECIES = new Species(PROTOCOL);
@@ -40,4 +44,11 @@ public class RMethod extends RDeepImmutable {
     return this.code;
   }
 
+  @Override
+  public ISeed toPlanktonData(IPlanktonFactory factory) {
+    return factory.newSeed().setHeader(CodeCache.kMethod).setPayload(factory.newMap()
+        .set("signature", signature)
+        .set("code", code));
+  }
+
 }
@@ -1,7 +1,11 @@
 package org.ne.utrino.value;
 
+import org.ne.utrino.plankton.IPlanktonDatable;
+import org.ne.utrino.plankton.IPlanktonFactory;
+import org.ne.utrino.plankton.ISeed;
+import org.ne.utrino.runtime.CodeCache;
 
-public class RNull extends RDeepImmutable {
+public class RNull extends RDeepImmutable implements IPlanktonDatable {
 
   private static final RProtocol PROTOCOL = new RProtocol();
   private static final Species SPECIES = new Species(PROTOCOL);
@@ -23,4 +27,9 @@ public class RNull extends RDeepImmutable {
     return SPECIES;
   }
 
+  @Override
+  public ISeed toPlanktonData(IPlanktonFactory factory) {
+    return factory.newSeed().setHeader(CodeCache.kNull);
+  }
+
 }
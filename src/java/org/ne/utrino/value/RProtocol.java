@@ -1,11 +1,18 @@
 package org.ne.utrino.value;
 
+import org.ne.utrino.plankton.EncodingError;
+import org.ne.utrino.plankton.IPlanktonDatable;
+import org.ne.utrino.plankton.IPlanktonFactory;
+import org.ne.utrino.plankton.ISeed;
+import org.ne.utrino.runtime.CodeCache;
+import org.ne.utrino.runtime.ContextSnapshot;
+
 /**
  * An atomic protocol object. A protocol identifies an object as supporting a
  * particular set of messages. The protocol itself doesn't know what those
  * messages are, the method space has that information.
  */
-public class RProtocol extends RDeepImmutable {
+public class RProtocol extends RDeepImmutable implements IPlanktonDatable {
 
   private static final RProtocol PROTOCOL = new RProtocol("Protocol");
   private static final Species SPECIES = new Species(PROTOCOL);
@@ -35,4 +42,16 @@ public class RProtocol extends RDeepImmutable {
     return "#<protocol " + (debugName == null ? ("#" + hashCode()) : debugName) + ">";
   }
 
+  /**
+   * Only the built-in protocols can be stored since other protocols are only
+   * identified by the object itself.
+   */
+  @Override
+  public ISeed toPlanktonData(IPlanktonFactory factory) {
+    String name = ContextSnapshot.getBuiltinProtocolName(this);
+    if (name == null)
+      throw new EncodingError(this.toString());
+    return factory.newSeed().setHeader(CodeCache.kProtocol).setPayload(name);
+  }
+
 }
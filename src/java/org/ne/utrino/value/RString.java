@@ -1,19 +1,40 @@
 package org.ne.utrino.value;
 
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+import org.ne.utrino.plankton.IPlanktonDatable;
+import org.ne.utrino.plankton.IPlanktonFactory;
+import org.ne.utrino.plankton.ISeed;
+import org.ne.utrino.runtime.CodeCache;
 import org.ne.utrino.util.Assert;
 
 
-public class RString extends RDeepImmutable implements ITagValue {
+public class RString extends RDeepImmutable implements ITagValue, IPlanktonDatable {
 
   private static final RProtocol PROTOCOL = new RProtocol();
   private static final Species SPECIES = new Species(PROTOCOL);
 
+  /**
+   * The strings that have been interned. An entry goes away once its string
+   * object is no longer used anywhere else.
+   */
+  private static final WeakHashMap<String, WeakReference<RString>> INTERNED =
+      new WeakHashMap<String, WeakReference<RString>>();
+
   private final String value;
 
   public RString(String value) {
     this.value = Assert.notNull(value);
   }
 
+  /**
+   * Returns the string value of this object.
+   */
+  public String getValue() {
+    return this.value;
+  }
+
   @Override
   public int compareTo(ITagValue that) {
     Flavor thatFlavor = that.getFlavor();
@@ -65,4 +86,29 @@ public class RString extends RDeepImmutable implements ITagValue {
     return new RString(value);
   }
 
+  /**
+   * Returns the canonical string object with the given value, which is the
+   * same object for as long as anyone holds on to it. Use this for strings
+   * that are created over and over, like method names, so identity checks
+   * between them can be decided by comparing references.
+   */
+  public static RString intern(String value) {
+    synchronized (INTERNED) {
+      WeakReference<RString> ref = INTERNED.get(value);
+      RString result = (ref == null) ? null : ref.get();
+      if (result == null) {
+        result = new RString(value);
+        // Key on the result's own string so the entry lives exactly as long
+        // as the result.
+        INTERNED.put(result.value, new WeakReference<RString>(result));
+      }
+      return result;
+    }
+  }
+
+  @Override
+  public ISeed toPlanktonData(IPlanktonFactory factory) {
+    return factory.newSeed().setHeader(CodeCache.kString).setPayload(value);
+  }
+
 }
@@ -2,34 +2,69 @@ package org.ne.utrino.interpreter;
 
 import static org.ne.utrino.testing.TestFactory.toValue;
 
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Test;
 import org.ne.utrino.ast.IExpression;
+import org.ne.utrino.ast.Invocation;
+import org.ne.utrino.ast.Literal;
 import org.ne.utrino.runtime.Compiler;
 import org.ne.utrino.runtime.NativeMethods;
 import org.ne.utrino.syntax.Parser;
 import org.ne.utrino.syntax.Token;
 import org.ne.utrino.syntax.Tokenizer;
+import org.ne.utrino.util.Factory;
 import org.ne.utrino.value.IValue;
 import org.ne.utrino.value.Phase;
 import org.ne.utrino.value.RContext;
+import org.ne.utrino.value.RLambda;
 
 import junit.framework.TestCase;
 
 public class InterpreterTest extends TestCase {
 
-  private static IValue run(IExpression expr, RContext context) {
-    return Interpreter.interpret(Compiler.linkAndCompile(null, expr, context));
+  private static RContext newContext() {
+    RContext context = new RContext();
+    NativeMethods.addToContext(context);
+    assertTrue(context.trySetPhase(Phase.SHALLOW_IMMUTABLE));
+    return context;
   }
 
-  private static IValue run(String str) {
+  static CodeBlock compile(String str) {
     List<Token> tokens = Tokenizer.tokenize(str);
     IExpression expr = new Parser(tokens).parseExpression();
-    RContext context = new RContext();
-    NativeMethods.addToContext(context);
-    assertTrue(context.trySetPhase(Phase.SHALLOW_IMMUTABLE));
-    return run(expr, context);
+    return Compiler.linkAndCompile(null, expr, newContext());
+  }
+
+  /**
+   * Compiles a call to the given lambda with no arguments.
+   */
+  private static CodeBlock compileCall(IValue lambda) {
+    IExpression call = new Invocation.Builder()
+        .setThis(new Literal(lambda))
+        .setName("()")
+        .build();
+    return Compiler.compile(null, call, newContext());
+  }
+
+  /**
+   * Compiles the given program without optimizing it.
+   */
+  private static CodeBlock compileUnoptimized(String str) {
+    IExpression expr = new Parser(Tokenizer.tokenize(str)).parseExpression();
+    return Compiler.linkAndCompile(null, expr, newContext(), false);
+  }
+
+  /**
+   * Runs the given program with each of the engines, checking that they
+   * agree on the result.
+   */
+  private static IValue run(String str) {
+    IValue result = Interpreter.interpret(compile(str), Interpreter.Engine.SWITCH);
+    for (Interpreter.Engine engine : Interpreter.Engine.values())
+      assertEquals(result, Interpreter.interpret(compile(str), engine));
+    return result;
   }
 
   @Test
@@ -61,4 +96,246 @@ public class InterpreterTest extends TestCase {
     assertEquals(toValue(7), run("(fn ($a, $b) => $b)(6, 7)"));
   }
 
+  @Test
+  public void testInlineCache() {
+    CodeBlock block = compile("(fn ($a) => $a)((fn => 3)())");
+    InlineCache[] caches = block.getInlineCaches();
+    assertEquals(2, caches.length);
+    assertEquals(toValue(3), Interpreter.interpret(block));
+    for (InlineCache cache : caches) {
+      assertEquals(0, cache.getHitCount());
+      assertEquals(1, cache.getMissCount());
+      assertEquals(1, cache.getEntryCount());
+    }
+    assertEquals(toValue(3), Interpreter.interpret(block));
+    for (InlineCache cache : caches) {
+      assertEquals(1, cache.getHitCount());
+      assertEquals(1, cache.getMissCount());
+    }
+  }
+
+  @Test
+  public void testIntrinsics() {
+    // Optimizing would fold this to a constant.
+    CodeBlock block = compileUnoptimized("(1 + 2) - (3 + 4)");
+    InlineCache[] caches = block.getInlineCaches();
+    assertEquals(3, caches.length);
+    assertEquals(toValue(-4), Interpreter.interpret(block));
+    // Each site looks up its method once to check that the intrinsic is
+    // valid and after that doesn't dispatch at all.
+    for (int i = 0; i < 2; i++) {
+      for (InlineCache cache : caches) {
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+      }
+      assertEquals(toValue(-4), Interpreter.interpret(block));
+    }
+    assertEquals(toValue(true), run("(2 + 3) == 5"));
+    assertEquals(toValue(false), run("(2 - 3) == 1"));
+    // Non-integers fall back to dispatching.
+    assertEquals(toValue(true), run("(1 == 1) == (2 == 2)"));
+    assertEquals(toValue(false), run("(1 == 1) == 1"));
+    assertEquals(toValue(7), run("(fn => 3)() + 4"));
+  }
+
+  @Test
+  public void testDeepNesting() {
+    // Deep enough to grow both the value stack and the activation pool.
+    StringBuilder sum = new StringBuilder("0");
+    for (int i = 0; i < 300; i++)
+      sum.insert(0, "1 + (").append(")");
+    assertEquals(toValue(300), run(sum.toString()));
+    StringBuilder calls = new StringBuilder("5");
+    for (int i = 0; i < 100; i++)
+      calls.insert(0, "(fn => ").append(")()");
+    assertEquals(toValue(5), run(calls.toString()));
+  }
+
+  @Test
+  public void testEngines() {
+    CodeBlock block = compile("(fn ($a) => $a - 1)((fn => 3)() + 1)");
+    assertEquals(toValue(3), Interpreter.interpret(block, Interpreter.Engine.SWITCH));
+    assertEquals(toValue(3), Interpreter.interpret(block, Interpreter.Engine.DECODED));
+    // Both engines go through the same inline caches: the two calls dispatch
+    // and the addition resolves its intrinsic once.
+    InlineCache[] caches = block.getInlineCaches();
+    assertEquals(3, caches.length);
+    int hits = 0;
+    int misses = 0;
+    for (InlineCache cache : caches) {
+      hits += cache.getHitCount();
+      misses += cache.getMissCount();
+    }
+    assertEquals(2, hits);
+    assertEquals(3, misses);
+  }
+
+  /**
+   * Runs the given program with each engine with every block compiled on
+   * its first activation, unless profiling is enabled which keeps code from
+   * being compiled. The program is run both optimized and not, since
+   * optimizing folds away most of what literal programs would exercise.
+   */
+  private static IValue runCompiled(String str) {
+    IValue result = null;
+    for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+      for (CodeBlock block : Arrays.asList(compile(str), compileUnoptimized(str))) {
+        IValue value = Interpreter.interpret(block, engine, 1);
+        assertEquals(!Profiler.kEnabled, block.isCompiled());
+        if (result != null)
+          assertEquals(result, value);
+        result = value;
+      }
+    }
+    return result;
+  }
+
+  @Test
+  public void testJvmTier() {
+    assertEquals(toValue(8), runCompiled("8"));
+    assertEquals(toValue(12), runCompiled("3 + 4 + 5"));
+    assertEquals(toValue(-1), runCompiled("3 - 4"));
+    assertEquals(toValue(true), runCompiled("(2 + 3) == 5"));
+    assertEquals(toValue(false), runCompiled("(1 == 1) == 1"));
+    assertEquals(toValue(7), runCompiled("def $x := 6 in def $y := 7 in $y"));
+    assertEquals(toValue(3), runCompiled("1 + (def $a := 2 in $a)"));
+    assertEquals(toValue(7), runCompiled("(fn ($a, $b) => $b)(6, 7)"));
+    assertEquals(toValue(3), runCompiled("(fn ($a) => $a - 1)((fn => 3)() + 1)"));
+    assertEquals(toValue(8), runCompiled("(fn => (def $b := 7 in $b))() + 1"));
+    StringBuilder calls = new StringBuilder("5");
+    for (int i = 0; i < 100; i++)
+      calls.insert(0, "(fn ($x) => $x)(").append(" + 1)");
+    assertEquals(toValue(105), runCompiled(calls.toString()));
+  }
+
+  @Test
+  public void testTierUp() {
+    CodeBlock block = compile("(fn ($a) => $a + 1)(2)");
+    for (int i = 1; i <= 4; i++) {
+      assertEquals(toValue(3), Interpreter.interpret(block, Interpreter.Engine.SWITCH, 3));
+      assertEquals(i >= 3 && !Profiler.kEnabled, block.isCompiled());
+    }
+  }
+
+  /**
+   * Returns the opcodes of the given block.
+   */
+  private static List<Opcode> getOpcodes(CodeBlock block) {
+    List<Opcode> result = Factory.newArrayList();
+    int[] code = block.getCode();
+    for (int pc = 0; pc < code.length; pc += Opcode.of(code[pc]).getLength())
+      result.add(Opcode.of(code[pc]));
+    return result;
+  }
+
+  @Test
+  public void testOptimizer() {
+    List<Opcode> constant = Arrays.asList(Opcode.PUSH, Opcode.IMPLICIT_RETURN);
+    String[] folded = {"3 + 4", "1 + 2 + 3", "(1 + 2) - (3 + 4)", "(2 + 3) == 5",
+        "def $x := 4 in $x", "def $x := 4 in 5", "def $x := 6 in def $y := 7 in $x + $y",
+        "1 + (def $a := 2 in $a)"};
+    for (String source : folded) {
+      CodeBlock block = compile(source);
+      assertEquals(source, constant, getOpcodes(block));
+      assertEquals(1, block.getConstants().length);
+      assertEquals(0, block.getInlineCaches().length);
+      assertEquals(1, block.getMaxStackHeight());
+      assertEquals(Interpreter.interpret(compileUnoptimized(source)), Interpreter.interpret(block));
+    }
+    // Non-integer operations still dispatch.
+    CodeBlock bools = compile("(1 == 1) == (2 == 2)");
+    assertEquals(Arrays.asList(Opcode.PUSH, Opcode.PUSH, Opcode.PUSH, Opcode.INT_EQ,
+        Opcode.IMPLICIT_RETURN), getOpcodes(bools));
+    assertEquals(toValue(true), Interpreter.interpret(bools));
+    // A local bound to a call result is kept as long as it's read.
+    CodeBlock local = compile("def $x := (fn => 3)() in $x + $x");
+    assertEquals(toValue(6), Interpreter.interpret(local));
+    assertTrue(getOpcodes(local).contains(Opcode.LOCAL));
+    // So is an unread one since the call may have side effects.
+    CodeBlock unread = compile("def $x := (fn => 3)() in (fn => 4)()");
+    assertEquals(toValue(4), Interpreter.interpret(unread));
+    assertTrue(getOpcodes(unread).contains(Opcode.POP_BELOW));
+    // Code the optimizer can't fold agrees with the unoptimized version.
+    String[] sources = {"(fn ($a) => $a - 1)((fn => 3)() + 1)",
+        "def $x := (fn => 6)() in def $y := 7 in def $z := $x in $z + $y",
+        "(fn ($a, $b) => def $c := $a in def $d := 2 in $b - $c)(6, 7)"};
+    for (String source : sources)
+      assertEquals(Interpreter.interpret(compileUnoptimized(source)), run(source));
+  }
+
+  @Test
+  public void testTailCalls() {
+    // A call whose result is returned is a tail call, also after dropping
+    // locals, but not one whose result is used.
+    assertTrue(getOpcodes(compile("(fn => 3)()")).contains(Opcode.TAIL_INVOKE));
+    assertTrue(getOpcodes(compile("def $x := 4 in (fn ($a) => $a)($x)"))
+        .contains(Opcode.TAIL_INVOKE));
+    assertTrue(getOpcodes(compileUnoptimized("def $x := 4 in (fn ($a) => $a)($x)"))
+        .contains(Opcode.TAIL_INVOKE));
+    assertFalse(getOpcodes(compile("(fn => 3)() + 4")).contains(Opcode.TAIL_INVOKE));
+    assertEquals(toValue(4), run("def $x := 4 in (fn ($a) => $a)($x)"));
+    assertEquals(toValue(-1), run("(fn ($a, $b) => (fn ($c, $d) => $c - $d)($a, $b))(4, 5)"));
+    // A chain of calls in tail position runs in a constant number of
+    // activations.
+    StringBuilder calls = new StringBuilder("5");
+    for (int i = 0; i < 80; i++)
+      calls.insert(0, "(fn ($x) => ").append(")(" + i + ")");
+    for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+      Interpreter inter = new Interpreter(engine);
+      assertEquals(toValue(5), inter.run(compile(calls.toString())));
+      assertTrue(inter.getAllocatedActivationCount() <= 2);
+    }
+    // So does a long loop through compiled code. There are no conditionals
+    // to end a recursion so the loop is a chain of closures each calling
+    // the next.
+    RLambda link = (RLambda) Interpreter.interpret(compile("def $k := 0 in fn => $k()"));
+    IValue chain = Interpreter.interpret(compile("fn => 5"));
+    for (int i = 0; i < 1000000; i++)
+      chain = link.close(new IValue[] {chain});
+    for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+      Interpreter inter = new Interpreter(engine, 1);
+      assertEquals(toValue(5), inter.run(compileCall(chain)));
+      assertTrue(inter.getAllocatedActivationCount() <= 2);
+      assertEquals(!Profiler.kEnabled, link.getMethodSpace().getOnlyMethod().getCode().isCompiled());
+    }
+  }
+
+  @Test
+  public void testDeepRecursion() {
+    // A chain of closures each calling the next and using the result nests
+    // as deeply as the chain is long, whether or not the code has been
+    // compiled along the way.
+    RLambda link = (RLambda) Interpreter.interpret(compile("def $k := 0 in fn => $k() + 1"));
+    IValue chain = Interpreter.interpret(compile("fn => 5"));
+    int length = 200000;
+    for (int i = 0; i < length; i++)
+      chain = link.close(new IValue[] {chain});
+    for (int threshold : new int[] {JvmCompiler.kDefaultThreshold, 1}) {
+      for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+        Interpreter inter = new Interpreter(engine, threshold);
+        assertEquals(toValue(5 + length), inter.run(compileCall(chain)));
+      }
+    }
+  }
+
+  @Test
+  public void testClosures() {
+    assertEquals(toValue(9), run("(fn ($a, $b) => (fn ($c) => $c + $b)($a))(4, 5)"));
+    assertEquals(toValue(6), run("def $x := 6 in (fn => $x)()"));
+    assertEquals(toValue(3), run("def $x := 4 in def $y := 1 in (fn => $x - $y)()"));
+    // Captures of captures are copied again into the inner lambda.
+    assertEquals(toValue(1), run("(fn ($a) => (fn ($b) => (fn => $a - $b)())(2))(3)"));
+    // Each evaluation of a capturing lambda expression creates a new lambda
+    // sharing the code of the one compiled.
+    CodeBlock block = compile("def $x := 6 in (fn => $x)");
+    RLambda first = (RLambda) Interpreter.interpret(block);
+    RLambda second = (RLambda) Interpreter.interpret(block);
+    assertNotSame(first, second);
+    assertSame(first.getMethodSpace(), second.getMethodSpace());
+    assertEquals(toValue(6), first.getCapture(0));
+    assertTrue(getOpcodes(block).contains(Opcode.NEW_LAMBDA));
+    assertEquals(toValue(9), runCompiled("(fn ($a, $b) => (fn ($c) => $c + $b)($a))(4, 5)"));
+    assertEquals(toValue(1), runCompiled("(fn ($a) => (fn ($b) => (fn => $a - $b)())(2))(3)"));
+  }
+
 }
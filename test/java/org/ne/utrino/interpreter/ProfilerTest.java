@@ -0,0 +1,72 @@
+package org.ne.utrino.interpreter;
+
+import java.util.Map;
+
+import org.junit.Test;
+import org.ne.utrino.value.RInteger;
+
+import junit.framework.TestCase;
+
+public class ProfilerTest extends TestCase {
+
+  @Test
+  public void testCounters() {
+    Profiler profiler = Profiler.get();
+    profiler.reset();
+    Profiler.countOpcode(Opcode.kPush);
+    Profiler.countOpcode(Opcode.kPush);
+    Profiler.countOpcode(Opcode.kInvoke);
+    Profiler.countNative(RInteger.of(1));
+    Profiler.countNative(RInteger.of(2));
+    Profiler.countNative(RInteger.of(2));
+    Profiler.recordLookup(10);
+    Profiler.recordLookup(30);
+    Profiler.recordDepth(4);
+    Profiler.recordDepth(2);
+    Map<String, Long> opcodes = profiler.getOpcodeCounts();
+    assertEquals(Opcode.values().length, opcodes.size());
+    assertEquals(2, (long) opcodes.get("PUSH"));
+    assertEquals(1, (long) opcodes.get("INVOKE"));
+    assertEquals(0, (long) opcodes.get("LOCAL"));
+    Map<String, Long> natives = profiler.getNativeCalls();
+    assertEquals(2, natives.size());
+    // Largest counts come first.
+    assertEquals(2, (long) natives.values().iterator().next());
+    assertEquals(2, profiler.getLookupCount());
+    assertEquals(40, profiler.getLookupNanos());
+    assertEquals(4, profiler.getMaxDepth());
+    assertTrue(profiler.getReport().contains("Max depth: 4"));
+    profiler.reset();
+    assertEquals(0, (long) profiler.getOpcodeCounts().get("PUSH"));
+    assertEquals(0, profiler.getNativeCalls().size());
+    assertEquals(0, profiler.getMaxDepth());
+  }
+
+  @Test
+  public void testInterpreter() {
+    // What gets counted depends on whether the suite is run with profiling
+    // enabled; when it isn't the interpreter mustn't count anything.
+    Profiler profiler = Profiler.get();
+    profiler.reset();
+    for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+      CodeBlock block = InterpreterTest.compile("(fn ($a) => $a + 1)(2)");
+      assertEquals(RInteger.of(3), Interpreter.interpret(block, engine, 1));
+      assertEquals(!Profiler.kEnabled, block.isCompiled());
+    }
+    Map<String, Long> opcodes = profiler.getOpcodeCounts();
+    if (Profiler.kEnabled) {
+      assertEquals(2, (long) opcodes.get("TAIL_INVOKE"));
+      assertEquals(2, (long) opcodes.get("INT_ADD"));
+      // The call method of lambdas, which is a control native, and the
+      // lambda's own method.
+      assertEquals(2, profiler.getMethodInvocations().size());
+      assertEquals(1, profiler.getNativeCalls().size());
+    } else {
+      for (long count : opcodes.values())
+        assertEquals(0, count);
+      assertEquals(0, profiler.getMethodInvocations().size());
+    }
+    profiler.reset();
+  }
+
+}
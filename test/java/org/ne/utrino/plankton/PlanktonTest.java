@@ -1,5 +1,11 @@
 package org.ne.utrino.plankton;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -20,6 +26,13 @@ public class PlanktonTest extends TestCase {
 
   private void checkCoding(Object value) throws DecodingError {
     assertEquals(value, transcode(value));
+    RawBinaryOutputStream out = new RawBinaryOutputStream();
+    Plankton.encode(value, out);
+    byte[] data = out.toByteArray();
+    assertEquals(value, Plankton.decode(new ByteBufferBinaryInputStream(ByteBuffer.wrap(data))));
+    ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+    direct.put(data).flip();
+    assertEquals(value, Plankton.decode(new ByteBufferBinaryInputStream(direct)));
   }
 
   @Test
@@ -40,6 +53,7 @@ public class PlanktonTest extends TestCase {
     checkCoding("");
     checkCoding("foo\0bar");
     checkCoding("12-3401283094812309417249p583274o51893212");
+    checkCoding("bl\u00E5b\u00E6rgr\u00F8d \u2603");
   }
 
   @Test
@@ -114,4 +128,91 @@ public class PlanktonTest extends TestCase {
     assertEquals(0, in.nextInt32());
   }
 
+  @Test
+  public void testByteBufferStreams() throws DecodingError {
+    RawBinaryOutputStream out = new RawBinaryOutputStream();
+    out.addByte(200);
+    out.addBlob(new byte[] {1, 8, 127});
+    out.addInt32(6550892);
+    out.addInt32(-6550892);
+    ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+    ByteBufferBinaryInputStream in = new ByteBufferBinaryInputStream(buffer);
+    assertEquals(200, in.nextByte());
+    byte[] blob = in.nextBlob();
+    assertEquals(3, blob.length);
+    assertEquals(127, blob[2]);
+    assertEquals(6550892, in.nextInt32());
+    assertEquals(-6550892, in.nextInt32());
+    assertEquals(0, in.getRemaining());
+    // Reading past the end is an error, not garbage.
+    try {
+      in.nextByte();
+      fail();
+    } catch (DecodingError de) {
+      // expected
+    }
+    // Truncating a string is caught before it is decoded.
+    out = new RawBinaryOutputStream();
+    Plankton.encode("foobar", out);
+    byte[] data = out.toByteArray();
+    in = new ByteBufferBinaryInputStream(ByteBuffer.wrap(data, 0, data.length - 1));
+    try {
+      Plankton.decode(in);
+      fail();
+    } catch (DecodingError de) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testMappedFile() throws IOException {
+    Object value = Arrays.asList(1, "two", Arrays.asList(3, "four"),
+        Collections.singletonMap("five", 6));
+    RawBinaryOutputStream out = new RawBinaryOutputStream();
+    Plankton.encode(value, out);
+    File file = File.createTempFile("plankton", ".bin");
+    try {
+      FileOutputStream stream = new FileOutputStream(file);
+      try {
+        stream.write(out.toByteArray());
+      } finally {
+        stream.close();
+      }
+      assertEquals(value, Plankton.decode(ByteBufferBinaryInputStream.map(file)));
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void testChannelStream() throws IOException {
+    byte[] large = new byte[100];
+    for (int i = 0; i < large.length; i++)
+      large[i] = (byte) i;
+    Object value = Arrays.asList("a string that doesn't fit in the buffer", 1027 * 1027,
+        Arrays.asList(1, 2, 3), "short");
+    // Write the same thing to a raw stream and through a channel with a tiny
+    // buffer.
+    RawBinaryOutputStream raw = new RawBinaryOutputStream(1);
+    ByteArrayOutputStream sink = new ByteArrayOutputStream();
+    ChannelBinaryOutputStream out = new ChannelBinaryOutputStream(Channels.newChannel(sink), 16);
+    for (IBinaryOutputStream stream : Arrays.<IBinaryOutputStream>asList(raw, out)) {
+      Plankton.encode(value, stream);
+      stream.addBlob(large);
+      stream.addBlob(new byte[0]);
+      stream.addByte(9);
+    }
+    out.flush();
+    byte[] expected = raw.toByteArray();
+    assertTrue(Arrays.equals(expected, sink.toByteArray()));
+    ByteArrayOutputStream copy = new ByteArrayOutputStream();
+    raw.writeTo(Channels.newChannel(copy));
+    assertTrue(Arrays.equals(expected, copy.toByteArray()));
+    RawBinaryInputStream in = new RawBinaryInputStream(expected);
+    assertEquals(value, Plankton.decode(in));
+    assertTrue(Arrays.equals(large, in.nextBlob()));
+    assertEquals(0, in.nextBlob().length);
+    assertEquals(9, in.nextByte());
+  }
+
 }
@@ -0,0 +1,157 @@
+package org.ne.utrino.runtime;
+
+import static org.ne.utrino.testing.TestFactory.toValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+
+import org.junit.Test;
+import org.ne.utrino.interpreter.CodeBlock;
+import org.ne.utrino.plankton.IPlanktonFactory;
+import org.ne.utrino.plankton.ISeed;
+import org.ne.utrino.plankton.Plankton;
+import org.ne.utrino.plankton.RawBinaryOutputStream;
+import org.ne.utrino.util.Factory;
+import org.ne.utrino.util.Name;
+import org.ne.utrino.util.Pair;
+import org.ne.utrino.value.IValue;
+import org.ne.utrino.value.RContext;
+import org.ne.utrino.value.RProtocol;
+import org.ne.utrino.value.RString;
+
+import junit.framework.TestCase;
+
+public class CodeCacheTest extends TestCase {
+
+  private static RContext newContext() {
+    RContext context = new RContext();
+    NativeMethods.addToContext(context);
+    return context;
+  }
+
+  private static void deleteAll(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files)
+        file.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    String source = "def $a := 3 + 4;"
+        + "def $b := (fn ($x) => $x - 1)(10);"
+        + "def $c := (fn ($x, $y) => (fn ($z) => $z + 1)($x + $y))(1, 2);"
+        + "def $d := 5 == 5;";
+    File dir = Files.createTempDirectory("codecache").toFile();
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      CodeCache cache = new CodeCache(dir);
+      assertNull(cache.load(source, newContext()));
+      RContext first = newContext();
+      Compiler.loadUnit(source, first, pool, cache);
+      assertTrue(cache.getFile(source).exists());
+      // The second time around the code comes from the cache.
+      List<Pair<Name, CodeBlock>> cached = cache.load(source, newContext());
+      assertNotNull(cached);
+      assertEquals(4, cached.size());
+      RContext second = newContext();
+      Compiler.loadUnit(source, second, pool, cache);
+      for (String name : new String[] {"a", "b", "c", "d"}) {
+        Name key = Name.of(RString.of(name));
+        assertEquals(first.get(key), second.get(key));
+      }
+      assertEquals(toValue(7), second.get(Name.of(RString.of("a"))));
+      assertEquals(toValue(9), second.get(Name.of(RString.of("b"))));
+      assertEquals(toValue(4), second.get(Name.of(RString.of("c"))));
+      assertEquals(toValue(true), second.get(Name.of(RString.of("d"))));
+      // A different source doesn't hit the cache.
+      assertNull(cache.load(source + "def $e := 1;", newContext()));
+    } finally {
+      pool.shutdown();
+      deleteAll(dir);
+    }
+  }
+
+  /**
+   * Writes the given data to the given file behind a valid header, so only
+   * the contents are wrong.
+   */
+  private static void writeWithHeader(File file, byte[] data) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    ByteBuffer buffer = ByteBuffer.allocate(8 + data.length);
+    buffer.putInt(data.length).putInt((int) crc.getValue()).put(data);
+    Files.write(file.toPath(), buffer.array());
+  }
+
+  @Test
+  public void testCorruptFiles() throws IOException {
+    String source = "def $a := (fn ($x) => $x - 1)(10);";
+    File dir = Files.createTempDirectory("codecache").toFile();
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      CodeCache cache = new CodeCache(dir);
+      Compiler.loadUnit(source, newContext(), pool, cache);
+      File file = cache.getFile(source);
+      byte[] valid = Files.readAllBytes(file.toPath());
+      // Truncated, with a byte flipped and empty.
+      byte[] flipped = valid.clone();
+      flipped[flipped.length / 2] ^= 0x10;
+      byte[][] corrupt = {Arrays.copyOf(valid, valid.length - 3), flipped, new byte[0]};
+      for (byte[] data : corrupt) {
+        Files.write(file.toPath(), data);
+        assertNull(cache.load(source, newContext()));
+        assertFalse(file.exists());
+      }
+      // A well-formed file whose code lacks some of its fields.
+      IPlanktonFactory factory = Plankton.getDefaultFactory();
+      ISeed code = factory.newSeed().setHeader(CodeCache.kCodeBlock).setPayload(factory.newMap()
+          .set("code", factory.newArray())
+          .set("constants", factory.newArray()));
+      ISeed unit = factory.newSeed().setHeader(CodeCache.kUnit).setPayload(factory.newArray()
+          .push(factory.newMap()
+              .set("name", factory.newArray().push(RString.of("a")))
+              .set("code", code)));
+      RawBinaryOutputStream out = new RawBinaryOutputStream();
+      Plankton.encode(unit, out);
+      writeWithHeader(file, out.toByteArray());
+      assertNull(cache.load(source, newContext()));
+      assertFalse(file.exists());
+      // The unit is compiled and stored again.
+      RContext context = newContext();
+      Compiler.loadUnit(source, context, pool, cache);
+      assertEquals(toValue(9), context.get(Name.of(RString.of("a"))));
+      assertNotNull(cache.load(source, newContext()));
+    } finally {
+      pool.shutdown();
+      deleteAll(dir);
+    }
+  }
+
+  @Test
+  public void testUnstorable() throws IOException {
+    File dir = Files.createTempDirectory("codecache").toFile();
+    try {
+      CodeCache cache = new CodeCache(dir);
+      // Protocols other than the built-in ones only exist in this process.
+      CodeBlock code = new CodeBlock(newContext(), new int[0], new IValue[] {new RProtocol()},
+          0, 0);
+      List<Pair<Name, CodeBlock>> decls = Factory.newArrayList();
+      decls.add(Pair.of(Name.of(RString.of("a")), code));
+      assertFalse(cache.store("def $a := 0;", decls));
+      File[] files = dir.listFiles();
+      assertTrue(files == null || files.length == 0);
+    } finally {
+      deleteAll(dir);
+    }
+  }
+
+}
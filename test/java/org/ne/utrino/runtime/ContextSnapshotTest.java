@@ -0,0 +1,140 @@
+package org.ne.utrino.runtime;
+
+import static org.ne.utrino.testing.TestFactory.toValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+import org.ne.utrino.ast.IExpression;
+import org.ne.utrino.ast.Invocation;
+import org.ne.utrino.ast.Literal;
+import org.ne.utrino.interpreter.CodeBlock;
+import org.ne.utrino.interpreter.Interpreter;
+import org.ne.utrino.plankton.DecodingError;
+import org.ne.utrino.plankton.RawBinaryInputStream;
+import org.ne.utrino.plankton.RawBinaryOutputStream;
+import org.ne.utrino.syntax.Parser;
+import org.ne.utrino.syntax.Token;
+import org.ne.utrino.syntax.Tokenizer;
+import org.ne.utrino.util.Name;
+import org.ne.utrino.value.IValue;
+import org.ne.utrino.value.Phase;
+import org.ne.utrino.value.RContext;
+import org.ne.utrino.value.RString;
+
+import junit.framework.TestCase;
+
+public class ContextSnapshotTest extends TestCase {
+
+  private static RContext transcode(RContext context) {
+    RawBinaryOutputStream out = new RawBinaryOutputStream();
+    ContextSnapshot.write(context, out);
+    return ContextSnapshot.read(new RawBinaryInputStream(out.toByteArray()));
+  }
+
+  private static IValue run(String str, RContext context) {
+    List<Token> tokens = Tokenizer.tokenize(str);
+    IExpression expr = new Parser(tokens).parseExpression();
+    CodeBlock code = Compiler.linkAndCompile(null, expr, context);
+    return Interpreter.interpret(code);
+  }
+
+  /**
+   * Calls the given lambda with the given argument in the given context.
+   */
+  private static IValue call(IValue lambda, IValue arg, RContext context) {
+    Invocation invocation = new Invocation.Builder()
+        .setThis(new Literal(lambda))
+        .setName("()")
+        .setPositional(0, new Literal(arg))
+        .build();
+    return Interpreter.interpret(Compiler.compile(null, invocation, context));
+  }
+
+  @Test
+  public void testRoundTrip() {
+    RContext context = new RContext();
+    NativeMethods.addToContext(context);
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      Compiler.compileUnit(Parser.parseUnit(Tokenizer.tokenize(
+          "def $x := 3 + 4; def $f := fn ($a) => $a - 1;")), context, pool);
+    } finally {
+      pool.shutdown();
+    }
+    assertTrue(context.trySetPhase(Phase.SHALLOW_IMMUTABLE));
+    RContext restored = transcode(context);
+    assertNotSame(context, restored);
+    assertFalse(restored.getPhase().isMutable());
+    assertEquals(context.getMethodSpace().getMethods().size(),
+        restored.getMethodSpace().getMethods().size());
+    assertEquals(toValue(7), restored.get(Name.of(RString.of("x"))));
+    IValue f = restored.get(Name.of(RString.of("f")));
+    assertNotSame(context.get(Name.of(RString.of("f"))), f);
+    assertEquals(toValue(5), call(f, toValue(6), restored));
+    // The natives work in the restored context.
+    assertEquals(toValue(7), run("3 + 4", restored));
+    assertEquals(toValue(true), run("4 == 4", restored));
+    assertEquals(toValue(5), run("(fn ($a) => $a - 1)(6)", restored));
+  }
+
+  @Test
+  public void testMutable() {
+    RContext context = new RContext();
+    NativeMethods.addToContext(context);
+    RContext restored = transcode(context);
+    assertTrue(restored.getPhase().isMutable());
+    // A mutable snapshot can have more added to it before being frozen.
+    restored.set(Name.of(RString.of("y")), toValue(2));
+    assertTrue(restored.trySetPhase(Phase.SHALLOW_IMMUTABLE));
+    assertEquals(toValue(9), run("4 + 5", restored));
+  }
+
+  @Test
+  public void testStaleSnapshot() {
+    RContext context = new RContext();
+    NativeMethods.addToContext(context);
+    // A snapshot written by a process with other natives.
+    RawBinaryOutputStream out = new RawBinaryOutputStream();
+    ContextSnapshot.write(context, out, "stale");
+    try {
+      ContextSnapshot.read(new RawBinaryInputStream(out.toByteArray()));
+      fail();
+    } catch (DecodingError de) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testCorruptSnapshot() throws IOException {
+    File file = File.createTempFile("snapshot", ".plk");
+    try {
+      RContext context = new RContext();
+      NativeMethods.addToContext(context);
+      RawBinaryOutputStream out = new RawBinaryOutputStream();
+      ContextSnapshot.write(context, out);
+      byte[] valid = out.toByteArray();
+      byte[][] corrupt = {Arrays.copyOf(valid, valid.length / 2), new byte[] {1, 2, 3}};
+      for (byte[] data : corrupt) {
+        Files.write(file.toPath(), data);
+        // The context is built from scratch and the snapshot replaced.
+        RContext initial = Compiler.newInitialContext(file);
+        assertTrue(initial.trySetPhase(Phase.SHALLOW_IMMUTABLE));
+        assertEquals(toValue(7), run("3 + 4", initial));
+        assertNotNull(ContextSnapshot.load(file));
+      }
+      // The snapshot written is used the next time around.
+      RContext restored = Compiler.newInitialContext(file);
+      assertEquals(context.getMethodSpace().getMethods().size(),
+          restored.getMethodSpace().getMethods().size());
+    } finally {
+      file.delete();
+    }
+  }
+
+}
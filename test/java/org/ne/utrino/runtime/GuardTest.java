@@ -8,7 +8,11 @@ import static org.ne.utrino.testing.TestFactory.newHierarchy;
 import static org.ne.utrino.testing.TestFactory.toValue;
 import static org.ne.utrino.testing.TestFactory.withProtocol;
 
+import java.util.List;
+
 import org.junit.Test;
+import org.ne.utrino.util.Factory;
+import org.ne.utrino.util.Pair;
 import org.ne.utrino.value.IValue;
 import org.ne.utrino.value.RProtocol;
 
@@ -103,4 +107,39 @@ public class GuardTest extends TestCase {
     assertTrue(Guard.compareScore(isStr.match(intAndStr, h), isInt.match(intAndStr, h)) == 0);
   }
 
+  @Test
+  public void testDiamonds() {
+    // A stack of 64 diamonds which has 2^64 paths from the bottom to the top.
+    RProtocol top = new RProtocol();
+    RProtocol current = top;
+    List<Pair<RProtocol, List<RProtocol>>> entries = Factory.newArrayList();
+    for (int i = 0; i < 64; i++) {
+      RProtocol left = new RProtocol();
+      RProtocol right = new RProtocol();
+      RProtocol bottom = new RProtocol();
+      entries.add(entry(left, current));
+      entries.add(entry(right, current));
+      entries.add(entry(bottom, left, right));
+      current = bottom;
+    }
+    IHierarchy h = newHierarchy(entries);
+    assertEquals(128, h.getDistance(current, top));
+    assertEquals(-1, h.getDistance(top, current));
+    IValue bottom = withProtocol(current);
+    assertTrue(Guard.compareScore(Guard.is(current).match(bottom, h),
+        Guard.is(top).match(bottom, h)) < 0);
+  }
+
+  @Test
+  public void testCycle() {
+    RProtocol aP = new RProtocol();
+    RProtocol bP = new RProtocol();
+    try {
+      newHierarchy(entry(aP, bP), entry(bP, aP));
+      fail();
+    } catch (RuntimeException re) {
+      // expected
+    }
+  }
+
 }
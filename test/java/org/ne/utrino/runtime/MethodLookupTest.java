@@ -129,4 +129,19 @@ public class MethodLookupTest extends TestCase {
     }
   }
 
+  @Test
+  public void testGrowing() {
+    IHierarchy hierarchy = newHierarchy();
+    RMethod method = newMethod(Guard.any(), Guard.any(), Guard.any());
+    IValue value = withProtocol(OBJ_P);
+    MethodLookup lookup = new MethodLookup(1);
+    lookup.ensureCapacity(3);
+    assertTrue(lookup.getMaxArguments() >= 3);
+    lookup.findMethod(newArgs(value, value, value), Arrays.asList(method), hierarchy);
+    assertSame(method, lookup.getMethod());
+    // Growing never shrinks.
+    lookup.ensureCapacity(2);
+    assertTrue(lookup.getMaxArguments() >= 3);
+  }
+
 }
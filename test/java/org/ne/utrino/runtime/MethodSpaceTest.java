@@ -0,0 +1,89 @@
+package org.ne.utrino.runtime;
+
+import static org.ne.utrino.testing.TestFactory.OBJ_P;
+import static org.ne.utrino.testing.TestFactory.arg;
+import static org.ne.utrino.testing.TestFactory.newInvocation;
+import static org.ne.utrino.testing.TestFactory.newSignature;
+import static org.ne.utrino.testing.TestFactory.param;
+import static org.ne.utrino.testing.TestFactory.toValue;
+import static org.ne.utrino.testing.TestFactory.withProtocol;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.ne.utrino.util.Factory;
+import org.ne.utrino.value.IValue;
+import org.ne.utrino.value.RKey;
+import org.ne.utrino.value.RMethod;
+import org.ne.utrino.value.RProtocol;
+
+import junit.framework.TestCase;
+
+public class MethodSpaceTest extends TestCase {
+
+  @Test
+  public void testIndexedLookup() {
+    // D <: C <: B <: A <: Object, E <: A
+    RProtocol aP = new RProtocol("A");
+    RProtocol bP = new RProtocol("B");
+    RProtocol cP = new RProtocol("C");
+    RProtocol dP = new RProtocol("D");
+    RProtocol eP = new RProtocol("E");
+    RProtocol[] protocols = {OBJ_P, aP, bP, cP, dP, eP};
+    MethodSpace space = new MethodSpace();
+    space.addInheritance(aP, OBJ_P);
+    space.addInheritance(bP, aP);
+    space.addInheritance(cP, bP);
+    space.addInheritance(dP, cP);
+    space.addInheritance(eP, aP);
+
+    // Build a bunch of random methods, some of which don't care about names
+    // and some which allow extra arguments.
+    Random random = new Random(4311);
+    List<RMethod> methods = Factory.newArrayList();
+    for (int i = 0; i < 400; i++) {
+      RProtocol self = protocols[random.nextInt(protocols.length)];
+      RProtocol first = protocols[random.nextInt(protocols.length)];
+      String name = "m" + random.nextInt(6);
+      boolean hasName = random.nextInt(10) != 0;
+      boolean hasFirst = random.nextBoolean();
+      List<Signature.ParameterBuilder> params = Factory.newArrayList();
+      params.add(param(Guard.is(self), false, RKey.THIS));
+      if (hasName)
+        params.add(param(Guard.identity(toValue(name)), false, RKey.NAME));
+      if (hasFirst)
+        params.add(param(Guard.is(first), random.nextInt(4) == 0, 0));
+      boolean allowExtra = random.nextInt(8) == 0;
+      RMethod method = new RMethod(newSignature(allowExtra,
+          params.toArray(new Signature.ParameterBuilder[params.size()])), null);
+      methods.add(method);
+      space.addMethod(method);
+    }
+    space.ensureFrozen();
+
+    // Check that lookup through the space gives the same result as scanning
+    // through all the methods.
+    for (int i = 0; i < 2000; i++) {
+      IValue self = withProtocol(protocols[random.nextInt(protocols.length)]);
+      IValue name = toValue("m" + random.nextInt(7));
+      IValue first = withProtocol(protocols[random.nextInt(protocols.length)]);
+      IInvocation args;
+      switch (random.nextInt(3)) {
+        case 0:
+          args = newInvocation(arg(RKey.THIS, self), arg(RKey.NAME, name));
+          break;
+        case 1:
+          args = newInvocation(arg(RKey.THIS, self), arg(RKey.NAME, name), arg(0, first));
+          break;
+        default:
+          args = newInvocation(arg(RKey.THIS, self), arg(0, first));
+          break;
+      }
+      MethodLookup lookup = new MethodLookup(3);
+      lookup.findMethod(args, methods, space);
+      assertSame(lookup.getMethod(), space.lookupMethod(args));
+    }
+  }
+
+}
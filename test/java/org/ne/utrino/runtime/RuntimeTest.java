@@ -1,5 +1,25 @@
 package org.ne.utrino.runtime;
 
+import static org.ne.utrino.testing.TestFactory.toValue;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+import org.ne.utrino.ast.Unit;
+import org.ne.utrino.interpreter.CodeBlock;
+import org.ne.utrino.syntax.Parser;
+import org.ne.utrino.syntax.Tokenizer;
+import org.ne.utrino.util.Factory;
+import org.ne.utrino.util.Name;
+import org.ne.utrino.util.Pair;
+import org.ne.utrino.value.IValue;
+import org.ne.utrino.value.RContext;
+import org.ne.utrino.value.RString;
+
 import junit.framework.TestCase;
 
 public class RuntimeTest extends TestCase {
@@ -8,4 +28,215 @@ public class RuntimeTest extends TestCase {
     Compiler.run("def $x := 4;");
   }
 
+  @Test
+  public void testCompileUnit() {
+    int count = 100;
+    StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < count; i++)
+      buf.append("def $x").append(i).append(" := (fn ($a) => $a + ").append(i).append(")(1);");
+    // Later declarations override earlier ones.
+    buf.append("def $x0 := 7;");
+    Unit unit = Parser.parseUnit(Tokenizer.tokenize(buf.toString()));
+    RContext context = new RContext();
+    NativeMethods.addToContext(context);
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      Compiler.compileUnit(unit, context, pool);
+    } finally {
+      pool.shutdown();
+    }
+    assertEquals(toValue(7), context.get(Name.of(RString.of("x0"))));
+    for (int i = 1; i < count; i++)
+      assertEquals(toValue(i + 1), context.get(Name.of(RString.of("x" + i))));
+  }
+
+  @Test
+  public void testCompileDeclarationsFolds() {
+    Unit unit = Parser.parseUnit(Tokenizer.tokenize("def $x := 3 + 4;"));
+    RContext context = new RContext();
+    NativeMethods.addToContext(context);
+    ForkJoinPool pool = new ForkJoinPool(2);
+    List<Pair<Name, CodeBlock>> decls;
+    try {
+      decls = Compiler.compileDeclarations(unit, context.newSnapshot(), pool);
+    } finally {
+      pool.shutdown();
+    }
+    // The snapshot is immutable so the addition is folded into a constant.
+    CodeBlock code = decls.get(0).getSecond();
+    assertEquals(1, code.getConstants().length);
+    assertEquals(0, code.getInlineCaches().length);
+    assertTrue(context.getPhase().isMutable());
+  }
+
+  /**
+   * A task that checks that no other task is running in the same process
+   * and then, until it runs out of hops, schedules another task on the next
+   * process.
+   */
+  private static class Hop implements ITask<IValue> {
+
+    private final Process[] processes;
+    private final AtomicBoolean[] running;
+    private final int[] counts;
+    private final int index;
+    private final int hopsLeft;
+    private final CountDownLatch done;
+    private final AtomicBoolean overlapped;
+
+    public Hop(Process[] processes, AtomicBoolean[] running, int[] counts,
+        int index, int hopsLeft, CountDownLatch done, AtomicBoolean overlapped) {
+      this.processes = processes;
+      this.running = running;
+      this.counts = counts;
+      this.index = index;
+      this.hopsLeft = hopsLeft;
+      this.done = done;
+      this.overlapped = overlapped;
+    }
+
+    @Override
+    public IValue execute(Process process) {
+      if (!running[index].compareAndSet(false, true))
+        overlapped.set(true);
+      // Not atomic on purpose, tasks within a process are serialized.
+      counts[index]++;
+      if (hopsLeft == 0) {
+        done.countDown();
+      } else {
+        int next = (index + 1) % processes.length;
+        processes[next].schedule(new Hop(processes, running, counts, next,
+            hopsLeft - 1, done, overlapped));
+      }
+      running[index].set(false);
+      return null;
+    }
+
+  }
+
+  /**
+   * Runs chains of tasks that hop between the processes of the given runtime
+   * and checks that they are all executed and that no process runs two tasks
+   * at the same time.
+   */
+  private static void runHops(Runtime runtime, int processCount, int chainCount,
+      int hops) throws InterruptedException {
+    runtime.start();
+    Process[] processes = new Process[processCount];
+    AtomicBoolean[] running = new AtomicBoolean[processCount];
+    for (int i = 0; i < processCount; i++) {
+      processes[i] = runtime.newProcess();
+      running[i] = new AtomicBoolean(false);
+    }
+    int[] counts = new int[processCount];
+    CountDownLatch done = new CountDownLatch(chainCount);
+    AtomicBoolean overlapped = new AtomicBoolean(false);
+    for (int i = 0; i < chainCount; i++) {
+      int start = i % processCount;
+      processes[start].schedule(new Hop(processes, running, counts, start, hops,
+          done, overlapped));
+    }
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    runtime.stop();
+    assertFalse(overlapped.get());
+    int total = 0;
+    for (int count : counts)
+      total += count;
+    assertEquals(chainCount * (hops + 1), total);
+  }
+
+  @Test
+  public void testManyProcesses() throws InterruptedException {
+    runHops(new Runtime(8), 32, 64, 500);
+  }
+
+  @Test
+  public void testThreadPerProcess() throws InterruptedException {
+    runHops(new Runtime(new ThreadPerProcessScheduler(), Runtime.kDefaultTaskQuantum,
+        Runtime.kDefaultTimeQuantumNanos), 32, 64, 500);
+    // Lots of processes that each only do a little.
+    runHops(new Runtime(new ThreadPerProcessScheduler(), Runtime.kDefaultTaskQuantum,
+        Runtime.kDefaultTimeQuantumNanos), 1000, 1000, 3);
+    // Threads that exit as soon as they're idle, so processes keep getting
+    // new ones.
+    runHops(new Runtime(new ThreadPerProcessScheduler(0), Runtime.kDefaultTaskQuantum,
+        Runtime.kDefaultTimeQuantumNanos), 32, 64, 500);
+  }
+
+  @Test
+  public void testIdleThreadsExit() throws InterruptedException {
+    ThreadPerProcessScheduler scheduler = new ThreadPerProcessScheduler(1000000);
+    Runtime runtime = new Runtime(scheduler, Runtime.kDefaultTaskQuantum,
+        Runtime.kDefaultTimeQuantumNanos);
+    runtime.start();
+    try {
+      for (int round = 0; round < 2; round++) {
+        final CountDownLatch done = new CountDownLatch(16);
+        for (int i = 0; i < 16; i++) {
+          runtime.newProcess().schedule(new ITask<IValue>() {
+            @Override
+            public IValue execute(Process process) {
+              done.countDown();
+              return null;
+            }
+          });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (scheduler.getThreadCount() > 0 && System.nanoTime() < deadline)
+          Thread.sleep(1);
+        assertEquals(0, scheduler.getThreadCount());
+      }
+    } finally {
+      runtime.stop();
+    }
+  }
+
+  @Test
+  public void testQuantum() throws InterruptedException {
+    final int taskCount = 1000;
+    final int quantum = 8;
+    Runtime runtime = new Runtime(1, quantum, 0);
+    final List<Integer> trace = Factory.newArrayList();
+    final CountDownLatch done = new CountDownLatch(2);
+    // Fill up both processes before starting so they compete for the one
+    // worker.
+    for (int p = 0; p < 2; p++) {
+      Process process = runtime.newProcess();
+      for (int i = 0; i < taskCount; i++) {
+        final int entry = p * taskCount + i;
+        final boolean isLast = (i == taskCount - 1);
+        process.schedule(new ITask<IValue>() {
+          @Override
+          public IValue execute(Process process) {
+            trace.add(entry);
+            if (isLast)
+              done.countDown();
+            return null;
+          }
+        });
+      }
+    }
+    runtime.start();
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    runtime.stop();
+    assertEquals(2 * taskCount, trace.size());
+    // Each process runs its tasks in order.
+    int[] next = {0, taskCount};
+    for (int entry : trace) {
+      int p = entry / taskCount;
+      assertEquals(next[p], entry);
+      next[p]++;
+    }
+    // Tasks are executed in batches of the quantum.
+    int first = trace.get(0) / taskCount;
+    for (int i = 0; i < quantum; i++)
+      assertEquals(first, trace.get(i) / taskCount);
+    // Neither process gets to run all its tasks before the other starts.
+    int firstOther = 0;
+    while (trace.get(firstOther) / taskCount == first)
+      firstOther++;
+    assertTrue(firstOther < taskCount);
+  }
+
 }
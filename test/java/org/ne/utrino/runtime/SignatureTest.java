@@ -12,8 +12,11 @@ import static org.ne.utrino.testing.TestFactory.newSignature;
 import static org.ne.utrino.testing.TestFactory.param;
 import static org.ne.utrino.testing.TestFactory.toValue;
 
+import java.util.List;
+
 import org.junit.Test;
 import org.ne.utrino.runtime.Signature.MatchResult;
+import org.ne.utrino.util.Factory;
 import org.ne.utrino.util.Pair;
 import org.ne.utrino.value.ITagValue;
 import org.ne.utrino.value.IValue;
@@ -25,7 +28,16 @@ public class SignatureTest extends TestCase {
   @SafeVarargs
   public static void assertMatch(MatchResult expected, Signature sig,
       Pair<ITagValue, IValue>... pairs) {
-    assertEquals(expected, sig.match(newInvocation(pairs), null, new int[pairs.length]));
+    List<Pair<ITagValue, IValue>> list = Factory.newArrayList();
+    for (Pair<ITagValue, IValue> pair : pairs)
+      list.add(pair);
+    assertMatch(expected, sig, list);
+  }
+
+  public static void assertMatch(MatchResult expected, Signature sig,
+      List<Pair<ITagValue, IValue>> pairs) {
+    assertEquals(expected, sig.match(newInvocation(pairs), null, new int[pairs.size()]));
+    assertEquals(expected.didMatch(), sig.accepts(newInvocation(pairs), null));
   }
 
   @Test
@@ -87,4 +99,26 @@ public class SignatureTest extends TestCase {
     assertMatch(EXTRA_MATCH, sig, arg(0, "foo"), arg(1, "bar"), arg("z", "baz"));
   }
 
+  @Test
+  public void testManyParameters() {
+    // More parameters than fit in the bit mask that tracks which ones have
+    // been seen.
+    int count = 70;
+    Signature.ParameterBuilder[] params = new Signature.ParameterBuilder[count];
+    for (int i = 0; i < count; i++)
+      params[i] = param(Guard.any(), false, i, "p" + i);
+    Signature sig = newSignature(false, params);
+    List<Pair<ITagValue, IValue>> args = Factory.newArrayList();
+    for (int i = 0; i < count; i++)
+      args.add(arg(i, "v" + i));
+    assertMatch(MATCH, sig, args);
+    args.set(3, arg("p3", "v3"));
+    args.set(67, arg("p67", "v67"));
+    assertMatch(MATCH, sig, args);
+    List<Pair<ITagValue, IValue>> redundant = Factory.newArrayList(args);
+    redundant.add(arg(67, "w"));
+    assertMatch(REDUNDANT_ARGUMENT, sig, redundant);
+    assertMatch(MISSING_ARGUMENT, sig, args.subList(0, count - 1));
+  }
+
 }
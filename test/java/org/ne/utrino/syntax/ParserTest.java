@@ -3,6 +3,7 @@ package org.ne.utrino.syntax;
 import static org.ne.utrino.testing.TestFactory.toTag;
 import static org.ne.utrino.testing.TestFactory.toValue;
 
+import java.io.StringReader;
 import java.util.Arrays;
 import java.util.List;
 
@@ -46,6 +47,8 @@ public class ParserTest extends TestCase {
     Unit result = Parser.parseUnit(tokens);
     Unit expected = new Unit(Arrays.asList(expectedDecls));
     assertEquals(expected.toString(), result.toString());
+    Unit streamed = Parser.parseUnit(new Tokenizer(new StringCharStream(str)));
+    assertEquals(expected.toString(), streamed.toString());
   }
 
   @Test
@@ -61,6 +64,9 @@ public class ParserTest extends TestCase {
     List<Token> tokens = Tokenizer.tokenize(str);
     IExpression result = new Parser(tokens).parseExpression();
     assertEquals(expected.toString(), result.toString());
+    Tokenizer tokenizer = new Tokenizer(new ReaderCharStream(new StringReader(str), 4));
+    IExpression streamed = new Parser(tokenizer).parseExpression();
+    assertEquals(expected.toString(), streamed.toString());
   }
 
   @Test
@@ -2,6 +2,14 @@ package org.ne.utrino.syntax;
 
 import static org.ne.utrino.testing.TestFactory.toTag;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Test;
@@ -22,6 +30,12 @@ public class TokenizerTest extends TestCase {
       expected.add(token);
     List<Token> found = Tokenizer.tokenize(str);
     assertEquals(expected, found);
+    // Streaming the tokens through a tiny buffer gives the same result.
+    List<Token> streamed = Factory.newArrayList();
+    Tokenizer tokenizer = new Tokenizer(new ReaderCharStream(new StringReader(str), 2));
+    while (tokenizer.hasNext())
+      streamed.add(tokenizer.next());
+    assertEquals(expected, streamed);
   }
 
   @Test
@@ -53,6 +67,78 @@ public class TokenizerTest extends TestCase {
     runScanTest("+ - * /", op("+"), op("-"), op("*"), op("/"));
   }
 
+  @Test
+  public void testBoundedBuffer() {
+    StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < 10000; i++)
+      buf.append("$foo").append(i).append(" + ");
+    buf.append("\"a string that is longer than the buffer\"");
+    ReaderCharStream stream = new ReaderCharStream(new StringReader(buf.toString()), 16);
+    Tokenizer tokenizer = new Tokenizer(stream);
+    int count = 0;
+    Token last = null;
+    while (tokenizer.hasNext()) {
+      last = tokenizer.next();
+      count++;
+    }
+    assertEquals(20001, count);
+    assertEquals(st("a string that is longer than the buffer"), last);
+    // The buffer only had to grow to hold the long string.
+    assertTrue(stream.getBufferSize() <= 64);
+  }
+
+  @Test
+  public void testMappedFile() throws IOException {
+    File file = File.createTempFile("tokens", ".n");
+    try {
+      Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+      try {
+        out.write("def $x := \"bl\u00e5b\u00e6r\" ;");
+      } finally {
+        out.close();
+      }
+      ReaderCharStream stream = ReaderCharStream.map(file);
+      List<Token> found = Factory.newArrayList();
+      Tokenizer tokenizer = new Tokenizer(stream);
+      while (tokenizer.hasNext())
+        found.add(tokenizer.next());
+      stream.close();
+      assertEquals(Arrays.asList(wd("def"), id("$x"), op(":="), st("bl\u00e5b\u00e6r"),
+          pt(Type.SEMI)), found);
+    } finally {
+      assertTrue(file.delete());
+    }
+  }
+
+  @Test
+  public void testSurrogatePairAtBufferEnd() throws IOException {
+    // Strings placing a surrogate pair on either side of the point where the
+    // default buffer is full.
+    for (int length = ReaderCharStream.kDefaultBufferSize - 4;
+        length < ReaderCharStream.kDefaultBufferSize + 1; length++) {
+      StringBuilder buf = new StringBuilder();
+      for (int i = 0; i < length; i++)
+        buf.append('a');
+      buf.append("\ud83d\ude00");
+      File file = File.createTempFile("tokens", ".n");
+      try {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+        try {
+          out.write("\"" + buf + "\"");
+        } finally {
+          out.close();
+        }
+        ReaderCharStream stream = ReaderCharStream.map(file);
+        Tokenizer tokenizer = new Tokenizer(stream);
+        assertEquals(st(buf.toString()), tokenizer.next());
+        assertFalse(tokenizer.hasNext());
+        stream.close();
+      } finally {
+        assertTrue(file.delete());
+      }
+    }
+  }
+
   @Test
   public void testImplicitSemis() {
     runScanTest("} foo bar", pt(Type.RBRACE), iwd("foo"), wd("bar"));
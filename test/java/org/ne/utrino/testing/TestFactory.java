@@ -1,7 +1,6 @@
 package org.ne.utrino.testing;
 
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -9,6 +8,7 @@ import java.util.Map;
 import org.ne.utrino.runtime.Guard;
 import org.ne.utrino.runtime.IHierarchy;
 import org.ne.utrino.runtime.IInvocation;
+import org.ne.utrino.runtime.ProtocolTable;
 import org.ne.utrino.runtime.Signature;
 import org.ne.utrino.util.Assert;
 import org.ne.utrino.util.Factory;
@@ -72,16 +72,17 @@ public class TestFactory {
    */
   @SafeVarargs
   public static IHierarchy newHierarchy(Pair<RProtocol, List<RProtocol>>... pairs) {
-    final Map<RProtocol, List<RProtocol>> hierarchy = Factory.newHashMap();
+    return newHierarchy(Arrays.asList(pairs));
+  }
+
+  /**
+   * Creates a new hierarchy from the given list of entries.
+   */
+  public static IHierarchy newHierarchy(List<Pair<RProtocol, List<RProtocol>>> pairs) {
+    Map<RProtocol, List<RProtocol>> hierarchy = Factory.newHashMap();
     for (Pair<RProtocol, List<RProtocol>> pair : pairs)
       hierarchy.put(pair.getFirst(), pair.getSecond());
-    return new IHierarchy() {
-      @Override
-      public Collection<RProtocol> getParents(RProtocol protocol) {
-        List<RProtocol> result = hierarchy.get(protocol);
-        return (result == null) ? Collections.<RProtocol>emptySet() : result;
-      }
-    };
+    return new ProtocolTable(hierarchy);
   }
 
   /**
@@ -121,7 +122,14 @@ public class TestFactory {
    */
   @SafeVarargs
   public static IInvocation newInvocation(Pair<ITagValue, IValue>... pairs) {
-    final List<Pair<ITagValue, IValue>> args = Arrays.asList(pairs);
+    return newInvocation(Arrays.asList(pairs));
+  }
+
+  /**
+   * Creates an invocation from the given list of tags and values.
+   */
+  public static IInvocation newInvocation(List<Pair<ITagValue, IValue>> pairs) {
+    final List<Pair<ITagValue, IValue>> args = Factory.newArrayList(pairs);
     Collections.sort(args, Pair.<ITagValue, IValue>firstComparator());
     return new IInvocation() {
       @Override
@@ -15,4 +15,23 @@ public class TagValueTest extends TestCase {
     assertTrue(of(2).compareTo(of(1)) > 0);
   }
 
+  @Test
+  public void testSmallIntegerCache() {
+    assertSame(of(0), of(0));
+    assertSame(of(-1), of(-1));
+    assertSame(of(100), of(100));
+    assertNotSame(of(1 << 20), of(1 << 20));
+    assertEquals(of(1 << 20), of(1 << 20));
+    assertTrue(of(1 << 20).isIdentical(of(1 << 20)));
+  }
+
+  @Test
+  public void testIntern() {
+    RString foo = RString.intern("foo");
+    assertSame(foo, RString.intern(new String("foo")));
+    assertNotSame(foo, RString.of("foo"));
+    assertTrue(foo.isIdentical(RString.of("foo")));
+    assertNotSame(foo, RString.intern("bar"));
+  }
+
 }